@@ -16,6 +16,8 @@
 
 package com.android.volley;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -30,6 +32,14 @@ public interface Cache {
      */
     public Entry get(String key);
 
+    /**
+     * Retrieves an entry without copying its data onto the heap. The returned entry's data is
+     * null and its {@link Entry#body} reads the data from where the cache keeps it.
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    public Entry getLazy(String key);
+
     /**
      * Adds or replaces an entry to the cache.
      * @param key Cache key
@@ -37,6 +47,21 @@ public interface Cache {
      */
     public void put(String key, Entry entry);
 
+    /**
+     * Retrieves the metadata of an entry without reading its data.
+     * @param key Cache key
+     * @return An {@link Entry} whose data is null, or null in the event of a cache miss
+     */
+    public Entry getMetadata(String key);
+
+    /**
+     * Replaces the metadata of an existing entry, keeping its data. Does nothing if there is
+     * no entry for the key. The data of the given entry is ignored and may be null.
+     * @param key Cache key
+     * @param entry The new ETag, server date, TTLs and response headers
+     */
+    public void updateMetadata(String key, Entry entry);
+
     /**
      * Performs any potentially long-running actions needed to initialize the cache;
      * will be called from a worker thread.
@@ -61,13 +86,30 @@ public interface Cache {
      */
     public void clear();
 
+    /**
+     * The data of an entry, left where the cache keeps it until it is read.
+     */
+    public interface Body {
+        /** Returns the number of bytes in the body. */
+        public long length();
+
+        /**
+         * Opens a new stream over the body. Each call starts from the beginning; the caller
+         * closes the stream.
+         */
+        public InputStream open() throws IOException;
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
     public static class Entry {
-        /** The data returned from cache. */
+        /** The data returned from cache, or null if the entry was read lazily. */
         public byte[] data;
 
+        /** The data of an entry returned by {@link Cache#getLazy(String)}, otherwise null. */
+        public Body body;
+
         /** ETag for cache coherency. */
         public String etag;
 
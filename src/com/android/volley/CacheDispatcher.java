@@ -21,6 +21,8 @@ import java.util.concurrent.BlockingQueue;
 import android.os.Process;
 import android.os.SystemClock;
 
+import org.apache.http.HttpStatus;
+
 /**
  * Provides a thread for performing cache triage on a queue of requests.
  *
@@ -122,7 +124,9 @@ public class CacheDispatcher extends Thread {
                 }
 
                 // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
+                Cache.Entry entry = request.canParseCacheBody()
+                        ? mCache.getLazy(request.getCacheKey())
+                        : mCache.get(request.getCacheKey());
                 if (entry == null) {
                     request.addMarker("cache-miss");
                     // Cache miss; send off to the network dispatcher.
@@ -140,8 +144,10 @@ public class CacheDispatcher extends Thread {
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
+                NetworkResponse cached = entry.data != null
+                        ? new NetworkResponse(entry.data, entry.responseHeaders)
+                        : new NetworkResponse(HttpStatus.SC_OK, entry.body, entry.responseHeaders, false);
+                Response<?> response = request.parseNetworkResponse(cached);
                 request.addMarker("cache-hit-parsed");
 
                 if (!entry.refreshNeeded()) {
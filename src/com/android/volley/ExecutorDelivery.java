@@ -50,6 +50,21 @@ public class ExecutorDelivery implements ResponseDelivery {
         mResponsePoster = executor;
     }
 
+    /**
+     * Creates a response delivery interface that delivers on whichever thread posts, i.e. on
+     * the cache or network dispatcher that produced the result. Saves the hop to another thread
+     * for consumers that don't need one; listeners must be quick and thread safe, as they hold
+     * up the dispatcher.
+     */
+    public static ExecutorDelivery immediate() {
+        return new ExecutorDelivery(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
     @Override
     public void postResponse(Request<?> request, Response<?> response) {
         postResponse(request, response, null);
@@ -96,7 +111,13 @@ public class ExecutorDelivery implements ResponseDelivery {
 
             // Deliver a normal response or error, depending.
             if (mResponse.isSuccess()) {
-                mRequest.deliverResponse(mResponse.result);
+                Request<?> previous = Request.setDeliveringIntermediate(
+                        mResponse.intermediate ? mRequest : null);
+                try {
+                    mRequest.deliverResponse(mResponse.result);
+                } finally {
+                    Request.setDeliveringIntermediate(previous);
+                }
             } else {
                 mRequest.deliverError(mResponse.error);
             }
@@ -116,14 +137,16 @@ public class ExecutorDelivery implements ResponseDelivery {
        }
     }
 
+    /**
+     * Posts progress without allocating: the request keeps its latest progress and one
+     * Runnable to deliver it, queued at most once, so progress posted before the previous post
+     * was delivered merges into it.
+     */
     @Override
-    public void postLoading(final Request<?> request, final long count, final long current) {
-        mResponsePoster.execute(new Runnable() {
-            
-            @Override
-            public void run() {
-                request.deliverLoading(count, current);
-            }
-        });
+    public void postLoading(Request<?> request, long count, long current) {
+        Runnable deliver = request.setPendingLoading(count, current);
+        if (deliver != null) {
+            mResponsePoster.execute(deliver);
+        }
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decides which threads perform the requests on a {@link RequestQueue}'s network queue.
+ *
+ * <p>Whatever the threads, every request taken off the queue is performed as
+ * {@link NetworkDispatcher} does: through the queue's {@link Network}, written to its
+ * {@link Cache} when eligible, with results posted through its {@link ResponseDelivery}, and
+ * handed back to the {@link NetworkQueue} once done.</p>
+ */
+public interface NetworkDispatchStrategy {
+
+    /**
+     * Creates the strategy for a queue; called once by the {@link RequestQueue} constructor.
+     */
+    public interface Factory {
+        /**
+         * @param queue Queue of requests going out to the network
+         * @param network Network interface to use for performing requests
+         * @param cache Cache interface to use for writing responses to cache
+         * @param delivery Delivery interface to use for posting responses
+         */
+        public NetworkDispatchStrategy create(BlockingQueue<Request<?>> queue, Network network,
+                Cache cache, ResponseDelivery delivery);
+    }
+
+    /** Starts taking requests off the queue. */
+    public void start();
+
+    /** Stops taking requests off the queue. Requests in flight may still complete. */
+    public void quit();
+
+    /** Stops taking requests off the queue until {@link #resume()}. */
+    public void pause();
+
+    public void resume();
+
+    /** Called whenever a request has been put on the network queue. */
+    public void onRequestQueued();
+}
@@ -17,6 +17,7 @@
 package com.android.volley;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.annotation.TargetApi;
 import android.net.TrafficStats;
@@ -40,6 +41,8 @@ public class NetworkDispatcher extends Thread {
     private final Cache mCache;
     /** For posting responses and errors. */
     private final ResponseDelivery mDelivery;
+    /** The elastic pool this dispatcher belongs to, or null for a standalone dispatcher. */
+    private final NetworkDispatcherPool mPool;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
     
@@ -58,10 +61,27 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread owned by an elastic pool. The dispatcher
+     * reports queue waits to the pool and exits once the pool retires it for being idle.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param pool The pool this dispatcher belongs to, or null
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, NetworkDispatcherPool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mPool = pool;
     }
 
     /**
@@ -89,7 +109,7 @@ public class NetworkDispatcher extends Thread {
     // end
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private void addTrafficStatsTag(Request<?> request) {
+    private static void addTrafficStatsTag(Request<?> request) {
         // Tag the request (if API >= 14)
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
@@ -108,7 +128,19 @@ public class NetworkDispatcher extends Thread {
                     }
                 }
                 // Take a request from the queue.
-                request = mQueue.take();
+                if (mPool == null) {
+                    request = mQueue.take();
+                } else {
+                    request = mQueue.poll(mPool.getKeepAliveMs(), TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        // Idle for the whole keep-alive; leave if the pool can spare us.
+                        if (mPool.retireIfIdle(this)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    mPool.onRequestTaken(request);
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -116,53 +148,73 @@ public class NetworkDispatcher extends Thread {
                 }
                 continue;
             }
-            try {
-                request.addMarker("network-queue-take");
+            request.addMarker("network-queue-take");
+            dispatch(request, mQueue, mNetwork, mCache, mDelivery);
+        }
+    }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
-                addTrafficStatsTag(request);
+    /**
+     * Performs one request taken off the queue on the calling thread: fetches it from the
+     * network, writes the response to cache when eligible and posts the result. Shared with
+     * the other {@link NetworkDispatchStrategy network dispatch strategies}.
+     *
+     * @param request The request taken off the queue
+     * @param queue The queue it was taken from, given its host slot back when done
+     * @param network Network interface to use for performing the request
+     * @param cache Cache interface to use for writing the response to cache
+     * @param delivery Delivery interface to use for posting the result
+     */
+    static void dispatch(Request<?> request, BlockingQueue<Request<?>> queue, Network network,
+            Cache cache, ResponseDelivery delivery) {
+        try {
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
+            addTrafficStatsTag(request);
 
-                // Perform the network request.
-                NetworkResponse networkResponse = mNetwork.performRequest(mDelivery, request);
-                request.addMarker("network-http-complete");
-                
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
+            // Perform the network request.
+            NetworkResponse networkResponse = network.performRequest(delivery, request);
+            request.addMarker("network-http-complete");
+
+            // If the server returned 304 AND we delivered a response already,
+            // we're done -- don't deliver a second identical response.
+            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                request.finish("not-modified");
+                return;
+            }
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
+            // Parse the response here on the worker thread.
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
 
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
+            // Write to cache if applicable. A 304 leaves the cached body as it is, so only
+            // the metadata is refreshed.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                if (networkResponse.notModified) {
+                    cache.updateMetadata(request.getCacheKey(), response.cacheEntry);
+                    request.addMarker("network-cache-refreshed");
+                } else {
+                    cache.put(request.getCacheKey(), response.cacheEntry);
                     request.addMarker("network-cache-written");
                 }
+            }
 
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                mDelivery.postError(request, new VolleyError(e));
+            // Post the response back.
+            request.markDelivered();
+            delivery.postResponse(request, response);
+        } catch (VolleyError volleyError) {
+            delivery.postError(request, request.parseNetworkError(volleyError));
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            delivery.postError(request, new VolleyError(e));
+        } finally {
+            // Give the request's host slot back to the scheduler.
+            if (queue instanceof NetworkQueue) {
+                ((NetworkQueue) queue).finished(request);
             }
         }
     }
-
-    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
-        error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
-    }
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * An elastic set of {@link NetworkDispatcher} threads servicing one network queue.
+ *
+ * <p>The pool never shrinks below its minimum size. A new dispatcher is started, up to the
+ * maximum size, whenever the request at the head of the queue has been waiting longer than the
+ * target queue wait. The wait is checked when a request is queued or taken, and by a watchdog
+ * thread every target queue wait while the queue is not empty, so the pool still grows when
+ * every dispatcher is stuck on a slow request. Dispatchers above the minimum retire after
+ * sitting idle for the keep-alive time.</p>
+ *
+ * <p>This is the classic {@link NetworkDispatchStrategy}: a bounded set of long-lived
+ * platform threads, each performing one request at a time.</p>
+ */
+public class NetworkDispatcherPool implements NetworkDispatchStrategy {
+
+    /** Default time a surplus dispatcher may sit idle before it retires. */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    /** Default head-of-queue wait above which the pool grows. */
+    public static final long DEFAULT_TARGET_QUEUE_WAIT_MS = 100;
+
+    /** The queue of requests to service. */
+    private final BlockingQueue<Request<?>> mQueue;
+
+    /** The network interface handed to every dispatcher. */
+    private final Network mNetwork;
+
+    /** The cache handed to every dispatcher. */
+    private final Cache mCache;
+
+    /** The delivery handed to every dispatcher. */
+    private final ResponseDelivery mDelivery;
+
+    private final int mMinPoolSize;
+    private final int mMaxPoolSize;
+    private final long mKeepAliveMs;
+    private final long mTargetQueueWaitMs;
+
+    /** The live dispatchers. Guarded by {@code this}. */
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<NetworkDispatcher>();
+
+    /** Whether the pool is started. Guarded by {@code this}. */
+    private boolean mRunning = false;
+
+    /** Whether the pool is paused; new dispatchers start paused too. Guarded by {@code this}. */
+    private boolean mPaused = false;
+
+    /** Checks the head of the queue while it is not empty. Guarded by {@code this}. */
+    private Watchdog mWatchdog;
+
+    /** Number of requests taken off the queue. */
+    private final AtomicLong mTakenCount = new AtomicLong();
+
+    /** Sum of queue waits of all taken requests, in milliseconds. */
+    private final AtomicLong mTotalQueueWaitMs = new AtomicLong();
+
+    /** Longest queue wait observed, in milliseconds. */
+    private volatile long mMaxQueueWaitMs = 0;
+
+    /**
+     * Creates the pool. No dispatcher runs until {@link #start()} is called.
+     *
+     * @param queue Queue of requests going out to the network
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param minPoolSize Number of dispatchers that are always kept alive
+     * @param maxPoolSize Upper bound on the number of dispatchers
+     * @param keepAliveMs Idle time after which a surplus dispatcher retires
+     * @param targetQueueWaitMs Head-of-queue wait above which a dispatcher is added
+     */
+    public NetworkDispatcherPool(BlockingQueue<Request<?>> queue, Network network, Cache cache,
+            ResponseDelivery delivery, int minPoolSize, int maxPoolSize, long keepAliveMs,
+            long targetQueueWaitMs) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Invalid pool bounds: min=" + minPoolSize
+                    + " max=" + maxPoolSize);
+        }
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinPoolSize = minPoolSize;
+        mMaxPoolSize = maxPoolSize;
+        mKeepAliveMs = keepAliveMs;
+        mTargetQueueWaitMs = targetQueueWaitMs;
+    }
+
+    /**
+     * Returns a factory for pools of the given bounds, for
+     * {@link RequestQueue#RequestQueue(Cache, Network, NetworkDispatchStrategy.Factory,
+     * ResponseDelivery)}.
+     */
+    public static NetworkDispatchStrategy.Factory factory(final int minPoolSize,
+            final int maxPoolSize, final long keepAliveMs, final long targetQueueWaitMs) {
+        return new NetworkDispatchStrategy.Factory() {
+            @Override
+            public NetworkDispatchStrategy create(BlockingQueue<Request<?>> queue,
+                    Network network, Cache cache, ResponseDelivery delivery) {
+                return new NetworkDispatcherPool(queue, network, cache, delivery, minPoolSize,
+                        maxPoolSize, keepAliveMs, targetQueueWaitMs);
+            }
+        };
+    }
+
+    /**
+     * Starts the minimum number of dispatchers.
+     */
+    @Override
+    public synchronized void start() {
+        mRunning = true;
+        while (mDispatchers.size() < mMinPoolSize) {
+            startDispatcher();
+        }
+        if (mWatchdog == null) {
+            mWatchdog = new Watchdog();
+            mWatchdog.start();
+        }
+    }
+
+    /**
+     * Stops every dispatcher.
+     */
+    @Override
+    public synchronized void quit() {
+        mRunning = false;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+        if (mWatchdog != null) {
+            mWatchdog.quit();
+            mWatchdog = null;
+        }
+    }
+
+    @Override
+    public synchronized void pause() {
+        mPaused = true;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.pauseTask();
+        }
+    }
+
+    @Override
+    public synchronized void resume() {
+        mPaused = false;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.resumeTask();
+        }
+    }
+
+    @Override
+    public void onRequestQueued() {
+        maybeGrow();
+        Watchdog watchdog;
+        synchronized (this) {
+            watchdog = mWatchdog;
+        }
+        if (watchdog != null) {
+            watchdog.wake();
+        }
+    }
+
+    /**
+     * Called whenever a request has been put on the network queue, by dispatchers after each
+     * take, and periodically by the watchdog while the queue is not empty. Adds a dispatcher
+     * if the head of the queue has waited longer than the target.
+     */
+    public void maybeGrow() {
+        Request<?> head = mQueue.peek();
+        if (head == null || getQueueWaitMs(head) <= mTargetQueueWaitMs) {
+            return;
+        }
+        synchronized (this) {
+            if (mRunning && !mPaused && mDispatchers.size() < mMaxPoolSize) {
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Growing network dispatcher pool to %d", mDispatchers.size() + 1);
+                }
+                startDispatcher();
+            }
+        }
+    }
+
+    /**
+     * Records the queue wait of a request just taken by a dispatcher.
+     */
+    void onRequestTaken(Request<?> request) {
+        long waitMs = getQueueWaitMs(request);
+        mTakenCount.incrementAndGet();
+        mTotalQueueWaitMs.addAndGet(waitMs);
+        if (waitMs > mMaxQueueWaitMs) {
+            mMaxQueueWaitMs = waitMs;
+        }
+        if (waitMs > mTargetQueueWaitMs) {
+            maybeGrow();
+        }
+    }
+
+    /**
+     * Called by a dispatcher that has been idle for the keep-alive time.
+     *
+     * @return true if the dispatcher has been removed from the pool and must exit
+     */
+    synchronized boolean retireIfIdle(NetworkDispatcher dispatcher) {
+        if (mDispatchers.size() <= mMinPoolSize) {
+            return false;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Retiring idle network dispatcher, pool size now %d",
+                    mDispatchers.size() - 1);
+        }
+        return mDispatchers.remove(dispatcher);
+    }
+
+    /** Returns the time a dispatcher waits for work before asking to retire. */
+    long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    /** Returns the number of live dispatchers. */
+    public synchronized int getPoolSize() {
+        return mDispatchers.size();
+    }
+
+    public int getMinPoolSize() {
+        return mMinPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return mMaxPoolSize;
+    }
+
+    /** Returns the number of requests waiting for a dispatcher. */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns how long the request at the head of the queue has been waiting, or 0. */
+    public long getHeadQueueWaitMs() {
+        Request<?> head = mQueue.peek();
+        return head == null ? 0 : getQueueWaitMs(head);
+    }
+
+    /** Returns the mean queue wait of all requests taken so far. */
+    public long getAverageQueueWaitMs() {
+        long taken = mTakenCount.get();
+        return taken == 0 ? 0 : mTotalQueueWaitMs.get() / taken;
+    }
+
+    /** Returns the longest queue wait observed so far. */
+    public long getMaxQueueWaitMs() {
+        return mMaxQueueWaitMs;
+    }
+
+    /** Returns the number of requests taken off the queue so far. */
+    public long getTakenCount() {
+        return mTakenCount.get();
+    }
+
+    private static long getQueueWaitMs(Request<?> request) {
+        long queuedAt = request.getNetworkQueuedTime();
+        return queuedAt == 0 ? 0 : SystemClock.elapsedRealtime() - queuedAt;
+    }
+
+    /** Must be called with the lock held. */
+    private void startDispatcher() {
+        NetworkDispatcher dispatcher = new NetworkDispatcher(mQueue, mNetwork, mCache,
+                mDelivery, this);
+        if (mPaused) {
+            dispatcher.pauseTask();
+        }
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+
+    /**
+     * Calls {@link #maybeGrow()} every target queue wait while the queue is not empty, and
+     * sleeps until the next request is queued otherwise.
+     */
+    private class Watchdog extends Thread {
+        private volatile boolean mQuit = false;
+        private final Object mLock = new Object();
+
+        Watchdog() {
+            super("Volley-NetworkPoolWatchdog");
+            setDaemon(true);
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
+
+        void wake() {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit) {
+                try {
+                    synchronized (mLock) {
+                        // Requests held back by the queue's per-host limit don't show up in
+                        // peek() and aren't reported when released, so look again now and then.
+                        if (!mQuit && mQueue.peek() == null) {
+                            mLock.wait(mKeepAliveMs);
+                        }
+                    }
+                    Thread.sleep(Math.max(1, mTargetQueueWaitMs));
+                } catch (InterruptedException e) {
+                    if (mQuit) {
+                        return;
+                    }
+                    continue;
+                }
+                maybeGrow();
+            }
+        }
+    }
+}
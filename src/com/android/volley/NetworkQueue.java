@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * A host-aware blocking queue of requests going out to the network.
+ *
+ * <p>Requests are kept in one priority queue per host. A take hands out the highest
+ * {@link Request.Priority} head among hosts that are below their in-flight limit, rotating
+ * round-robin between hosts whose heads share that priority. A request counts as in flight
+ * for its host from the moment it is taken until {@link #finished(Request)} is called for it,
+ * so a slow host can never hold more than its limit of dispatchers.</p>
+ */
+public class NetworkQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** Default number of requests that may be in flight to one host at a time. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    /** Guards every field below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled whenever a request may have become available for taking. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /**
+     * Per-host state, in round-robin order. A host is moved to the back each time one of
+     * its requests is taken, and dropped once it has nothing queued or in flight.
+     */
+    private final LinkedHashMap<String, HostQueue> mHosts = new LinkedHashMap<String, HostQueue>();
+
+    /** Host each queued or in-flight request was filed under. */
+    private final Map<Request<?>, String> mRequestHosts = new HashMap<Request<?>, String>();
+
+    /** Total number of queued requests across hosts. */
+    private int mCount = 0;
+
+    private int mMaxRequestsPerHost;
+
+    /** Requests waiting for, or being serviced on behalf of, one host. */
+    private static class HostQueue {
+        final PriorityQueue<Request<?>> queue = new PriorityQueue<Request<?>>();
+        int inFlight = 0;
+    }
+
+    public NetworkQueue() {
+        this(DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * @param maxRequestsPerHost Number of requests that may be in flight to one host at a time
+     */
+    public NetworkQueue(int maxRequestsPerHost) {
+        setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Sets how many requests may be in flight to one host at a time. Requests already in
+     * flight are not affected.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be positive");
+        }
+        mLock.lock();
+        try {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Returns the host requests to the given URL are scheduled under.
+     */
+    static String hostOf(String url) {
+        if (url != null) {
+            Uri uri = Uri.parse(url);
+            if (uri != null && uri.getHost() != null) {
+                return uri.getHost();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Releases the in-flight slot a taken request holds on its host. Must be called once
+     * the network dispatcher is done with a request returned by take or poll.
+     */
+    public void finished(Request<?> request) {
+        mLock.lock();
+        try {
+            String host = mRequestHosts.remove(request);
+            if (host == null) {
+                return;
+            }
+            HostQueue hostQueue = mHosts.get(host);
+            if (hostQueue != null) {
+                hostQueue.inFlight--;
+                dropIfIdle(host, hostQueue);
+            }
+            mAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        String host = hostOf(request.getUrl());
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mHosts.get(host);
+            if (hostQueue == null) {
+                hostQueue = new HostQueue();
+                mHosts.put(host, hostQueue);
+            }
+            request.setNetworkQueuedTime(SystemClock.elapsedRealtime());
+            hostQueue.queue.offer(request);
+            mRequestHosts.put(request, host);
+            mCount++;
+            mAvailable.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                mAvailable.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mAvailable.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request the next take would hand out, or null if there is none or every
+     * host with queued requests is at its in-flight limit.
+     */
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = selectHost();
+            return hostQueue == null ? null : hostQueue.queue.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            String host = mRequestHosts.get(o);
+            HostQueue hostQueue = host == null ? null : mHosts.get(host);
+            if (hostQueue == null || !hostQueue.queue.remove(o)) {
+                return false;
+            }
+            mRequestHosts.remove(o);
+            mCount--;
+            dropIfIdle(host, hostQueue);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        mLock.lock();
+        try {
+            List<Request<?>> snapshot = new ArrayList<Request<?>>(mCount);
+            for (HostQueue hostQueue : mHosts.values()) {
+                snapshot.addAll(hostQueue.queue);
+            }
+            final Iterator<Request<?>> it = snapshot.iterator();
+            return new Iterator<Request<?>>() {
+                private Request<?> mLast;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Request<?> next() {
+                    mLast = it.next();
+                    return mLast;
+                }
+
+                @Override
+                public void remove() {
+                    if (mLast == null) {
+                        throw new IllegalStateException();
+                    }
+                    NetworkQueue.this.remove(mLast);
+                    mLast = null;
+                }
+            };
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drains the queued requests regardless of host limits. Drained requests are not
+     * considered in flight.
+     */
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Iterator<Map.Entry<String, HostQueue>> hosts = mHosts.entrySet().iterator();
+            while (n < maxElements && hosts.hasNext()) {
+                HostQueue hostQueue = hosts.next().getValue();
+                Request<?> request;
+                while (n < maxElements && (request = hostQueue.queue.poll()) != null) {
+                    mRequestHosts.remove(request);
+                    mCount--;
+                    c.add(request);
+                    n++;
+                }
+                if (hostQueue.queue.isEmpty() && hostQueue.inFlight == 0) {
+                    hosts.remove();
+                }
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued requests per host.
+     */
+    public Map<String, Integer> getQueueDepths() {
+        mLock.lock();
+        try {
+            Map<String, Integer> depths = new HashMap<String, Integer>();
+            for (Map.Entry<String, HostQueue> entry : mHosts.entrySet()) {
+                depths.put(entry.getKey(), entry.getValue().queue.size());
+            }
+            return depths;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued requests for the given host.
+     */
+    public int getQueueDepth(String host) {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mHosts.get(host);
+            return hostQueue == null ? 0 : hostQueue.queue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests currently in flight to the given host.
+     */
+    public int getInFlightCount(String host) {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mHosts.get(host);
+            return hostQueue == null ? 0 : hostQueue.inFlight;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Picks the host whose head goes next: the highest priority head among hosts below their
+     * limit, the earliest in round-robin order on ties. Must be called with the lock held.
+     */
+    private HostQueue selectHost() {
+        HostQueue best = null;
+        Request.Priority bestPriority = null;
+        for (HostQueue hostQueue : mHosts.values()) {
+            Request<?> head = hostQueue.queue.peek();
+            if (head == null || hostQueue.inFlight >= mMaxRequestsPerHost) {
+                continue;
+            }
+            Request.Priority priority = head.getPriority();
+            if (bestPriority == null || priority.ordinal() > bestPriority.ordinal()) {
+                best = hostQueue;
+                bestPriority = priority;
+            }
+        }
+        return best;
+    }
+
+    /** Must be called with the lock held. */
+    private Request<?> dequeue() {
+        HostQueue hostQueue = selectHost();
+        if (hostQueue == null) {
+            return null;
+        }
+        Request<?> request = hostQueue.queue.poll();
+        hostQueue.inFlight++;
+        mCount--;
+        // Move the host to the back of the rotation.
+        String host = mRequestHosts.get(request);
+        mHosts.remove(host);
+        mHosts.put(host, hostQueue);
+        return request;
+    }
+
+    /** Must be called with the lock held. */
+    private void dropIfIdle(String host, HostQueue hostQueue) {
+        if (hostQueue.queue.isEmpty() && hostQueue.inFlight == 0) {
+            mHosts.remove(host);
+        }
+    }
+}
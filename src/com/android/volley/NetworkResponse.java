@@ -36,6 +36,23 @@ public class NetworkResponse {
             boolean notModified) {
         this.statusCode = statusCode;
         this.data = data;
+        this.body = null;
+        this.headers = headers;
+        this.notModified = notModified;
+    }
+
+    /**
+     * Creates a response whose body is read from the cache on demand.
+     * @param statusCode the HTTP status code
+     * @param body Response body as kept by the cache
+     * @param headers Headers returned with this response, or null for none
+     * @param notModified True if the server returned a 304 and the data was already in cache
+     */
+    public NetworkResponse(int statusCode, Cache.Body body, Map<String, String> headers,
+            boolean notModified) {
+        this.statusCode = statusCode;
+        this.data = null;
+        this.body = body;
         this.headers = headers;
         this.notModified = notModified;
     }
@@ -51,9 +68,15 @@ public class NetworkResponse {
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response, or null if it is carried by {@link #body}. */
     public final byte[] data;
 
+    /**
+     * Cached body of this response, set instead of {@link #data} for requests that
+     * {@linkplain Request#canParseCacheBody() read cache hits as a stream}.
+     */
+    public final Cache.Body body;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
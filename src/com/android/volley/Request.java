@@ -103,6 +103,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     // A cheap variant of request tracing used to dump slow requests.
     private long mRequestBirthTime = 0;
 
+    /** Time this request was last put on the network queue, in elapsed realtime millis. */
+    private volatile long mNetworkQueuedTime = 0;
+
     /** Threshold at which we should log the request (even when debug logging is not enabled). */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
@@ -119,6 +122,37 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
 
+    /** Delivery for this request's results, or null to use its queue's routing. */
+    private volatile ResponseDelivery mResponseDelivery;
+
+    /**
+     * The request whose intermediate response is being delivered on the current thread; see
+     * ExecutorDelivery. Per thread, so deliveries running concurrently don't see each other's.
+     */
+    private static final ThreadLocal<Request<?>> sDeliveringIntermediate =
+            new ThreadLocal<Request<?>>();
+
+    /** Latest progress posted and not yet delivered, as count and current; guards itself. */
+    private final long[] mPendingLoading = new long[2];
+
+    /** Whether {@link #mDeliverPendingLoading} is queued. Guarded by mPendingLoading. */
+    private boolean mPendingLoadingQueued = false;
+
+    /** Delivers the latest pending progress; reused for every progress post. */
+    private final Runnable mDeliverPendingLoading = new Runnable() {
+        @Override
+        public void run() {
+            long count;
+            long current;
+            synchronized (mPendingLoading) {
+                mPendingLoadingQueued = false;
+                count = mPendingLoading[0];
+                current = mPendingLoading[1];
+            }
+            deliverLoading(count, current);
+        }
+    };
+
     /**
      * Creates a new request with the given URL and error listener.  Note that
      * the normal response listener is not provided here as delivery of responses
@@ -178,6 +212,27 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mTag;
     }
 
+    /**
+     * Routes this request's responses, errors and progress through the given delivery instead
+     * of the one its {@link RequestQueue} would pick, e.g. an {@link ExecutorDelivery} over a
+     * background executor for a consumer that isn't on the main thread, or
+     * {@link ExecutorDelivery#immediate()} to deliver on the dispatcher thread. Must be set
+     * before the request is added to a queue.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setResponseDelivery(ResponseDelivery delivery) {
+        mResponseDelivery = delivery;
+        return this;
+    }
+
+    /**
+     * Returns the delivery set with {@link #setResponseDelivery(ResponseDelivery)}, or null.
+     */
+    public ResponseDelivery getResponseDelivery() {
+        return mResponseDelivery;
+    }
+
     /**
      * @return A tag for use with {@link TrafficStats#setThreadStatsTag(int)}
      */
@@ -288,6 +343,20 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Records when this request was put on the network queue.  Used by {@link RequestQueue}.
+     */
+    void setNetworkQueuedTime(long elapsedRealtimeMs) {
+        mNetworkQueuedTime = elapsedRealtimeMs;
+    }
+
+    /**
+     * Returns when this request was last put on the network queue, or 0 if it never was.
+     */
+    long getNetworkQueuedTime() {
+        return mNetworkQueuedTime;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -552,6 +621,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mResponseDelivered;
     }
 
+    /**
+     * Returns true if {@link #parseNetworkResponse(NetworkResponse)} can read the body of a
+     * cache hit from {@link NetworkResponse#body} when {@link NetworkResponse#data} is null.
+     * Such requests are served with {@link Cache#getLazy(String)}, so large cached bodies are
+     * never copied onto the heap whole. Defaults to false.
+     */
+    public boolean canParseCacheBody() {
+        return false;
+    }
+
     /**
      * Subclasses must implement this to parse the raw network response
      * and return an appropriate response type. This method will be
@@ -601,6 +680,41 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Returns true while {@link #deliverResponse} is handed a soft-expired cached response
+     * that a fresher one from the network may follow, so listeners can tell the two apart.
+     * Only meaningful on the thread running the delivery.
+     */
+    public boolean isDeliveringIntermediate() {
+        return sDeliveringIntermediate.get() == this;
+    }
+
+    /**
+     * Marks the request whose intermediate response the calling thread is about to deliver,
+     * or null for a final one. Returns the previous mark, to be restored afterwards.
+     */
+    static Request<?> setDeliveringIntermediate(Request<?> request) {
+        Request<?> previous = sDeliveringIntermediate.get();
+        sDeliveringIntermediate.set(request);
+        return previous;
+    }
+
+    /**
+     * Records progress to deliver, replacing any not yet delivered. Returns the Runnable that
+     * delivers it if the caller must queue it, or null if it is already queued.
+     */
+    Runnable setPendingLoading(long count, long current) {
+        synchronized (mPendingLoading) {
+            mPendingLoading[0] = count;
+            mPendingLoading[1] = current;
+            if (mPendingLoadingQueued) {
+                return null;
+            }
+            mPendingLoadingQueued = true;
+            return mDeliverPendingLoading;
+        }
+    }
+
     /**
      * Our comparator sorts from high to low priority, and secondarily by
      * sequence number to provide FIFO ordering.
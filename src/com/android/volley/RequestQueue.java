@@ -16,12 +16,11 @@
 
 package com.android.volley;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -46,30 +45,115 @@ public class RequestQueue {
      * <ul>
      *     <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
      *          key.</li>
-     *     <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     *     <li>get(cacheKey) returns the bucket of waiting requests for the given cache key. The in
+     *          flight request is <em>not</em> contained in that bucket.</li>
      * </ul>
      */
-    private final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    private final ConcurrentHashMap<String, RequestBucket> mWaitingRequests =
+            new ConcurrentHashMap<String, RequestBucket>();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
+    private final ConcurrentHashMap<Request<?>, Boolean> mCurrentRequests =
+            new ConcurrentHashMap<Request<?>, Boolean>();
+
+    /** Current requests indexed by tag identity, for {@link #cancelAll(Object)}. */
+    private final ConcurrentHashMap<TagKey, RequestBucket> mTaggedRequests =
+            new ConcurrentHashMap<TagKey, RequestBucket>();
+
+    /**
+     * A set of requests that can be closed once its owner removes it from a concurrent map.
+     * Adders that find the bucket closed must retry against a fresh one, so no request is ever
+     * added to a bucket that has already been drained. Only contended by requests sharing a key.
+     */
+    private static class RequestBucket {
+        private final LinkedHashSet<Request<?>> mRequests = new LinkedHashSet<Request<?>>();
+        private boolean mClosed = false;
+
+        /** Returns false if the bucket has been closed and the caller must retry. */
+        synchronized boolean add(Request<?> request) {
+            if (mClosed) {
+                return false;
+            }
+            mRequests.add(request);
+            return true;
+        }
+
+        /**
+         * Removes the request; returns true if this left the bucket empty, in which case the
+         * bucket is closed and must be removed from its map.
+         */
+        synchronized boolean removeAndCloseIfEmpty(Request<?> request) {
+            mRequests.remove(request);
+            if (mRequests.isEmpty()) {
+                mClosed = true;
+            }
+            return mClosed;
+        }
+
+        /** Closes the bucket and returns its requests in insertion order. */
+        synchronized Collection<Request<?>> close() {
+            mClosed = true;
+            return new ArrayList<Request<?>>(mRequests);
+        }
+
+        /** Returns the requests currently in the bucket. */
+        synchronized Collection<Request<?>> snapshot() {
+            return new ArrayList<Request<?>>(mRequests);
+        }
+    }
+
+    /** Map key comparing request tags by identity, as {@link #cancelAll(Object)} does. */
+    private static class TagKey {
+        private final Object mTag;
+
+        TagKey(Object tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).mTag == mTag;
+        }
+    }
 
     /** The cache triage queue. */
     private final PriorityBlockingQueue<Request<?>> mCacheQueue =
         new PriorityBlockingQueue<Request<?>>();
 
-    /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    /**
+     * The queue of requests that are actually going out to the network, scheduled fairly
+     * across hosts. Every insertion is reported to the dispatch strategy, e.g. giving the
+     * dispatcher pool a chance to grow.
+     */
+    private final NetworkQueue mNetworkQueue = new NetworkQueue() {
+        @Override
+        public boolean offer(Request<?> request) {
+            boolean added = super.offer(request);
+            mDispatchStrategy.onRequestQueued();
+            return added;
+        }
+    };
+
+    /**
+     * Number of canceled requests above which {@link #cancelAll} drains and refills the cache
+     * queue rather than removing each request with a linear scan.
+     */
+    private static final int CACHE_QUEUE_BULK_DROP_THRESHOLD = 16;
+
+    /** Number of network dispatcher threads kept alive by the default elastic pool. */
+    private static final int DEFAULT_MIN_NETWORK_THREAD_POOL_SIZE = 2;
 
-    /** Number of network request dispatcher threads to start. */
-    private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+    /** Upper bound on network dispatcher threads for the default elastic pool. */
+    private static final int DEFAULT_MAX_NETWORK_THREAD_POOL_SIZE = 8;
 
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
@@ -80,8 +164,38 @@ public class RequestQueue {
     /** Response delivery mechanism. */
     private final ResponseDelivery mDelivery;
 
-    /** The network dispatchers. */
-    private NetworkDispatcher[] mDispatchers;
+    /** Deliveries chosen for requests by tag. */
+    private final ConcurrentHashMap<TagKey, ResponseDelivery> mTagDeliveries =
+            new ConcurrentHashMap<TagKey, ResponseDelivery>();
+
+    /**
+     * The delivery handed to the dispatchers. Routes each result to the request's own delivery
+     * if it has one, else to the one registered for its tag, else to the default.
+     */
+    private final ResponseDelivery mRouter = new ResponseDelivery() {
+        @Override
+        public void postResponse(Request<?> request, Response<?> response) {
+            deliveryFor(request).postResponse(request, response);
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+            deliveryFor(request).postResponse(request, response, runnable);
+        }
+
+        @Override
+        public void postError(Request<?> request, VolleyError error) {
+            deliveryFor(request).postError(request, error);
+        }
+
+        @Override
+        public void postLoading(Request<?> request, long count, long current) {
+            deliveryFor(request).postLoading(request, count, current);
+        }
+    };
+
+    /** Runs the requests on the network queue. */
+    private final NetworkDispatchStrategy mDispatchStrategy;
 
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
@@ -96,10 +210,45 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
             ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, threadPoolSize,
+                NetworkDispatcherPool.DEFAULT_KEEP_ALIVE_MS,
+                NetworkDispatcherPool.DEFAULT_TARGET_QUEUE_WAIT_MS, delivery);
+    }
+
+    /**
+     * Creates the worker pool with an elastic number of network dispatchers. Processing will
+     * not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minPoolSize Number of network dispatcher threads that are always kept alive
+     * @param maxPoolSize Maximum number of network dispatcher threads
+     * @param keepAliveMs Idle time after which a dispatcher above the minimum exits
+     * @param targetQueueWaitMs Network queue wait above which another dispatcher is started
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int minPoolSize, int maxPoolSize,
+            long keepAliveMs, long targetQueueWaitMs, ResponseDelivery delivery) {
+        this(cache, network, NetworkDispatcherPool.factory(minPoolSize, maxPoolSize,
+                keepAliveMs, targetQueueWaitMs), delivery);
+    }
+
+    /**
+     * Creates the worker pool with the given network dispatch strategy, e.g.
+     * {@link NetworkDispatcherPool#factory} or {@link ThreadPerRequestDispatcher#factory}.
+     * Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param dispatchStrategy Creates the strategy running the network queue's requests
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network,
+            NetworkDispatchStrategy.Factory dispatchStrategy, ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
+        mDispatchStrategy = dispatchStrategy.create(mNetworkQueue, network, cache, mRouter);
     }
 
     /**
@@ -115,13 +264,54 @@ public class RequestQueue {
     }
 
     /**
-     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     * Creates the worker pool with an elastic number of network dispatchers. Processing will
+     * not begin until {@link #start()} is called.
      *
      * @param cache A Cache to use for persisting responses to disk
      * @param network A Network interface for performing HTTP requests
      */
     public RequestQueue(Cache cache, Network network) {
-        this(cache, network, DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        this(cache, network, DEFAULT_MIN_NETWORK_THREAD_POOL_SIZE,
+                DEFAULT_MAX_NETWORK_THREAD_POOL_SIZE, NetworkDispatcherPool.DEFAULT_KEEP_ALIVE_MS,
+                NetworkDispatcherPool.DEFAULT_TARGET_QUEUE_WAIT_MS,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    /**
+     * Routes the results of requests with the given tag through the given delivery, unless a
+     * request has its own {@link Request#setResponseDelivery(ResponseDelivery)}. Tags are
+     * compared by identity, as for {@link #cancelAll(Object)}.
+     *
+     * @param tag The tag to route
+     * @param delivery The delivery to use, or null to go back to the queue's default
+     */
+    public void setDeliveryForTag(Object tag, ResponseDelivery delivery) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot route a null tag");
+        }
+        if (delivery == null) {
+            mTagDeliveries.remove(new TagKey(tag));
+        } else {
+            mTagDeliveries.put(new TagKey(tag), delivery);
+        }
+    }
+
+    /**
+     * Returns the delivery the results of the given request go through.
+     */
+    ResponseDelivery deliveryFor(Request<?> request) {
+        ResponseDelivery delivery = request.getResponseDelivery();
+        if (delivery != null) {
+            return delivery;
+        }
+        Object tag = request.getTag();
+        if (tag != null && !mTagDeliveries.isEmpty()) {
+            delivery = mTagDeliveries.get(new TagKey(tag));
+            if (delivery != null) {
+                return delivery;
+            }
+        }
+        return mDelivery;
     }
 
     /**
@@ -130,16 +320,12 @@ public class RequestQueue {
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
         // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mRouter);
         mCacheDispatcher.start();
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
-        }
+        // Start the network dispatch, e.g. dispatchers up to the minimum pool size; the pool
+        // adds more as the network queue backs up.
+        mDispatchStrategy.start();
     }
 
     /**
@@ -149,11 +335,7 @@ public class RequestQueue {
         if (mCacheDispatcher != null) {
             mCacheDispatcher.quit();
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].quit();
-            }
-        }
+        mDispatchStrategy.quit();
     }
     
     // chenbo add
@@ -161,22 +343,14 @@ public class RequestQueue {
         if (mCacheDispatcher != null) {
             mCacheDispatcher.resumeTask();
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].resumeTask();
-            }
-        }
+        mDispatchStrategy.resume();
     }
     
     public void pause() {
         if (mCacheDispatcher != null) {
             mCacheDispatcher.pauseTask();
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].pauseTask();
-            }
-        }
+        mDispatchStrategy.pause();
     }
     
     // end
@@ -188,6 +362,37 @@ public class RequestQueue {
         return mSequenceGenerator.incrementAndGet();
     }
 
+    /**
+     * Gets the network dispatcher pool, for its current size and queue-wait statistics, or
+     * null if the queue uses another {@link NetworkDispatchStrategy}.
+     */
+    public NetworkDispatcherPool getNetworkDispatcherPool() {
+        return mDispatchStrategy instanceof NetworkDispatcherPool
+                ? (NetworkDispatcherPool) mDispatchStrategy : null;
+    }
+
+    /**
+     * Gets the strategy running the requests on the network queue.
+     */
+    public NetworkDispatchStrategy getNetworkDispatchStrategy() {
+        return mDispatchStrategy;
+    }
+
+    /**
+     * Sets how many requests may be in flight to a single host at a time, so that a slow host
+     * cannot occupy every network dispatcher.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mNetworkQueue.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Gets the network queue, for its per-host queue depths and in-flight counts.
+     */
+    public NetworkQueue getNetworkQueue() {
+        return mNetworkQueue;
+    }
+
     /**
      * Gets the {@link Cache} instance being used.
      */
@@ -208,13 +413,14 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        List<Request<?>> canceled = new ArrayList<Request<?>>();
+        for (Request<?> request : mCurrentRequests.keySet()) {
+            if (filter.apply(request)) {
+                request.cancel();
+                canceled.add(request);
             }
         }
+        dropCanceled(canceled);
     }
 
     /**
@@ -225,12 +431,56 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+        RequestBucket tagged = mTaggedRequests.get(new TagKey(tag));
+        if (tagged == null) {
+            return;
+        }
+        Collection<Request<?>> canceled = tagged.snapshot();
+        for (Request<?> request : canceled) {
+            request.cancel();
+        }
+        dropCanceled(canceled);
+    }
+
+    /**
+     * Takes freshly canceled requests off the network and cache queues and finishes them, rather
+     * than leaving them for the dispatchers to discard one at a time. Requests a dispatcher has
+     * already taken are left to it.
+     */
+    private void dropCanceled(Collection<Request<?>> canceled) {
+        if (canceled.isEmpty()) {
+            return;
+        }
+        List<Request<?>> dropped = new ArrayList<Request<?>>();
+        for (Request<?> request : canceled) {
+            if (mNetworkQueue.remove(request)) {
+                dropped.add(request);
+            }
+        }
+        if (!mCacheQueue.isEmpty()) {
+            if (canceled.size() < CACHE_QUEUE_BULK_DROP_THRESHOLD) {
+                for (Request<?> request : canceled) {
+                    if (mCacheQueue.remove(request)) {
+                        dropped.add(request);
+                    }
+                }
+            } else {
+                // Removing one by one costs a scan of the queue each; drain it once instead
+                // and put back everything that is still live.
+                List<Request<?>> drained = new ArrayList<Request<?>>(mCacheQueue.size());
+                mCacheQueue.drainTo(drained);
+                for (Request<?> request : drained) {
+                    if (request.isCanceled()) {
+                        dropped.add(request);
+                    } else {
+                        mCacheQueue.add(request);
+                    }
+                }
             }
-        });
+        }
+        for (Request<?> request : dropped) {
+            request.finish("cancel-dequeued");
+        }
     }
 
     /**
@@ -241,8 +491,9 @@ public class RequestQueue {
     public <T> Request<T> add(Request<T> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
+        mCurrentRequests.put(request, Boolean.TRUE);
+        if (request.getTag() != null) {
+            addToBucket(mTaggedRequests, new TagKey(request.getTag()), request);
         }
 
         // Process requests in the order they are added.
@@ -256,26 +507,27 @@ public class RequestQueue {
         }
 
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
+        String cacheKey = request.getCacheKey();
+        while (true) {
+            RequestBucket stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null) {
+                // Insert an empty bucket for this cacheKey, indicating there is now a request
+                // in flight.
+                stagedRequests = mWaitingRequests.putIfAbsent(cacheKey, new RequestBucket());
                 if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request<?>>();
+                    mCacheQueue.add(request);
+                    return request;
                 }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+            }
+            // There is already a request in flight. Queue up, unless the in flight request
+            // finished and released the bucket in the meantime.
+            if (stagedRequests.add(request)) {
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                return request;
             }
-            return request;
+            mWaitingRequests.remove(cacheKey, stagedRequests);
         }
     }
 
@@ -288,15 +540,17 @@ public class RequestQueue {
      */
     void finish(Request<?> request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+        mCurrentRequests.remove(request);
+        if (request.getTag() != null) {
+            removeFromBucket(mTaggedRequests, new TagKey(request.getTag()), request);
         }
 
         if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
+            String cacheKey = request.getCacheKey();
+            RequestBucket stagedRequests = mWaitingRequests.remove(cacheKey);
+            if (stagedRequests != null) {
+                Collection<Request<?>> waitingRequests = stagedRequests.close();
+                if (!waitingRequests.isEmpty()) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
                                 waitingRequests.size(), cacheKey);
@@ -308,4 +562,31 @@ public class RequestQueue {
             }
         }
     }
+
+    private static <K> void addToBucket(ConcurrentHashMap<K, RequestBucket> buckets, K key,
+            Request<?> request) {
+        while (true) {
+            RequestBucket bucket = buckets.get(key);
+            if (bucket == null) {
+                RequestBucket fresh = new RequestBucket();
+                bucket = buckets.putIfAbsent(key, fresh);
+                if (bucket == null) {
+                    bucket = fresh;
+                }
+            }
+            if (bucket.add(request)) {
+                return;
+            }
+            // Lost a race with the removal of the last request; retry on a fresh bucket.
+            buckets.remove(key, bucket);
+        }
+    }
+
+    private static <K> void removeFromBucket(ConcurrentHashMap<K, RequestBucket> buckets, K key,
+            Request<?> request) {
+        RequestBucket bucket = buckets.get(key);
+        if (bucket != null && bucket.removeAndCloseIfEmpty(request)) {
+            buckets.remove(key, bucket);
+        }
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * A {@link NetworkDispatchStrategy} that performs every request on a thread of its own, with
+ * no cap on the number of requests in flight.
+ *
+ * <p>One feeder thread takes requests off the network queue and hands each to an
+ * {@link Executor}, which by default starts a new background thread per request. Slow
+ * requests such as long polls then never hold up the rest, at the cost of a thread each; the
+ * per-host limit of the {@link NetworkQueue} still applies. A runtime with cheaper threads can
+ * supply an executor that starts those instead.</p>
+ */
+public class ThreadPerRequestDispatcher implements NetworkDispatchStrategy {
+
+    private final BlockingQueue<Request<?>> mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+
+    /** Runs each request. */
+    private final Executor mExecutor;
+
+    /** The thread taking requests off the queue, or null when not started. */
+    private Feeder mFeeder;
+
+    /** Whether dispatch is paused; a new feeder starts paused too. Guarded by {@code this}. */
+    private boolean mPaused = false;
+
+    private final AtomicInteger mInFlightCount = new AtomicInteger();
+    private final AtomicLong mDispatchedCount = new AtomicLong();
+    private volatile int mPeakInFlightCount = 0;
+
+    /** Number of request threads started so far, for their names. */
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    /**
+     * Starts a new background thread per request.
+     *
+     * @param queue Queue of requests going out to the network
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     */
+    public ThreadPerRequestDispatcher(BlockingQueue<Request<?>> queue, Network network,
+            Cache cache, ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    /**
+     * @param queue Queue of requests going out to the network
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param executor Runs each request, or null for a new background thread per request
+     */
+    public ThreadPerRequestDispatcher(BlockingQueue<Request<?>> queue, Network network,
+            Cache cache, ResponseDelivery delivery, Executor executor) {
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mExecutor = executor != null ? executor : new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        command.run();
+                    }
+                }, "Volley-Request-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        };
+    }
+
+    /**
+     * Returns a factory for dispatchers running requests on the given executor, for
+     * {@link RequestQueue#RequestQueue(Cache, Network, NetworkDispatchStrategy.Factory,
+     * ResponseDelivery)}.
+     *
+     * @param executor Runs each request, or null for a new background thread per request
+     */
+    public static NetworkDispatchStrategy.Factory factory(final Executor executor) {
+        return new NetworkDispatchStrategy.Factory() {
+            @Override
+            public NetworkDispatchStrategy create(BlockingQueue<Request<?>> queue,
+                    Network network, Cache cache, ResponseDelivery delivery) {
+                return new ThreadPerRequestDispatcher(queue, network, cache, delivery,
+                        executor);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void start() {
+        quit();
+        mFeeder = new Feeder();
+        if (mPaused) {
+            mFeeder.pauseTask();
+        }
+        mFeeder.start();
+    }
+
+    @Override
+    public synchronized void quit() {
+        if (mFeeder != null) {
+            mFeeder.quit();
+            mFeeder = null;
+        }
+    }
+
+    @Override
+    public synchronized void pause() {
+        mPaused = true;
+        if (mFeeder != null) {
+            mFeeder.pauseTask();
+        }
+    }
+
+    @Override
+    public synchronized void resume() {
+        mPaused = false;
+        if (mFeeder != null) {
+            mFeeder.resumeTask();
+        }
+    }
+
+    @Override
+    public void onRequestQueued() {
+        // The feeder takes every request as soon as the queue releases it.
+    }
+
+    /** Returns the number of requests currently being performed. */
+    public int getInFlightCount() {
+        return mInFlightCount.get();
+    }
+
+    /** Returns the largest number of requests performed at once so far. */
+    public int getPeakInFlightCount() {
+        return mPeakInFlightCount;
+    }
+
+    /** Returns the number of requests handed to the executor so far. */
+    public long getDispatchedCount() {
+        return mDispatchedCount.get();
+    }
+
+    /**
+     * Hands one request to the executor, counting it while it runs.
+     */
+    private void dispatch(final Request<?> request) {
+        int inFlight = mInFlightCount.incrementAndGet();
+        if (inFlight > mPeakInFlightCount) {
+            mPeakInFlightCount = inFlight;
+        }
+        mDispatchedCount.incrementAndGet();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        NetworkDispatcher.dispatch(request, mQueue, mNetwork, mCache,
+                                mDelivery);
+                    } finally {
+                        mInFlightCount.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // The executor refused the request, e.g. because it was shut down.
+            mInFlightCount.decrementAndGet();
+            VolleyLog.e(e, "Could not dispatch %s", request.getUrl());
+            mDelivery.postError(request, new VolleyError(e));
+            if (mQueue instanceof NetworkQueue) {
+                ((NetworkQueue) mQueue).finished(request);
+            }
+        }
+    }
+
+    /**
+     * Takes requests off the queue and dispatches each as soon as it is released.
+     */
+    private class Feeder extends Thread {
+        private volatile boolean mQuit = false;
+        private volatile boolean mPause = false;
+        private final Object mPauseLock = new Object();
+
+        Feeder() {
+            super("Volley-NetworkFeeder");
+        }
+
+        void quit() {
+            resumeTask();
+            mQuit = true;
+            interrupt();
+        }
+
+        void resumeTask() {
+            mPause = false;
+            synchronized (mPauseLock) {
+                mPauseLock.notifyAll();
+            }
+        }
+
+        void pauseTask() {
+            mPause = true;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit) {
+                Request<?> request;
+                try {
+                    synchronized (mPauseLock) {
+                        while (mPause && !mQuit) {
+                            mPauseLock.wait();
+                        }
+                    }
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    if (mQuit) {
+                        return;
+                    }
+                    continue;
+                }
+                request.addMarker("network-queue-take");
+                dispatch(request);
+            }
+        }
+    }
+}
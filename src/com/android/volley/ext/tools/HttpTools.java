@@ -6,16 +6,22 @@ import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.ExecutorDelivery;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
+import com.android.volley.ResponseDelivery;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
@@ -32,9 +38,37 @@ public class HttpTools {
     private Context mContext;
     private static RequestQueue sRequestQueue;
     private static RequestQueue sDownloadQueue;     
+    /** Delivery for this instance's callbacks, or null for the main thread. */
+    private final ResponseDelivery mDelivery;
+    /** Executor for this instance's callbacks of batched calls. */
+    private final Executor mCallbackExecutor;
+    /** Batchers of the endpoint families whose calls are sent in batches. */
+    private static final CopyOnWriteArrayList<RequestBatcher> sBatchers = new CopyOnWriteArrayList<RequestBatcher>();
 
     public HttpTools(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Creates an instance whose {@link HttpCallback} results and progress are called on the
+     * given executor instead of the main thread, e.g. for a background sync job. onStart, and
+     * onError for an empty url, are still called on the calling thread.
+     * @param context
+     * @param callbackExecutor Executor for the callbacks, or null for the main thread
+     */
+    public HttpTools(Context context, Executor callbackExecutor) {
         mContext = context.getApplicationContext();
+        mDelivery = callbackExecutor == null ? null : new ExecutorDelivery(callbackExecutor);
+        if (callbackExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            callbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        mCallbackExecutor = callbackExecutor;
     }
     
     public static void init(Context context) {
@@ -53,6 +87,19 @@ public class HttpTools {
     public static RequestQueue getHttpRequestQueue() {
         return sRequestQueue;
     }
+
+    /**
+     * Sends get, post, put and delete calls to the batcher's endpoint family in batches
+     * through the given batcher, from every instance.
+     * @param batcher
+     */
+    public static void addBatcher(RequestBatcher batcher) {
+        sBatchers.addIfAbsent(batcher);
+    }
+
+    public static void removeBatcher(RequestBatcher batcher) {
+        sBatchers.remove(batcher);
+    }
     
     /**
      * get 请求
@@ -233,6 +280,7 @@ public class HttpTools {
             }
         }
         request.setTag(this);
+        request.setResponseDelivery(mDelivery);
         sRequestQueue.add(request);
     }
     
@@ -316,6 +364,7 @@ public class HttpTools {
         if (sDownloadQueue == null) {
             sDownloadQueue = Volley.newNoCacheRequestQueue(mContext);
         }
+        request.setResponseDelivery(mDelivery);
         sDownloadQueue.add(request);
         return request;
     
@@ -330,6 +379,9 @@ public class HttpTools {
             sRequestQueue = Volley.newNoCacheRequestQueue(mContext);
         }
     	request.setTag(this);
+    	if (mDelivery != null && request.getResponseDelivery() == null) {
+    	    request.setResponseDelivery(mDelivery);
+    	}
         sRequestQueue.add(request);
     }
     
@@ -347,6 +399,12 @@ public class HttpTools {
             }
             return;
         }
+        for (RequestBatcher batcher : sBatchers) {
+            if (batcher.accepts(requestInfo.url)) {
+                batcher.add(sRequestQueue, method, requestInfo, httpResult, mCallbackExecutor, this);
+                return;
+            }
+        }
         switch (method) {
         case Request.Method.GET:
             requestInfo.url = requestInfo.getFullUrl();
@@ -411,6 +469,7 @@ public class HttpTools {
             }
         };
         request.setTag(this);
+        request.setResponseDelivery(mDelivery);
         sRequestQueue.add(request);
     }
     
@@ -418,6 +477,9 @@ public class HttpTools {
         if (sRequestQueue != null) {
             sRequestQueue.cancelAll(this);
         }
+        for (RequestBatcher batcher : sBatchers) {
+            batcher.cancelAll(this);
+        }
     }
     
     public void quitDownloadQueue() {
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.ext.tools;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Process;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import com.android.volley.ext.HttpCallback;
+import com.android.volley.ext.RequestInfo;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.JsonRequest;
+
+/**
+ * Coalesces the calls {@link HttpTools} makes to one family of endpoints into batch
+ * requests, one HTTP round trip for many small calls.
+ *
+ * <p>Calls whose url starts with the family's prefix are held for up to the batch window, or
+ * until the batch is full, and then sent together as a single POST to the batch url. The body
+ * is a JSON array with one object per call:</p>
+ * <pre>
+ * [{"method":"GET","url":"http://api.example.com/user?id=1","headers":{...}},
+ *  {"method":"POST","url":"http://api.example.com/like","params":{"id":"2"},"headers":{...}}]
+ * </pre>
+ * <p>and the server answers with an array of the same length and order:</p>
+ * <pre>
+ * [{"status":200,"body":"..."}, {"status":404,"body":"..."}]
+ * </pre>
+ * <p>Each result goes to its call's {@link HttpCallback}: 2xx statuses to onResult, others to
+ * onError. If the batch itself fails, every call in it fails with the same error. Servers with
+ * another envelope can be served by overriding {@link #encodeCall} and {@link #decodeResult}.
+ * Callbacks are posted on the executor of the {@link HttpTools} that made the call, one task
+ * per executor per batch.</p>
+ */
+public class RequestBatcher {
+
+    /** Default time a call waits for others to join its batch. */
+    public static final long DEFAULT_WINDOW_MS = 20;
+
+    /** Default number of calls that closes a batch before its window ends. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+    /** Runs the window timers of all batchers. */
+    private static ScheduledExecutorService sTimer;
+
+    private final String mUrlPrefix;
+    private final String mBatchUrl;
+    private final long mWindowMs;
+    private final int mMaxBatchSize;
+
+    /** Calls waiting for their batch to be sent. Guarded by {@code this}. */
+    private List<Call> mPending = new ArrayList<Call>();
+
+    /** Calls of batches sent and not yet answered. Guarded by {@code this}. */
+    private final List<Call> mInFlight = new ArrayList<Call>();
+
+    /** Window timer of the pending batch, or null. Guarded by {@code this}. */
+    private ScheduledFuture<?> mFlush;
+
+    private final AtomicLong mCallCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+
+    /** One call waiting for, or travelling in, a batch. */
+    private static class Call {
+        final int method;
+        final RequestInfo info;
+        final HttpCallback callback;
+        final Executor executor;
+        final Object owner;
+        volatile boolean canceled = false;
+
+        Call(int method, RequestInfo info, HttpCallback callback, Executor executor,
+                Object owner) {
+            this.method = method;
+            this.info = info;
+            this.callback = callback;
+            this.executor = executor;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Batches with the {@link #DEFAULT_WINDOW_MS default window} and
+     * {@link #DEFAULT_MAX_BATCH_SIZE size}.
+     *
+     * @param urlPrefix Prefix of the urls of the endpoint family, e.g. "http://api.example.com/"
+     * @param batchUrl Url of the endpoint accepting batches of that family
+     */
+    public RequestBatcher(String urlPrefix, String batchUrl) {
+        this(urlPrefix, batchUrl, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param urlPrefix Prefix of the urls of the endpoint family, e.g. "http://api.example.com/"
+     * @param batchUrl Url of the endpoint accepting batches of that family
+     * @param windowMs Time the first call of a batch waits for others to join
+     * @param maxBatchSize Number of calls that sends a batch before its window ends
+     */
+    public RequestBatcher(String urlPrefix, String batchUrl, long windowMs, int maxBatchSize) {
+        if (windowMs < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch window " + windowMs
+                    + " or size " + maxBatchSize);
+        }
+        mUrlPrefix = urlPrefix;
+        mBatchUrl = batchUrl;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /** Returns true if calls to the given url belong to this batcher's endpoint family. */
+    public boolean accepts(String url) {
+        return url != null && url.startsWith(mUrlPrefix) && !url.equals(mBatchUrl);
+    }
+
+    /** Returns the number of calls batched so far. */
+    public long getCallCount() {
+        return mCallCount.get();
+    }
+
+    /** Returns the number of batches sent so far. */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /** Returns the number of HTTP round trips the batches saved so far. */
+    public long getRoundTripsSaved() {
+        return mCallCount.get() - mBatchCount.get();
+    }
+
+    /**
+     * Adds a call to the pending batch, sending it if it is now full.
+     *
+     * @param queue Queue to send the batch on
+     * @param method One of the {@link Request.Method} constants
+     * @param info Url, parameters and headers of the call
+     * @param callback Receives the result, or null
+     * @param executor Executor the callback is called on
+     * @param owner The {@link HttpTools} making the call, for {@link #cancelAll(Object)}
+     */
+    void add(RequestQueue queue, int method, RequestInfo info, HttpCallback callback,
+            Executor executor, Object owner) {
+        mCallCount.incrementAndGet();
+        List<Call> full = null;
+        synchronized (this) {
+            mPending.add(new Call(method, info, callback, executor, owner));
+            if (mPending.size() >= mMaxBatchSize) {
+                full = takePendingLocked();
+            } else if (mFlush == null) {
+                mFlush = getTimer().schedule(new FlushTask(queue), mWindowMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(queue, full);
+        }
+    }
+
+    /**
+     * Cancels the calls of the given owner, pending or in flight; their callbacks get
+     * onCancelled on their executor, and nothing else.
+     */
+    public void cancelAll(Object owner) {
+        List<Call> canceled = new ArrayList<Call>();
+        synchronized (this) {
+            Iterator<Call> it = mPending.iterator();
+            while (it.hasNext()) {
+                Call call = it.next();
+                if (call.owner == owner) {
+                    it.remove();
+                    call.canceled = true;
+                    canceled.add(call);
+                }
+            }
+            for (Call call : mInFlight) {
+                if (call.owner == owner && !call.canceled) {
+                    call.canceled = true;
+                    canceled.add(call);
+                }
+            }
+        }
+        Map<Executor, List<Runnable>> byExecutor = new LinkedHashMap<Executor, List<Runnable>>();
+        for (final Call call : canceled) {
+            if (call.callback != null) {
+                tasksFor(byExecutor, call.executor).add(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.callback.onCancelled();
+                    }
+                });
+            }
+        }
+        post(byExecutor);
+    }
+
+    /** Must be called with the lock held. */
+    private List<Call> takePendingLocked() {
+        List<Call> calls = mPending;
+        mPending = new ArrayList<Call>();
+        if (mFlush != null) {
+            mFlush.cancel(false);
+            mFlush = null;
+        }
+        return calls;
+    }
+
+    /** Sends the pending batch when its window ends. */
+    private class FlushTask implements Runnable {
+        private final RequestQueue mQueue;
+
+        FlushTask(RequestQueue queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            List<Call> calls;
+            synchronized (RequestBatcher.this) {
+                mFlush = null;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                calls = takePendingLocked();
+            }
+            send(mQueue, calls);
+        }
+    }
+
+    /** Sends the given calls as one batch request. */
+    private void send(RequestQueue queue, final List<Call> calls) {
+        JSONArray body = new JSONArray();
+        try {
+            for (Call call : calls) {
+                body.put(encodeCall(call.method, call.info));
+            }
+        } catch (JSONException e) {
+            fail(calls, new ParseError(e));
+            return;
+        }
+        synchronized (this) {
+            mInFlight.addAll(calls);
+        }
+        mBatchCount.incrementAndGet();
+        VolleyLog.d("batch->%s\t,calls->%d", mBatchUrl, calls.size());
+        JsonRequest<JSONArray> request = new JsonRequest<JSONArray>(Request.Method.POST,
+                mBatchUrl, body.toString(), new Response.Listener<JSONArray>() {
+                    @Override
+                    public void onResponse(JSONArray results) {
+                        fanOut(calls, results);
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        fail(calls, error);
+                    }
+                }) {
+            @Override
+            protected Response<JSONArray> parseNetworkResponse(NetworkResponse response) {
+                try {
+                    String json = new String(response.data,
+                            HttpHeaderParser.parseCharset(response.headers));
+                    return Response.success(new JSONArray(json),
+                            HttpHeaderParser.parseCacheHeaders(response));
+                } catch (UnsupportedEncodingException e) {
+                    return Response.error(new ParseError(e));
+                } catch (JSONException e) {
+                    return Response.error(new ParseError(e));
+                }
+            }
+        };
+        // Results are split up on the network thread and posted per caller's executor.
+        request.setResponseDelivery(ExecutorDelivery.immediate());
+        // A POST is never answered from the cache, and a cacheable request with the same url
+        // as the one in flight would be held back until it finishes, one batch at a time.
+        request.setShouldCache(false);
+        queue.add(request);
+    }
+
+    /**
+     * Returns the batch body element for one call. Override for servers expecting another
+     * envelope.
+     */
+    protected JSONObject encodeCall(int method, RequestInfo info) throws JSONException {
+        JSONObject call = new JSONObject();
+        call.put("method", methodName(method));
+        boolean hasBody = method == Request.Method.POST || method == Request.Method.PUT;
+        call.put("url", hasBody ? info.getUrl() : info.getFullUrl());
+        if (hasBody && info.getParams() != null) {
+            call.put("params", new JSONObject(info.getParams()));
+        }
+        if (info.getHeaders() != null && !info.getHeaders().isEmpty()) {
+            call.put("headers", new JSONObject(info.getHeaders()));
+        }
+        return call;
+    }
+
+    /**
+     * Returns the body of one call's result, or throws the error it failed with. Override
+     * for servers answering with another envelope.
+     *
+     * @param result The element of the batch response for the call, or null if missing
+     */
+    protected String decodeResult(JSONObject result) throws VolleyError {
+        if (result == null) {
+            throw new VolleyError("No result for call in batch response");
+        }
+        int status = result.optInt("status", 200);
+        String body = result.optString("body", "");
+        if (status < 200 || status > 299) {
+            throw new VolleyError("HTTP " + status + " in batch: " + body);
+        }
+        return body;
+    }
+
+    private static String methodName(int method) {
+        switch (method) {
+            case Request.Method.POST:
+                return "POST";
+            case Request.Method.PUT:
+                return "PUT";
+            case Request.Method.DELETE:
+                return "DELETE";
+            default:
+                return "GET";
+        }
+    }
+
+    /** Hands each call its result, one task per callback executor. */
+    private void fanOut(List<Call> calls, JSONArray results) {
+        synchronized (this) {
+            mInFlight.removeAll(calls);
+        }
+        Map<Executor, List<Runnable>> byExecutor = new LinkedHashMap<Executor, List<Runnable>>();
+        for (int i = 0; i < calls.size(); i++) {
+            final Call call = calls.get(i);
+            if (call.callback == null) {
+                continue;
+            }
+            String body = null;
+            VolleyError error = null;
+            try {
+                body = decodeResult(i < results.length() ? results.optJSONObject(i) : null);
+            } catch (VolleyError e) {
+                error = e;
+            }
+            addTask(byExecutor, call, body, error);
+        }
+        post(byExecutor);
+    }
+
+    /** Fails every call of a batch with the same error. */
+    private void fail(List<Call> calls, VolleyError error) {
+        synchronized (this) {
+            mInFlight.removeAll(calls);
+        }
+        Map<Executor, List<Runnable>> byExecutor = new LinkedHashMap<Executor, List<Runnable>>();
+        for (Call call : calls) {
+            if (call.callback != null) {
+                addTask(byExecutor, call, null, error);
+            }
+        }
+        post(byExecutor);
+    }
+
+    private static List<Runnable> tasksFor(Map<Executor, List<Runnable>> byExecutor,
+            Executor executor) {
+        List<Runnable> tasks = byExecutor.get(executor);
+        if (tasks == null) {
+            tasks = new ArrayList<Runnable>();
+            byExecutor.put(executor, tasks);
+        }
+        return tasks;
+    }
+
+    private static void addTask(Map<Executor, List<Runnable>> byExecutor, final Call call,
+            final String body, final VolleyError error) {
+        tasksFor(byExecutor, call.executor).add(new Runnable() {
+            @Override
+            public void run() {
+                if (call.canceled) {
+                    return;
+                }
+                if (error != null) {
+                    call.callback.onError(error);
+                } else {
+                    call.callback.onResult(body);
+                }
+                call.callback.onFinish();
+            }
+        });
+    }
+
+    private static void post(Map<Executor, List<Runnable>> byExecutor) {
+        for (Map.Entry<Executor, List<Runnable>> entry : byExecutor.entrySet()) {
+            final List<Runnable> tasks = entry.getValue();
+            entry.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable task : tasks) {
+                        task.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Volley-Batcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
@@ -17,16 +17,25 @@
 package com.android.volley.toolbox;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -37,6 +46,7 @@ import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.cookie.DateUtils;
 
 import android.annotation.SuppressLint;
+import android.os.Process;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.webkit.URLUtil;
@@ -49,7 +59,7 @@ import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
 import com.android.volley.Request;
-import com.android.volley.Response.LoadingListener;
+import com.android.volley.Response;
 import com.android.volley.ResponseDelivery;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
@@ -65,7 +75,13 @@ public class BasicNetwork implements Network {
 
     private static int SLOW_REQUEST_THRESHOLD_MS = 3000;
 
-    private static int DEFAULT_POOL_SIZE = 4096;
+    private static int DEFAULT_POOL_SIZE = 256 * 1024;
+
+    /** Smallest segment a download is split into. */
+    private static final long MIN_SEGMENT_LENGTH = 1024 * 1024;
+
+    /** Runs the range requests of segmented downloads. */
+    private static ExecutorService sSegmentExecutor;
 
     protected final HttpStack mHttpStack;
 
@@ -113,13 +129,16 @@ public class BasicNetwork implements Network {
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
                     Entry entry = request.getCacheEntry();
                     if (entry == null) {
-                        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, null, responseHeaders, true);
+                        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, (byte[]) null, responseHeaders, true);
                     }
                     // A HTTP 304 response does not have all header fields. We
                     // have to use the header fields from the cache entry plus
                     // the new ones from the response.
                     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
                     entry.responseHeaders.putAll(responseHeaders);
+                    if (entry.data == null && entry.body != null) {
+                        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.body, entry.responseHeaders, true);
+                    }
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data, entry.responseHeaders, true);
                 }
                 
@@ -129,6 +148,17 @@ public class BasicNetwork implements Network {
                 	request.setRedirectUrl(newUrl);
                 }
 
+                // Streaming requests parse successful bodies straight off the connection.
+                if (request instanceof StreamingRequest && !request.shouldCache()
+                        && statusCode >= 200 && statusCode <= 299
+                        && httpResponse.getEntity() != null) {
+                    StreamedNetworkResponse streamed = streamEntity(delivery, request, statusCode,
+                            responseHeaders, httpResponse.getEntity());
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    logSlowRequests(requestLifetime, request, null, statusLine);
+                    return streamed;
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                     if (request instanceof DownloadRequest) {
@@ -143,7 +173,8 @@ public class BasicNetwork implements Network {
                         } else if (statusCode >= 300) {
                             responseContents = entityToBytes(delivery, request, httpResponse.getEntity());
                         } else {
-                            responseContents = handleEntity(delivery, (DownloadRequest) request, httpResponse.getEntity());
+                            responseContents = handleEntity(delivery, downloadRequest, statusCode,
+                                    responseHeaders, httpResponse.getEntity());
                         }
                     } else{
                         responseContents = entityToBytes(delivery, request, httpResponse.getEntity());
@@ -272,33 +303,23 @@ public class BasicNetwork implements Network {
         PoolingByteArrayOutputStream bytes =
                 new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
         byte[] buffer = null;
-        long time = SystemClock.uptimeMillis();
+        ProgressAggregator.Tracker progress = ProgressAggregator.getDefault().track(request,
+                delivery, entity.getContentLength(), 0);
         try {
             InputStream in = entity.getContent();
             if (in == null) {
                 throw new ServerError();
             }
             buffer = mPool.getBuf(1024);
-            long length = entity.getContentLength();
-            long current = 0;
             int count = -1;
-            LoadingListener listener = request.getLoadingListener();
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
-                current += count;
-                if (listener != null) {
-                    long thisTime = SystemClock.uptimeMillis();
-                    if(thisTime - time >= request.getRate()) {
-                        time = thisTime;
-                        delivery.postLoading(request, length == -1 ? current * 2 : length, current);
-                    }
-                }
-            }
-            if (listener != null) {
-                delivery.postLoading(request, length == -1 ? current : length, current);
+                progress.add(count);
             }
+            progress.finish();
             return bytes.toByteArray();
         } finally {
+            progress.release();
             try {
                 // Close the InputStream and release the resources by "consuming the content".
                 entity.consumeContent();
@@ -312,8 +333,45 @@ public class BasicNetwork implements Network {
         }
     }
     
-    private byte[] handleEntity(ResponseDelivery delivery, DownloadRequest request, HttpEntity entity) throws IOException, ServerError {
-        long time = SystemClock.uptimeMillis();
+    /**
+     * Hands the body of an HttpEntity to a {@link StreamingRequest} for parsing as it is read.
+     */
+    private StreamedNetworkResponse streamEntity(ResponseDelivery delivery, Request<?> request,
+            int statusCode, Map<String, String> responseHeaders, HttpEntity entity)
+            throws IOException, ServerError {
+        InputStream content = entity.getContent();
+        if (content == null) {
+            throw new ServerError();
+        }
+        LoadingInputStream in = new LoadingInputStream(content, delivery, request,
+                entity.getContentLength());
+        try {
+            NetworkResponse head = new NetworkResponse(statusCode, (byte[]) null, responseHeaders, false);
+            Response<?> parsed = ((StreamingRequest<?>) request).parseNetworkStream(head, in);
+            request.addMarker("network-stream-parsed");
+            return new StreamedNetworkResponse(statusCode, responseHeaders, parsed,
+                    in.getCount());
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                in.close();
+                entity.consumeContent();
+            } catch (IOException e) {
+                // This can happen if the parser stopped before the end of the body.
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
+    /**
+     * Writes the body of a download into its target file through a {@link DownloadEngine}.
+     * A 206 response to a resumed request continues from the checkpointed offset; anything
+     * else rewrites the target from the start. Requests with more than one segment are
+     * handed to {@link #handleSegmentedEntity} when the server honours ranges.
+     */
+    private byte[] handleEntity(ResponseDelivery delivery, DownloadRequest request,
+            int statusCode, Map<String, String> responseHeaders, HttpEntity entity)
+            throws IOException, ServerError {
         final String target = request.getTarget();
         if (TextUtils.isEmpty(target) || target.trim().length() == 0)
             return null;
@@ -327,48 +385,39 @@ public class BasicNetwork implements Network {
         if(request.isCanceled()){
             return target.getBytes();
         }
-        FileOutputStream os = null;
-        InputStream input = null;
-        try {
+        long[] contentRange = statusCode == HttpStatus.SC_PARTIAL_CONTENT
+                ? parseContentRange(responseHeaders.get("Content-Range")) : null;
+        DownloadCheckpoint checkpoint = null;
+        if (request.getSegmentCount() > 1 && contentRange != null && contentRange[1] > 0) {
+            checkpoint = segmentedCheckpoint(request, targetFile, contentRange[0],
+                    contentRange[1]);
+        }
+        if (checkpoint == null) {
             long current = 0;
-            if(request.isResume()){
-                current = targetFile.length();
-                os = new FileOutputStream(target, true);
-            }else{
-                os = new FileOutputStream(target);
-            }
-            
-            if(request.isCanceled()){
-                return target.getBytes();
+            if (contentRange != null) {
+                current = contentRange[0];
+            } else if (request.isResume() && statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                current = DownloadCheckpoint.getResumeOffset(targetFile);
             }
-                
+            long length = entity.getContentLength();
+            long count = length < 0 ? -1 : length + current;
+            checkpoint = DownloadCheckpoint.single(targetFile, count, current);
+        }
+        DownloadEngine engine = new DownloadEngine(request, delivery, checkpoint);
+        InputStream input = null;
+        try {
             input = entity.getContent();
-            long count = entity.getContentLength() + current;
-            
-            if(current >= count || request.isCanceled()){
-                return target.getBytes();
-            }
-            int readLen = 0;
-            byte[] buffer = new byte[1024];
-            LoadingListener listener = request.getLoadingListener();
-            while (!request.isCanceled() && !(current >= count) && ((readLen = input.read(buffer,0,1024)) > 0) ) {//δȫ����ȡ
-                os.write(buffer, 0, readLen);
-                current += readLen;
-                if (listener != null) {
-                    long thisTime = SystemClock.uptimeMillis();
-                    if(thisTime - time >= request.getRate()) {
-                        time = thisTime;
-                        delivery.postLoading(request, count, current);
-                    }
-                }
-            }
-            if (listener != null) {
-                delivery.postLoading(request, count, current);
+            if (input == null) {
+                throw new ServerError();
             }
-            if(request.isCanceled() && current < count){ //�û�����ֹͣ
-                throw new IOException("user stop download thread");
+            if (checkpoint.isSegmented()) {
+                handleSegmentedEntity(request, engine, input);
+            } else {
+                engine.transfer(input, checkpoint.getSegments().get(0));
             }
+            engine.complete();
         } finally {
+            engine.close();
             if (input != null) {
                 input.close();
             }
@@ -380,13 +429,177 @@ public class BasicNetwork implements Network {
                 // an invalid state.
                 VolleyLog.v("Error occured when calling consumingContent");
             }
-            if (os != null) {
-                os.close();
-            }
         }
         return target.getBytes();
     }
 
+    /**
+     * Returns the segmented checkpoint to continue with for a range response starting at the
+     * given offset, or null if the download should be fetched as a single stream.
+     */
+    private static DownloadCheckpoint segmentedCheckpoint(DownloadRequest request,
+            File targetFile, long start, long total) throws IOException {
+        if (request.isResume()) {
+            DownloadCheckpoint previous = DownloadCheckpoint.read(targetFile);
+            if (previous != null && previous.isSegmented()) {
+                if (previous.getTotalLength() == total
+                        && previous.getSegments().get(0).getCommitted() == start) {
+                    return previous;
+                }
+                // The target changed on the server, so the segments on disk cannot be
+                // trusted. Start over; a response that does not begin at 0 is of no use.
+                DownloadCheckpoint.delete(targetFile);
+                if (start != 0) {
+                    targetFile.delete();
+                    throw new IOException("Download checkpoint of " + targetFile
+                            + " does not match the server, discarded");
+                }
+            }
+        }
+        if (start != 0) {
+            // Resuming a single-stream download.
+            return null;
+        }
+        int count = (int) Math.min(request.getSegmentCount(), total / MIN_SEGMENT_LENGTH);
+        return count > 1 ? DownloadCheckpoint.split(targetFile, total, count) : null;
+    }
+
+    /**
+     * Fills the first segment from the response already open and fetches the other segments
+     * concurrently with range requests, all writing into one preallocated target.
+     */
+    private void handleSegmentedEntity(final DownloadRequest request,
+            final DownloadEngine engine, InputStream input) throws IOException {
+        DownloadCheckpoint checkpoint = engine.getCheckpoint();
+        engine.preallocate(checkpoint.getTotalLength());
+        request.addMarker("download-segmented-" + checkpoint.getSegments().size());
+
+        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+        List<DownloadCheckpoint.Segment> segments = checkpoint.getSegments();
+        for (int i = 1; i < segments.size(); i++) {
+            final DownloadCheckpoint.Segment segment = segments.get(i);
+            if (segment.isComplete()) {
+                continue;
+            }
+            pending.add(getSegmentExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    fetchSegment(request, engine, segment);
+                    return null;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        DownloadCheckpoint.Segment first = segments.get(0);
+        try {
+            engine.transfer(input, first);
+            if (!first.isComplete()) {
+                throw new IOException("Connection closed before end of segment");
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        // Wait for every segment even after a failure; the engine must outlive its writers.
+        for (Future<Void> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException
+                            ? (IOException) cause : new IOException(cause.toString());
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = new InterruptedIOException("Interrupted waiting for segments");
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Fetches the remaining bytes of one segment on a segment thread.
+     */
+    private void fetchSegment(DownloadRequest request, DownloadEngine engine,
+            DownloadCheckpoint.Segment segment) throws IOException, AuthFailureError {
+        HttpResponse response = mHttpStack.performRequest(request.newSegmentRequest(segment),
+                Collections.<String, String>emptyMap());
+        HttpEntity entity = response.getEntity();
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT || entity == null) {
+                throw new IOException("Unexpected response code " + statusCode
+                        + " for segment " + segment.start + "-" + segment.end);
+            }
+            InputStream in = entity.getContent();
+            try {
+                engine.transfer(in, segment);
+            } finally {
+                in.close();
+            }
+            if (!segment.isComplete() && !request.isCanceled()) {
+                throw new IOException("Connection closed before end of segment");
+            }
+        } finally {
+            if (entity != null) {
+                try {
+                    entity.consumeContent();
+                } catch (IOException e) {
+                    VolleyLog.v("Error occured when calling consumingContent");
+                }
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getSegmentExecutor() {
+        if (sSegmentExecutor == null) {
+            sSegmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Volley-Segment-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sSegmentExecutor;
+    }
+
+    /**
+     * Parses a "bytes start-end/total" Content-Range value into {start, total}; total is -1
+     * when the server reports it as unknown. Returns null if the value cannot be parsed.
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes")) {
+            return null;
+        }
+        try {
+            String range = value.substring(5).trim();
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            if (dash <= 0 || slash < dash) {
+                return null;
+            }
+            long start = Long.parseLong(range.substring(0, dash).trim());
+            String total = range.substring(slash + 1).trim();
+            return new long[] { start, "*".equals(total) ? -1 : Long.parseLong(total) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Converts Headers[] to Map<String, String>.
      */
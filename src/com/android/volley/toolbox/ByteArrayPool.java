@@ -17,10 +17,10 @@
 package com.android.volley.toolbox;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ByteArrayPool is a source and repository of <code>byte[]</code> objects. Its purpose is to
@@ -47,17 +47,41 @@ import java.util.List;
  * it is not harmful to return to this pool a buffer that was allocated elsewhere, provided there
  * are no other lingering references to it.
  * <p>
- * This class ensures that the total size of the buffers in its recycling pool never exceeds a
- * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit,
- * least-recently-used buffers are disposed.
+ * Buffers are kept in power-of-two size classes: a buffer of at least 2^k bytes lives in class k
+ * and can serve any request of up to 2^k bytes, so a lookup takes one list access instead of a
+ * scan. Every class has its own lock, and each thread additionally keeps one small buffer per
+ * class for itself, so concurrent callers rarely contend.
+ * <p>
+ * This class ensures that the total size of the buffers in its shared recycling pool never
+ * exceeds a certain byte limit. When a buffer is returned that would cause the pool to exceed the
+ * limit, buffers of the largest size classes are disposed first. Buffers held in the per-thread
+ * caches are not counted against the limit; they are bounded by
+ * {@link #THREAD_CACHE_MAX_BUF_SIZE} per size class and thread.
  */
 public class ByteArrayPool {
-    /** The buffer pool, arranged both by last use and by buffer size */
-    private List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
-    private List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+    /** Largest buffer kept in a per-thread cache. */
+    public static final int THREAD_CACHE_MAX_BUF_SIZE = 16 * 1024;
+
+    /** Number of size classes, enough for any positive int length. */
+    private static final int NUM_CLASSES = 32;
+
+    /** Number of size classes small enough for the per-thread caches. */
+    private static final int NUM_THREAD_CLASSES = sizeClassOf(THREAD_CACHE_MAX_BUF_SIZE) + 1;
+
+    /** The shared free lists, one per size class, each guarded by itself. */
+    @SuppressWarnings("unchecked")
+    private final List<byte[]>[] mFreeLists = new List[NUM_CLASSES];
+
+    /** One cached buffer per small size class and thread. */
+    private final ThreadLocal<byte[][]> mThreadCache = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[NUM_THREAD_CLASSES][];
+        }
+    };
 
-    /** The total size of the buffers in the pool */
-    private int mCurrentSize = 0;
+    /** The total size of the buffers in the shared free lists */
+    private final AtomicInteger mCurrentSize = new AtomicInteger();
 
     /**
      * The maximum aggregate size of the buffers in the pool. Old buffers are discarded to stay
@@ -65,6 +89,10 @@ public class ByteArrayPool {
      */
     private final int mSizeLimit;
 
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
     /** Compares buffers by size */
     protected static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
         @Override
@@ -78,27 +106,44 @@ public class ByteArrayPool {
      */
     public ByteArrayPool(int sizeLimit) {
         mSizeLimit = sizeLimit;
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            mFreeLists[i] = new ArrayList<byte[]>();
+        }
     }
 
     /**
      * Returns a buffer from the pool if one is available in the requested size, or allocates a new
-     * one if a pooled one is not available.
+     * one if a pooled one is not available. Newly allocated buffers are rounded up to the next
+     * power of two, unless that would be too large to ever come back to the pool.
      *
      * @param len the minimum size, in bytes, of the requested buffer. The returned buffer may be
      *        larger.
      * @return a byte[] buffer is always returned.
      */
-    public synchronized byte[] getBuf(int len) {
-        for (int i = 0; i < mBuffersBySize.size(); i++) {
-            byte[] buf = mBuffersBySize.get(i);
-            if (buf.length >= len) {
-                mCurrentSize -= buf.length;
-                mBuffersBySize.remove(i);
-                mBuffersByLastUse.remove(buf);
+    public byte[] getBuf(int len) {
+        int sizeClass = ceilSizeClassOf(len);
+        if (sizeClass < NUM_THREAD_CLASSES) {
+            byte[][] cache = mThreadCache.get();
+            byte[] buf = cache[sizeClass];
+            if (buf != null) {
+                cache[sizeClass] = null;
+                mHits.incrementAndGet();
                 return buf;
             }
         }
-        return new byte[len];
+        // A buffer one class up is still a good fit and doubles the odds of a hit.
+        for (int i = sizeClass; i < NUM_CLASSES && i <= sizeClass + 1; i++) {
+            byte[] buf = poll(i);
+            if (buf != null) {
+                mHits.incrementAndGet();
+                return buf;
+            }
+        }
+        mMisses.incrementAndGet();
+        if (sizeClass >= NUM_CLASSES - 1 || (1 << sizeClass) > mSizeLimit) {
+            return new byte[len];
+        }
+        return new byte[1 << sizeClass];
     }
 
     /**
@@ -107,29 +152,89 @@ public class ByteArrayPool {
      *
      * @param buf the buffer to return to the pool.
      */
-    public synchronized void returnBuf(byte[] buf) {
-        if (buf == null || buf.length > mSizeLimit) {
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length == 0 || buf.length > mSizeLimit) {
+            return;
+        }
+        int sizeClass = sizeClassOf(buf.length);
+        if (buf.length <= THREAD_CACHE_MAX_BUF_SIZE) {
+            byte[][] cache = mThreadCache.get();
+            if (cache[sizeClass] == null) {
+                cache[sizeClass] = buf;
+                return;
+            }
+        }
+        if (mCurrentSize.get() + buf.length > mSizeLimit) {
+            trim(mSizeLimit - buf.length);
+        }
+        if (mCurrentSize.addAndGet(buf.length) > mSizeLimit) {
+            // Lost a race against other returns; drop this buffer rather than overshoot.
+            mCurrentSize.addAndGet(-buf.length);
+            mEvictions.incrementAndGet();
             return;
         }
-        mBuffersByLastUse.add(buf);
-        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
-        if (pos < 0) {
-            pos = -pos - 1;
+        List<byte[]> list = mFreeLists[sizeClass];
+        synchronized (list) {
+            list.add(buf);
         }
-        mBuffersBySize.add(pos, buf);
-        mCurrentSize += buf.length;
-        trim();
+    }
+
+    /** Returns the number of requests served from the pool. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Returns the number of requests that had to allocate a new buffer. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the number of buffers discarded to stay under the size limit. */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /** Returns the total size of the buffers in the shared free lists. */
+    public int getCurrentSize() {
+        return mCurrentSize.get();
+    }
+
+    public int getSizeLimit() {
+        return mSizeLimit;
+    }
+
+    private byte[] poll(int sizeClass) {
+        List<byte[]> list = mFreeLists[sizeClass];
+        byte[] buf;
+        synchronized (list) {
+            int size = list.size();
+            if (size == 0) {
+                return null;
+            }
+            buf = list.remove(size - 1);
+        }
+        mCurrentSize.addAndGet(-buf.length);
+        return buf;
     }
 
     /**
-     * Removes buffers from the pool until it is under its size limit.
+     * Removes buffers from the pool, largest first, until it is at or under the given size.
      */
-    private synchronized void trim() {
-        while (mCurrentSize > mSizeLimit) {
-            byte[] buf = mBuffersByLastUse.remove(0);
-            mBuffersBySize.remove(buf);
-            mCurrentSize -= buf.length;
+    private void trim(int targetSize) {
+        for (int i = NUM_CLASSES - 1; i >= 0 && mCurrentSize.get() > targetSize; i--) {
+            while (mCurrentSize.get() > targetSize && poll(i) != null) {
+                mEvictions.incrementAndGet();
+            }
         }
     }
 
+    /** Returns the class a buffer of the given length belongs to: floor(log2(length)). */
+    private static int sizeClassOf(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    /** Returns the smallest class whose buffers all hold the given length: ceil(log2(length)). */
+    private static int ceilSizeClassOf(int length) {
+        return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how response bodies of an {@link HttpStack} were released, and so how
+ * many of its connections could go back to the keep-alive pool.
+ */
+public class ConnectionStats {
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mReusable = new AtomicLong();
+    private final AtomicLong mDrained = new AtomicLong();
+    private final AtomicLong mDrainedBytes = new AtomicLong();
+    private final AtomicLong mAbandoned = new AtomicLong();
+
+    void onRequest() {
+        mRequests.incrementAndGet();
+    }
+
+    void onReleased(boolean reusable, long drainedBytes) {
+        if (!reusable) {
+            mAbandoned.incrementAndGet();
+            return;
+        }
+        mReusable.incrementAndGet();
+        if (drainedBytes > 0) {
+            mDrained.incrementAndGet();
+            mDrainedBytes.addAndGet(drainedBytes);
+        }
+    }
+
+    /** Returns the number of requests performed. */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /** Returns the number of bodies read to the end, leaving their connection reusable. */
+    public long getReusableCount() {
+        return mReusable.get();
+    }
+
+    /** Returns how many of the reusable bodies had to be drained on close. */
+    public long getDrainedCount() {
+        return mDrained.get();
+    }
+
+    /** Returns the number of unread bytes discarded while draining. */
+    public long getDrainedBytes() {
+        return mDrainedBytes.get();
+    }
+
+    /** Returns the number of bodies closed early, whose connection had to be dropped. */
+    public long getAbandonedCount() {
+        return mAbandoned.get();
+    }
+
+    /** Returns the share of released bodies that left their connection reusable. */
+    public float getReuseRate() {
+        long reusable = mReusable.get();
+        long released = reusable + mAbandoned.get();
+        return released == 0 ? 0f : (float) reusable / released;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats [requests=" + getRequestCount() + ", reusable="
+                + getReusableCount() + ", drained=" + getDrainedCount() + ", drainedBytes="
+                + getDrainedBytes() + ", abandoned=" + getAbandonedCount() + "]";
+    }
+}
@@ -44,10 +44,19 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
+import android.os.Process;
 import android.os.SystemClock;
 
 import com.android.volley.Cache;
@@ -56,19 +65,48 @@ import com.android.volley.VolleyLog;
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>The headers of all entries are also journaled in a {@link DiskCacheIndex}, so that
+ * {@link #initialize()} only has to open the entry files the journal doesn't cover.</p>
+ *
+ * <p>Once the cache is full a new entry is only admitted if it has been requested more often
+ * recently, according to a {@link FrequencySketch}, than every entry that would be evicted to
+ * make room for it, so a burst of one-off responses can't flush the working set. Evictions run
+ * in small batches on a background thread, so the cache may briefly exceed its size.</p>
+ *
+ * <p>The in-memory index is guarded by a lock that is never held during entry file I/O, so a
+ * large read doesn't hold up other lookups. Changes to the journal are only queued under that
+ * lock and written by the journal's background writer, compactions included. Writers of an
+ * entry file serialize on one of a set of striped locks and replace the file through a temp
+ * file and rename. Readers only hold the striped lock while opening the file, and read the
+ * body afterwards, so they see either the old or the new file in full. {@link #initialize()}
+ * and {@link #clear()} are the exceptions: they hold every lock while they read the journal or
+ * delete the files.</p>
  */
 public class DiskBasedCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
+    /** Map of the Key, CacheHeader pairs. Guarded by mLock. */
     private final Map<String, CacheHeader> mEntries =
             new LinkedHashMap<String, CacheHeader>(16, .75f, true);
 
-    /** Total amount of space currently used by the cache in bytes. */
+    /** Total amount of space currently used by the cache in bytes. Guarded by mLock. */
     private long mTotalSize = 0;
 
+    /**
+     * Guards the in-memory state: the entries, their total size, the order of journal changes,
+     * the sketch and the counters. Taken after a key lock, never before one.
+     */
+    private final Object mLock = new Object();
+
+    /** Serialize the writers of an entry file, striped by file name. */
+    private final ReentrantLock[] mKeyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
+    /** Journal of the entries, read back on initialize. */
+    private final DiskCacheIndex mIndex;
+
     /** The maximum size of the cache in bytes. */
     private final int mMaxCacheSizeInBytes;
 
@@ -81,6 +119,36 @@ public class DiskBasedCache implements Cache {
     /** Magic number for current version of cache file format. */
     private static final int CACHE_MAGIC = 0x20140623;
 
+    /** Average entry size assumed when sizing the frequency sketch. */
+    private static final int AVERAGE_ENTRY_SIZE_BYTES = 4 * 1024;
+
+    /** Number of entries evicted per acquisition of the cache lock. */
+    private static final int TRIM_BATCH_SIZE = 32;
+
+    /** Number of locks entry file writers are striped over. */
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    /** Suffix of the file an entry is written to before it is renamed into place. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Runs the evictions of every DiskBasedCache. */
+    private static ExecutorService sTrimExecutor;
+
+    /** Recent request frequency of keys, consulted before evicting for a new entry. */
+    private final FrequencySketch mSketch;
+
+    /** Whether new entries must win against the entries they would evict. */
+    private boolean mAdmissionEnabled = true;
+
+    /** Whether a trim has been handed to the trim executor and not finished yet. */
+    private boolean mTrimScheduled = false;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mRejectedCount = 0;
+    private long mEvictionCount = 0;
+    private long mEvictedBytes = 0;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
@@ -89,6 +157,12 @@ public class DiskBasedCache implements Cache {
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mIndex = new DiskCacheIndex(rootDirectory);
+        int expectedEntries = maxCacheSizeInBytes / AVERAGE_ENTRY_SIZE_BYTES;
+        mSketch = new FrequencySketch(Math.max(64, Math.min(expectedEntries, 1 << 15)));
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new ReentrantLock();
+        }
     }
 
     /**
@@ -104,15 +178,23 @@ public class DiskBasedCache implements Cache {
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        lockAllKeys();
+        try {
+            synchronized (mLock) {
+                File[] files = mRootDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                mEntries.clear();
+                mTotalSize = 0;
+                mIndex.reset();
             }
+        } finally {
+            unlockAllKeys();
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -120,29 +202,74 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
-        }
+    public Entry get(String key) {
+        return read(key, false);
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise. Bodies of
+     * {@link MappedCacheBody#MIN_MAPPED_LENGTH} bytes or more are memory-mapped rather than
+     * read, so they stay in the page cache instead of the Java heap.
+     */
+    @Override
+    public Entry getLazy(String key) {
+        return read(key, true);
+    }
 
+    private Entry read(String key, boolean lazy) {
         File file = getFileForKey(key);
+        CacheHeader entry = null;
         CountingInputStream cis = null;
+        ReentrantLock lock = lockFor(key);
+        boolean locked = true;
+        lock.lock();
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            synchronized (mLock) {
+                mSketch.increment(key);
+                entry = mEntries.get(key);
+                // if the entry does not exist, return.
+                if (entry == null) {
+                    mMissCount++;
+                    return null;
+                }
+            }
+            // Open the file under the key lock, so that no put or metadata update comes between
+            // it and the indexed header. The body is read afterwards from the open file, which
+            // a later put renames away but never changes.
+            FileInputStream fis = new FileInputStream(file);
+            cis = new CountingInputStream(new BufferedInputStream(fis));
+            long length = fis.getChannel().size();
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.key)) {
+                // The index is only validated when read; the file now belongs to another key.
+                throw new IOException("File holds " + header.key + " instead of " + key);
+            }
+            lock.unlock();
+            locked = false;
+            Entry result;
+            if (lazy) {
+                result = entry.toCacheEntry(null);
+                result.body = MappedCacheBody.fromChannel(fis.getChannel(), cis.bytesRead,
+                        length - cis.bytesRead);
+            } else {
+                result = entry.toCacheEntry(streamToBytes(cis, (int) (length - cis.bytesRead)));
+            }
+            synchronized (mLock) {
+                mHitCount++;
+            }
+            return result;
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            discard(key, entry);
             return null;
         } catch (NegativeArraySizeException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            discard(key, entry);
             return null;
         } finally {
+            if (locked) {
+                lock.unlock();
+            }
             if (cis != null) {
                 try {
                     cis.close();
@@ -154,11 +281,23 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Initializes the DiskBasedCache from its index, then reads the headers of any files in
+     * the specified root directory the index doesn't cover. Creates the root directory if
+     * necessary.
      */
     @Override
-    public synchronized void initialize() {
+    public void initialize() {
+        lockAllKeys();
+        try {
+            synchronized (mLock) {
+                initializeLocked();
+            }
+        } finally {
+            unlockAllKeys();
+        }
+    }
+
+    private void initializeLocked() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
@@ -166,11 +305,30 @@ public class DiskBasedCache implements Cache {
             return;
         }
 
+        long startTime = SystemClock.elapsedRealtime();
+        Map<String, CacheHeader> indexed = new LinkedHashMap<String, CacheHeader>();
+        boolean indexClean = mIndex.load(indexed);
+        Set<String> indexedFiles = new HashSet<String>(indexed.size() * 2);
+        for (CacheHeader entry : indexed.values()) {
+            putEntry(entry.key, entry);
+            indexedFiles.add(getFilenameForKey(entry.key));
+        }
+
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
+        int recovered = 0;
         for (File file : files) {
+            if (DiskCacheIndex.isIndexFile(file) || indexedFiles.contains(file.getName())) {
+                continue;
+            }
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left behind by a put interrupted before its rename.
+                file.delete();
+                continue;
+            }
+            recovered++;
             BufferedInputStream fis = null;
             try {
                 fis = new BufferedInputStream(new FileInputStream(file));
@@ -189,6 +347,14 @@ public class DiskBasedCache implements Cache {
                 } catch (IOException ignored) { }
             }
         }
+        if (!indexClean || recovered > 0) {
+            mIndex.compact(mEntries.values());
+        }
+        scheduleTrimIfNeeded();
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Cache initialized with %d entries, %d read from files, %d ms",
+                    mEntries.size(), recovered, SystemClock.elapsedRealtime() - startTime);
+        }
     }
 
     /**
@@ -197,45 +363,115 @@ public class DiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            Entry entry = getMetadata(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                updateMetadata(key, entry);
             }
-            put(key, entry);
+        } finally {
+            lock.unlock();
         }
+    }
 
+    /**
+     * Returns the metadata of an entry from the in-memory index, without any disk access.
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        CacheHeader entry;
+        synchronized (mLock) {
+            entry = mEntries.get(key);
+        }
+        return entry == null ? null : entry.toCacheEntry(null);
+    }
+
+    /**
+     * Replaces the metadata of an entry in the index and its journal. The entry file keeps
+     * the header it was written with; the journal record supersedes it when the cache is
+     * initialized again.
+     */
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            synchronized (mLock) {
+                CacheHeader old = mEntries.get(key);
+                if (old == null) {
+                    return;
+                }
+                CacheHeader updated = new CacheHeader(key, entry);
+                updated.size = old.size;
+                putEntry(key, updated);
+                mIndex.put(updated);
+                if (mIndex.needsCompaction(mEntries.size())) {
+                    mIndex.compact(mEntries.values());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
+    public void put(String key, Entry entry) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
+            synchronized (mLock) {
+                if (!mEntries.containsKey(key) && !admit(key, entry.data.length)) {
+                    mRejectedCount++;
+                    if (VolleyLog.DEBUG) {
+                        VolleyLog.v("Cache refused %d bytes for key=%s", entry.data.length, key);
+                    }
+                    return;
+                }
+            }
+            File file = getFileForKey(key);
+            File temp = new File(file.getPath() + TEMP_SUFFIX);
             CacheHeader e = new CacheHeader(key, entry);
-            // fix crash OOM 5bd5325bd61414480091b262204f1a45d57c1884
-//            e.writeHeader(fos);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
+            try {
+                BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(temp));
+                // fix crash OOM 5bd5325bd61414480091b262204f1a45d57c1884
+//                e.writeHeader(fos);
+                boolean success = e.writeHeader(fos);
+                if (!success) {
+                    fos.close();
+                    VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+                    throw new IOException();
+                }
+                fos.write(entry.data);
                 fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp.getAbsolutePath());
+                }
+            } catch (IOException ioe) {
+                // The previous file, if any, is still intact.
+                if (!temp.delete()) {
+                    VolleyLog.d("Could not clean up file %s", temp.getAbsolutePath());
+                }
+                return;
             }
-            fos.write(entry.data);
-            fos.close();
-            putEntry(key, e);
-            return;
-        } catch (IOException e) {
-        }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            synchronized (mLock) {
+                putEntry(key, e);
+                mIndex.put(e);
+                if (mIndex.needsCompaction(mEntries.size())) {
+                    mIndex.compact(mEntries.values());
+                }
+                scheduleTrimIfNeeded();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -243,12 +479,68 @@ public class DiskBasedCache implements Cache {
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    public void remove(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            boolean deleted = getFileForKey(key).delete();
+            synchronized (mLock) {
+                if (mEntries.containsKey(key)) {
+                    removeEntry(key);
+                    mIndex.remove(key);
+                }
+            }
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, getFilenameForKey(key));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops an entry whose file turned out to be missing or unreadable, unless a put has
+     * replaced it in the meantime.
+     */
+    private void discard(String key, CacheHeader entry) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            synchronized (mLock) {
+                mMissCount++;
+                if (mEntries.get(key) != entry) {
+                    return;
+                }
+                removeEntry(key);
+                mIndex.remove(key);
+            }
+            getFileForKey(key).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks until the journal changes queued so far have been written. */
+    // Visible for testing.
+    void awaitIndexWrites() throws InterruptedException {
+        mIndex.drain();
+    }
+
+    /** Returns the lock serializing writers of the key's file. */
+    private ReentrantLock lockFor(String key) {
+        return mKeyLocks[(getFilenameForKey(key).hashCode() & 0x7fffffff) % KEY_LOCK_STRIPES];
+    }
+
+    private void lockAllKeys() {
+        for (ReentrantLock lock : mKeyLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAllKeys() {
+        for (int i = KEY_LOCK_STRIPES - 1; i >= 0; i--) {
+            mKeyLocks[i].unlock();
         }
     }
 
@@ -272,44 +564,200 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Enables or disables frequency-based admission. When disabled every entry is admitted and
+     * the cache behaves as a plain LRU cache.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    public void setAdmissionEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mAdmissionEnabled = enabled;
+        }
+    }
+
+    /** Returns the number of gets that returned an entry. */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /** Returns the number of gets that found no usable entry. */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /** Returns the share of gets that returned an entry, or 0 before the first get. */
+    public float getHitRatio() {
+        synchronized (mLock) {
+            long requests = mHitCount + mMissCount;
+            return requests == 0 ? 0f : (float) mHitCount / requests;
+        }
+    }
+
+    /** Returns the number of new entries refused by the admission policy. */
+    public long getRejectedCount() {
+        synchronized (mLock) {
+            return mRejectedCount;
+        }
+    }
+
+    /** Returns the number of entries evicted to stay under the size limit. */
+    public long getEvictionCount() {
+        synchronized (mLock) {
+            return mEvictionCount;
+        }
+    }
+
+    /** Returns the total size of the entries evicted to stay under the size limit. */
+    public long getEvictedBytes() {
+        synchronized (mLock) {
+            return mEvictedBytes;
+        }
+    }
+
+    /**
+     * Decides whether a new entry of the given size may go into the cache. It may if it fits,
+     * or if it has been requested more often than each least recently used entry that has to
+     * go to make room for it. Must be called with mLock held.
+     */
+    private boolean admit(String key, int size) {
+        if (mTotalSize + size < mMaxCacheSizeInBytes) {
+            return true;
+        }
+        long target = (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR);
+        if (size > target) {
+            return false;
+        }
+        if (!mAdmissionEnabled) {
+            return true;
+        }
+        int frequency = mSketch.frequency(key);
+        long needed = mTotalSize + size - target;
+        // Iterating the values doesn't disturb the access order.
+        for (CacheHeader victim : mEntries.values()) {
+            if (needed <= 0) {
+                break;
+            }
+            if (mSketch.frequency(victim.key) >= frequency) {
+                return false;
+            }
+            needed -= victim.size;
+        }
+        return true;
+    }
+
+    /**
+     * Hands a trim to the trim executor if the cache is over its size and none is pending.
+     * Must be called with mLock held.
+     */
+    private void scheduleTrimIfNeeded() {
+        if (mTrimScheduled || mTotalSize < mMaxCacheSizeInBytes) {
             return;
         }
+        mTrimScheduled = true;
+        getTrimExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                trim();
+            }
+        });
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is under its low water mark, a batch
+     * at a time so that gets and puts can proceed in between.
+     */
+    private void trim() {
         if (VolleyLog.DEBUG) {
             VolleyLog.v("Pruning old cache entries.");
         }
-
-        long before = mTotalSize;
-        int prunedFiles = 0;
         long startTime = SystemClock.elapsedRealtime();
+        int prunedFiles = 0;
+        long prunedBytes = 0;
+        boolean more = true;
+        while (more) {
+            List<CacheHeader> evicted;
+            synchronized (mLock) {
+                evicted = trimBatch();
+                more = evicted.size() == TRIM_BATCH_SIZE;
+                if (!more) {
+                    mTrimScheduled = false;
+                }
+            }
+            for (CacheHeader e : evicted) {
+                deleteEvicted(e.key);
+                prunedFiles++;
+                prunedBytes += e.size;
+            }
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d files, %d bytes, %d ms",
+                    prunedFiles, prunedBytes, SystemClock.elapsedRealtime() - startTime);
+        }
+    }
 
+    /**
+     * Takes up to {@link #TRIM_BATCH_SIZE} least recently used entries out of the index. Their
+     * files are deleted afterwards, outside the lock. Must be called with mLock held.
+     *
+     * @return the evicted entries
+     */
+    private List<CacheHeader> trimBatch() {
+        List<CacheHeader> evicted = new ArrayList<CacheHeader>(TRIM_BATCH_SIZE);
         Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
-            }
+        while (evicted.size() < TRIM_BATCH_SIZE && iterator.hasNext()
+                && mTotalSize >= mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            CacheHeader e = iterator.next().getValue();
+            mTotalSize -= e.size;
             iterator.remove();
-            prunedFiles++;
+            mIndex.remove(e.key);
+            mEvictionCount++;
+            mEvictedBytes += e.size;
+            evicted.add(e);
+        }
+        return evicted;
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+    /**
+     * Deletes the file of an evicted entry, unless a put has brought the key back since.
+     */
+    private void deleteEvicted(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            synchronized (mLock) {
+                if (mEntries.containsKey(key)) {
+                    return;
+                }
+            }
+            if (!getFileForKey(key).delete()) {
+               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                       key, getFilenameForKey(key));
             }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    private static synchronized ExecutorService getTrimExecutor() {
+        if (sTrimExecutor == null) {
+            sTrimExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Volley-CacheTrim");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return sTrimExecutor;
     }
 
     /**
@@ -390,12 +838,14 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.data == null ? 0 : entry.data.length;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
             this.softTtl = entry.softTtl;
-            this.responseHeaders = entry.responseHeaders;
+            this.responseHeaders = entry.responseHeaders == null
+                    ? Collections.<String, String>emptyMap()
+                    : new HashMap<String, String>(entry.responseHeaders);
         }
 
         /**
@@ -423,7 +873,9 @@ public class DiskBasedCache implements Cache {
         }
 
         /**
-         * Creates a cache entry for the specified data.
+         * Creates a cache entry for the specified data. The entry gets its own copy of the
+         * headers, since callers may change them, as BasicNetwork does on a 304, while the
+         * journal writer reads this header's.
          */
         public Entry toCacheEntry(byte[] data) {
             Entry e = new Entry();
@@ -432,7 +884,7 @@ public class DiskBasedCache implements Cache {
             e.serverDate = serverDate;
             e.ttl = ttl;
             e.softTtl = softTtl;
-            e.responseHeaders = responseHeaders;
+            e.responseHeaders = new HashMap<String, String>(responseHeaders);
             return e;
         }
 
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+/**
+ * Append-only journal of the headers in a {@link DiskBasedCache}, so that the cache can be
+ * indexed on startup with one sequential read instead of opening every entry file.
+ *
+ * <p>Every put appends the entry's header and size, every removal appends its key. Once the
+ * journal holds many more records than there are live entries it is compacted: the live
+ * headers are written to a temp file, forced to disk and renamed over the journal. An entry
+ * file is always written before its record is appended, so a crash can only leave files the
+ * journal doesn't know about, which the cache recovers by reading them, or records whose file
+ * is gone, which the cache drops the first time they are read.</p>
+ *
+ * <p>{@link #put}, {@link #remove}, {@link #compact} and {@link #reset} only queue the
+ * change, in the order they are called, and return at once; the cache calls them under its
+ * index lock so that the journal sees changes in the same order as the index. The queue is
+ * written by one background writer shared by every journal, so neither appends nor a
+ * compaction ever hold up a cache lookup. A compaction writes a copy of the live headers taken
+ * when it was queued. Only {@link #load} does its I/O on the calling thread. Changes still
+ * queued when the process dies are lost, which leaves the journal behind the entry files the
+ * same way a crash right after a file write would.</p>
+ */
+class DiskCacheIndex {
+
+    /** Name of the journal inside the cache directory. */
+    static final String INDEX_FILE_NAME = ".volley_index";
+
+    /** Name of the compaction temp file inside the cache directory. */
+    static final String INDEX_TEMP_FILE_NAME = ".volley_index.tmp";
+
+    /** Magic number identifying the journal format. */
+    private static final int INDEX_MAGIC = 0x56434931; // "VCI1"
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+
+    /** Records kept on top of the live entries before a compaction is due. */
+    private static final int COMPACT_SLACK = 512;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Writes the queued changes of every journal, one journal at a time. */
+    private static final ExecutorService sWriter = new ThreadPoolExecutor(0, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Volley-CacheIndex");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_COMPACT = 3;
+    private static final int OP_RESET = 4;
+
+    /** A queued change to the journal. */
+    private static class Op {
+        final int type;
+        final CacheHeader header;
+        final String key;
+        final List<CacheHeader> live;
+
+        Op(int type, CacheHeader header, String key, List<CacheHeader> live) {
+            this.type = type;
+            this.header = header;
+            this.key = key;
+            this.live = live;
+        }
+    }
+
+    private final File mFile;
+    private final File mTempFile;
+
+    /** Guards the queue and the fields below it; signalled when the queue has been written. */
+    private final Object mQueueLock = new Object();
+
+    /** Changes not yet written, oldest first. */
+    private List<Op> mQueue = new ArrayList<Op>();
+
+    /** Whether the writer has been handed {@link #mWrite} and hasn't finished it yet. */
+    private boolean mWriteScheduled = false;
+
+    /** Number of records the journal holds once the queue is written. */
+    private int mRecordCount = 0;
+
+    /** Whether the journal must be rewritten before records can be appended to it. */
+    private boolean mNeedsRewrite = true;
+
+    /** Number of compactions queued and not yet started. */
+    private int mCompactionsQueued = 0;
+
+    /**
+     * Open journal in append mode, or null if it must be rewritten before use. Only used by
+     * the thread holding {@code this}: the writer, or {@link #load}.
+     */
+    private OutputStream mOut;
+
+    DiskCacheIndex(File rootDirectory) {
+        mFile = new File(rootDirectory, INDEX_FILE_NAME);
+        mTempFile = new File(rootDirectory, INDEX_TEMP_FILE_NAME);
+    }
+
+    /** Returns true if the file in the cache directory belongs to the index. */
+    static boolean isIndexFile(File file) {
+        String name = file.getName();
+        return INDEX_FILE_NAME.equals(name) || INDEX_TEMP_FILE_NAME.equals(name);
+    }
+
+    /**
+     * Replays the journal into the given map, oldest record first. Waits for queued changes
+     * to be written first.
+     *
+     * @return true if the whole journal was read and can be appended to, false if it was
+     *         missing, truncated or corrupt and must be compacted before use
+     */
+    boolean load(Map<String, CacheHeader> entries) {
+        try {
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        synchronized (this) {
+            closeOut();
+            int records = readJournal(entries);
+            boolean clean = records >= 0;
+            if (clean) {
+                try {
+                    mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+                } catch (IOException e) {
+                    clean = false;
+                }
+            }
+            synchronized (mQueueLock) {
+                mRecordCount = Math.max(records, 0);
+                mNeedsRewrite = !clean;
+            }
+            return clean;
+        }
+    }
+
+    /**
+     * Reads the journal into the given map.
+     *
+     * @return the number of records read, or -1 if the journal is missing or unusable
+     */
+    private int readJournal(Map<String, CacheHeader> entries) {
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE);
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        int records = 0;
+        try {
+            if (DiskBasedCache.readInt(in) != INDEX_MAGIC) {
+                VolleyLog.d("Cache index has an unknown format, rebuilding");
+                return -1;
+            }
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                if (type == RECORD_PUT) {
+                    CacheHeader header = CacheHeader.readHeader(in);
+                    header.size = DiskBasedCache.readLong(in);
+                    entries.remove(header.key);
+                    entries.put(header.key, header);
+                } else if (type == RECORD_REMOVE) {
+                    entries.remove(DiskBasedCache.readString(in));
+                } else {
+                    throw new IOException("Unknown cache index record " + type);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // A torn last record from a crash; everything before it is still good.
+            VolleyLog.d("Cache index truncated after %d records", records);
+            return -1;
+        } catch (IOException e) {
+            VolleyLog.d("Cache index unreadable after %d records: %s", records, e.toString());
+            return -1;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Queues a record that an entry has been written.
+     */
+    void put(CacheHeader header) {
+        synchronized (mQueueLock) {
+            if (mNeedsRewrite) {
+                return;
+            }
+            mRecordCount++;
+            enqueueLocked(new Op(OP_PUT, header, null, null));
+        }
+    }
+
+    /**
+     * Queues a record that an entry has been removed.
+     */
+    void remove(String key) {
+        synchronized (mQueueLock) {
+            if (mNeedsRewrite) {
+                return;
+            }
+            mRecordCount++;
+            enqueueLocked(new Op(OP_REMOVE, null, key, null));
+        }
+    }
+
+    /**
+     * Returns true if the journal should be compacted, given the number of live entries.
+     */
+    boolean needsCompaction(int liveEntries) {
+        synchronized (mQueueLock) {
+            if (mCompactionsQueued > 0) {
+                return false;
+            }
+            return mNeedsRewrite || mRecordCount > 2 * liveEntries + COMPACT_SLACK;
+        }
+    }
+
+    /**
+     * Queues the replacement of the journal with one put record per live entry. The entries
+     * are copied right away, so the caller may change the collection afterwards.
+     */
+    void compact(Collection<CacheHeader> entries) {
+        List<CacheHeader> live = new ArrayList<CacheHeader>(entries);
+        synchronized (mQueueLock) {
+            mRecordCount = live.size();
+            mNeedsRewrite = false;
+            mCompactionsQueued++;
+            enqueueLocked(new Op(OP_COMPACT, null, null, live));
+        }
+    }
+
+    /**
+     * Stops writing to the journal and deletes it, e.g. after the cache directory was wiped.
+     * The next compaction starts a new one.
+     */
+    void reset() {
+        synchronized (mQueueLock) {
+            mRecordCount = 0;
+            mNeedsRewrite = true;
+            // Whatever is queued is moot once the journal is deleted.
+            mQueue.clear();
+            mCompactionsQueued = 0;
+            enqueueLocked(new Op(OP_RESET, null, null, null));
+        }
+    }
+
+    /**
+     * Blocks until every change queued so far has been written.
+     */
+    void drain() throws InterruptedException {
+        synchronized (mQueueLock) {
+            while (mWriteScheduled) {
+                mQueueLock.wait();
+            }
+        }
+    }
+
+    /** Must be called with mQueueLock held. */
+    private void enqueueLocked(Op op) {
+        mQueue.add(op);
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            sWriter.execute(mWrite);
+        }
+    }
+
+    /** Writes queued changes until the queue is empty. */
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                List<Op> ops;
+                synchronized (mQueueLock) {
+                    if (mQueue.isEmpty()) {
+                        mWriteScheduled = false;
+                        mQueueLock.notifyAll();
+                        return;
+                    }
+                    ops = mQueue;
+                    mQueue = new ArrayList<Op>();
+                }
+                synchronized (DiskCacheIndex.this) {
+                    write(ops);
+                }
+            }
+        }
+    };
+
+    /** Must be called with {@code this} held. */
+    private void write(List<Op> ops) {
+        boolean dirty = false;
+        for (Op op : ops) {
+            switch (op.type) {
+                case OP_PUT:
+                case OP_REMOVE:
+                    if (mOut == null) {
+                        break;
+                    }
+                    try {
+                        if (op.type == OP_PUT) {
+                            mOut.write(RECORD_PUT);
+                            if (!op.header.writeHeader(mOut)) {
+                                throw new IOException("Could not write header for "
+                                        + op.header.key);
+                            }
+                            DiskBasedCache.writeLong(mOut, op.header.size);
+                        } else {
+                            mOut.write(RECORD_REMOVE);
+                            DiskBasedCache.writeString(mOut, op.key);
+                        }
+                        dirty = true;
+                    } catch (IOException e) {
+                        abandon(e);
+                    }
+                    break;
+                case OP_COMPACT:
+                    synchronized (mQueueLock) {
+                        mCompactionsQueued--;
+                    }
+                    rewrite(op.live);
+                    dirty = false;
+                    break;
+                default:
+                    closeOut();
+                    mFile.delete();
+                    dirty = false;
+                    break;
+            }
+        }
+        if (dirty && mOut != null) {
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                abandon(e);
+            }
+        }
+    }
+
+    /** Replaces the journal with one put record per given entry. */
+    private void rewrite(List<CacheHeader> entries) {
+        closeOut();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mTempFile);
+            OutputStream out = new BufferedOutputStream(fos, BUFFER_SIZE);
+            DiskBasedCache.writeInt(out, INDEX_MAGIC);
+            for (CacheHeader header : entries) {
+                out.write(RECORD_PUT);
+                if (!header.writeHeader(out)) {
+                    throw new IOException("Could not write header for " + header.key);
+                }
+                DiskBasedCache.writeLong(out, header.size);
+            }
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Could not replace cache index " + mFile);
+            }
+            mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        } catch (IOException e) {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mTempFile.delete();
+            abandon(e);
+        }
+    }
+
+    /**
+     * Gives up on the journal after a write failure. It is deleted so that a later startup
+     * falls back to reading the entry files rather than trusting a journal with gaps. Records
+     * queued until the next compaction are dropped, since it rewrites them anyway. Must be
+     * called with {@code this} held.
+     */
+    private void abandon(IOException e) {
+        VolleyLog.d("Cache index write failed, dropping it: %s", e.toString());
+        closeOut();
+        mFile.delete();
+        synchronized (mQueueLock) {
+            if (mCompactionsQueued == 0) {
+                mRecordCount = 0;
+                mNeedsRewrite = true;
+            }
+        }
+    }
+
+    private void closeOut() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mOut = null;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.android.volley.toolbox;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.app.FragmentManager;
 import android.content.Context;
@@ -17,12 +20,22 @@ import com.android.volley.Cache;
 import com.android.volley.Utils;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
-import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
 import com.android.volley.toolbox.disklrucache.DiskLruCache;
+import com.android.volley.toolbox.disklrucache.ShardedDiskLruCache;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified directory
  * using DiskLruCache
+ *
+ * <p>Reads, writes and removals only take the read side of {@link #mDiskCacheLock}, which
+ * guards the lifetime of the DiskLruCache instance, so any number of them run in parallel.
+ * DiskLruCache's own monitor keeps the journal consistent and is only held while a snapshot or
+ * editor is handed out; the entry files themselves are read and written outside of it. The
+ * write side is taken only to open, clear or close the DiskLruCache.</p>
+ *
+ * <p>The store is a {@link ShardedDiskLruCache}; with
+ * {@link ImageCacheParams#diskCacheShards} above one, writers of different keys also append
+ * to different journals.</p>
  */
 public class DiskLruBasedCache implements Cache {
 
@@ -32,6 +45,8 @@ public class DiskLruBasedCache implements Cache {
 
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 100; // 100MB
+    // One shard keeps the plain DiskLruCache layout of existing caches
+    private static final int DEFAULT_DISK_CACHE_SHARDS = 1;
     // Constants to easily toggle various caches
     
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
@@ -41,19 +56,25 @@ public class DiskLruBasedCache implements Cache {
     // Compression settings when writing images to disk cache
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
-    private static final int DISK_CACHE_INDEX = 0;
-	private static final int APP_VERSION = 1;
-	private static final int VALUE_COUNT = 1;
+    /** Index of the value holding an entry's CacheHeader. */
+    private static final int HEADER_INDEX = 0;
+    /** Index of the value holding an entry's data. */
+    private static final int BODY_INDEX = 1;
+    // Version 2 keeps header and data in separate values, so metadata can be rewritten alone.
+	private static final int APP_VERSION = 2;
+	private static final int VALUE_COUNT = 2;
 	
-	private DiskLruCache mDiskLruCache;
+	private ShardedDiskLruCache mDiskLruCache;
 	@SuppressWarnings("unused")
 	private CompressFormat mCompressFormat = DEFAULT_COMPRESS_FORMAT;
 	@SuppressWarnings("unused")
 	private static int IO_BUFFER_SIZE = 8 * 1024;
 	@SuppressWarnings("unused")
 	private int mCompressQuality = DEFAULT_COMPRESS_QUALITY;
-    private final Object mDiskCacheLock = new Object();
-    private boolean mDiskCacheStarting = true;
+    /** Read side for using mDiskLruCache, write side for replacing or closing it. */
+    private final ReentrantReadWriteLock mDiskCacheLock = new ReentrantReadWriteLock();
+    /** Released once the first initDiskCache has finished, successfully or not. */
+    private final CountDownLatch mDiskCacheStarted = new CountDownLatch(1);
     private ImageCacheParams mCacheParams;
     
     public DiskLruBasedCache(File root) {
@@ -68,12 +89,16 @@ public class DiskLruBasedCache implements Cache {
 
 		boolean contained = false;
 		DiskLruCache.Snapshot snapshot = null;
+		mDiskCacheLock.readLock().lock();
 		try {
-			snapshot = mDiskLruCache.get(key);
-			contained = snapshot != null;
+			if (mDiskLruCache != null) {
+				snapshot = mDiskLruCache.get(key);
+				contained = snapshot != null;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
+			mDiskCacheLock.readLock().unlock();
 			if (snapshot != null) {
 				snapshot.close();
 			}
@@ -86,10 +111,13 @@ public class DiskLruBasedCache implements Cache {
 		if (BuildConfig.DEBUG) {
 			Log.d("cache_test_DISK_", "disk cache CLEARED");
 		}
+		mDiskCacheLock.writeLock().lock();
 		try {
 			mDiskLruCache.delete();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			mDiskCacheLock.writeLock().unlock();
 		}
 	}
 
@@ -105,7 +133,8 @@ public class DiskLruBasedCache implements Cache {
      */
     public void initDiskCache() {
         // Set up disk cache
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLock.writeLock().lock();
+        try {
             if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
                 File diskCacheDir = mCacheParams.diskCacheDir;
                 if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
@@ -116,7 +145,8 @@ public class DiskLruBasedCache implements Cache {
                         mCacheParams.diskCacheSize = Utils.getUsableSpace(diskCacheDir);
                     }
                     try {
-                        mDiskLruCache = DiskLruCache.open(diskCacheDir, APP_VERSION, VALUE_COUNT, mCacheParams.diskCacheSize);
+                        mDiskLruCache = ShardedDiskLruCache.open(diskCacheDir, APP_VERSION, VALUE_COUNT,
+                                mCacheParams.diskCacheSize, mCacheParams.diskCacheShards);
                         if (BuildConfig.DEBUG) {
                             VolleyLog.d("Disk cache initialized");
                         }
@@ -126,8 +156,9 @@ public class DiskLruBasedCache implements Cache {
                     }
                 }
             }
-            mDiskCacheStarting = false;
-            mDiskCacheLock.notifyAll();
+        } finally {
+            mDiskCacheLock.writeLock().unlock();
+            mDiskCacheStarted.countDown();
         }
     }
     
@@ -137,6 +168,11 @@ public class DiskLruBasedCache implements Cache {
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public long diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        /**
+         * Number of independently locked and journaled segments of the disk cache. More than
+         * one lets concurrent writers append to different journals; changing it wipes the cache.
+         */
+        public int diskCacheShards = DEFAULT_DISK_CACHE_SHARDS;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
@@ -237,104 +273,256 @@ public class DiskLruBasedCache implements Cache {
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Returns the file holding the data of the given (hashed) cache key.
      */
     public File getFileForKey(String key) {
-        return new File(mCacheParams.diskCacheDir, key+".0");
+        ShardedDiskLruCache cache = mDiskLruCache;
+        File directory = cache != null ? cache.getDirectory(key) : mCacheParams.diskCacheDir;
+        return new File(directory, key + "." + BODY_INDEX);
+    }
+
+    /**
+     * Blocks until the disk cache has been initialized for the first time. Must be called
+     * without mDiskCacheLock held; later re-initializations hold its write side instead.
+     */
+    private void awaitDiskCache() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDiskCacheStarted.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 	@Override
 	public Entry get(String data) {
-        final String key = hashKeyForDisk(data);
         // if the entry does not exist, return.
         if (data == null) {
             return null;
         }
+        final String key = hashKeyForDisk(data);
 
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
+        awaitDiskCache();
+        mDiskCacheLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+                DiskLruCache.Snapshot snapshot = null;
             	File file = getFileForKey(key);
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    snapshot = mDiskLruCache.get(key);
                     if (snapshot != null) {
-//                        if (BuildConfig.DEBUG) {
-//                            Log.d(TAG, "Disk cache hit");
-//                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            CountingInputStream cis = new CountingInputStream(inputStream);
-                            CacheHeader entry = CacheHeader.readHeader(cis); // eat header
-                            byte[] dataBytes = Utils.streamToBytes(cis, (int) (file.length() - cis.getBytesRead()));
-							return entry.toCacheEntry(dataBytes);
-                        }
+                        CacheHeader entry = CacheHeader.readHeader(snapshot.getInputStream(HEADER_INDEX));
+                        byte[] dataBytes = Utils.streamToBytes(snapshot.getInputStream(BODY_INDEX),
+                                (int) snapshot.getLength(BODY_INDEX));
+                        return entry.toCacheEntry(dataBytes);
                     }
                 } catch (final IOException e) {
-                    remove(key);
                     Log.e(TAG, "getDiskLruBasedCache - " + e);
+                    removeQuietly(key);
                     return null;
                 } catch (NegativeArraySizeException e) {
                 	Log.e(TAG, "getDiskLruBasedCache - " + e);
-                    remove(key);
+                    removeQuietly(key);
                     return null;
                 } catch (OutOfMemoryError e) {
                     VolleyLog.e("Caught OOM for %d byte image, path=%s: %s", file.length(), file.getAbsolutePath(), e.toString());
                     return null;
                 } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
+                    if (snapshot != null) {
+                        snapshot.close();
+                    }
+                }
+            }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
+        }
+		return null;
+	}
+
+	/**
+	 * Like {@link #get(String)}, but leaves the body in its file: large bodies are
+	 * memory-mapped, see {@link MappedCacheBody}.
+	 */
+	@Override
+	public Entry getLazy(String data) {
+        if (data == null) {
+            return null;
+        }
+        final String key = hashKeyForDisk(data);
+
+        awaitDiskCache();
+        mDiskCacheLock.readLock().lock();
+        try {
+            if (mDiskLruCache != null) {
+                DiskLruCache.Snapshot snapshot = null;
+                try {
+                    snapshot = mDiskLruCache.get(key);
+                    if (snapshot != null) {
+                        CacheHeader entry = CacheHeader.readHeader(snapshot.getInputStream(HEADER_INDEX));
+                        Entry result = entry.toCacheEntry(null);
+                        InputStream body = snapshot.getInputStream(BODY_INDEX);
+                        if (body instanceof FileInputStream) {
+                            result.body = MappedCacheBody.fromChannel(
+                                    ((FileInputStream) body).getChannel(), 0,
+                                    snapshot.getLength(BODY_INDEX));
+                        } else {
+                            result.data = Utils.streamToBytes(body,
+                                    (int) snapshot.getLength(BODY_INDEX));
                         }
-                    } catch (IOException e) {}
+                        return result;
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "getLazyDiskLruBasedCache - " + e);
+                    removeQuietly(key);
+                    return null;
+                } finally {
+                    if (snapshot != null) {
+                        snapshot.close();
+                    }
                 }
             }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
         }
 		return null;
 	}
 
+	/**
+	 * Writes the entry. The files are written while only the read side of mDiskCacheLock is
+	 * held, so a large write holds up neither lookups nor writes of other keys; a concurrent
+	 * put of the same key finds the entry already being edited and is dropped.
+	 */
 	@Override
 	public void put(String data, Entry value) {
         if (data == null || value == null) {
             return;
         }
 
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLock.readLock().lock();
+        try {
             // Add to disk cache
             if (mDiskLruCache != null) {
                 final String key = hashKeyForDisk(data);
-                OutputStream out = null;
+                DiskLruCache.Editor editor = null;
                 try {
-                    //DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    //if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            CacheHeader e = new CacheHeader(key, value);
-                            e.writeHeader(out);
+                    editor = mDiskLruCache.edit(key);
+                    if (editor != null) {
+                        OutputStream out = editor.newOutputStream(HEADER_INDEX);
+                        try {
+                            new CacheHeader(key, value).writeHeader(out);
+                        } finally {
+                            out.close();
+                        }
+                        out = editor.newOutputStream(BODY_INDEX);
+                        try {
                             out.write(value.data);
-                            editor.commit();
+                        } finally {
                             out.close();
                         }
-/*                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }*/
+                        editor.commit();
+                        editor = null;
+                    }
                 } catch (final IOException e) {
                     Log.e(TAG, "putDiskLruBasedCache - " + e);
                 } catch (Exception e) {
                     Log.e(TAG, "putDiskLruBasedCache - " + e);
                 } finally {
-                    try {
-                        if (out != null) {
+                    if (editor != null) {
+                        editor.abortUnlessCommitted();
+                    }
+                }
+            }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
+        }
+	}
+
+	/**
+	 * Reads only the header value of the entry; the data is not touched.
+	 */
+	@Override
+	public Entry getMetadata(String data) {
+        if (data == null) {
+            return null;
+        }
+        final String key = hashKeyForDisk(data);
+
+        awaitDiskCache();
+        mDiskCacheLock.readLock().lock();
+        try {
+            if (mDiskLruCache != null) {
+                DiskLruCache.Snapshot snapshot = null;
+                try {
+                    snapshot = mDiskLruCache.get(key);
+                    if (snapshot != null) {
+                        return CacheHeader.readHeader(snapshot.getInputStream(HEADER_INDEX))
+                                .toCacheEntry(null);
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "getMetadataDiskLruBasedCache - " + e);
+                } finally {
+                    if (snapshot != null) {
+                        snapshot.close();
+                    }
+                }
+            }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
+        }
+        return null;
+	}
+
+	/**
+	 * Rewrites only the header value of an existing entry; DiskLruCache keeps the clean data
+	 * value of an entry whose editor didn't write it.
+	 */
+	@Override
+	public void updateMetadata(String data, Entry value) {
+        if (data == null || value == null) {
+            return;
+        }
+
+        mDiskCacheLock.readLock().lock();
+        try {
+            if (mDiskLruCache != null) {
+                final String key = hashKeyForDisk(data);
+                DiskLruCache.Editor editor = null;
+                try {
+                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    if (snapshot == null) {
+                        return;
+                    }
+                    snapshot.close();
+                    editor = mDiskLruCache.edit(key);
+                    if (editor != null) {
+                        OutputStream out = editor.newOutputStream(HEADER_INDEX);
+                        try {
+                            new CacheHeader(key, value).writeHeader(out);
+                        } finally {
                             out.close();
                         }
-                    } catch (IOException e) {}
+                        editor.commit();
+                        editor = null;
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "updateMetadataDiskLruBasedCache - " + e);
+                } catch (IllegalStateException e) {
+                    // Removed between the lookup and the edit; there is nothing to update.
+                    Log.e(TAG, "updateMetadataDiskLruBasedCache - " + e);
+                } finally {
+                    if (editor != null) {
+                        editor.abortUnlessCommitted();
+                    }
                 }
             }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
         }
 	}
 
@@ -345,13 +533,13 @@ public class DiskLruBasedCache implements Cache {
 
 	@Override
 	public void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
+        Entry entry = getMetadata(key);
         if (entry != null) {
             entry.softTtl = -1;
             if (fullExpire) {
                 entry.ttl = -1;
             }
-            put(key, entry);
+            updateMetadata(key, entry);
         }
 	}
 
@@ -361,25 +549,35 @@ public class DiskLruBasedCache implements Cache {
             return;
         }
 
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLock.readLock().lock();
+        try {
             // remove to disk cache
             if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                try {
-                    mDiskLruCache.remove(key);
-                } catch (final IOException e) {
-                    Log.e(TAG, "removeDiskLruBasedCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "removeDiskLruBasedCache - " + e);
-                }
+                removeQuietly(hashKeyForDisk(data));
             }
-        }	
+        } finally {
+            mDiskCacheLock.readLock().unlock();
+        }
 	}
 
+    /**
+     * Removes the entry for a hashed key. Must be called with the read side of mDiskCacheLock
+     * held and mDiskLruCache set.
+     */
+    private void removeQuietly(String key) {
+        try {
+            mDiskLruCache.remove(key);
+        } catch (final IOException e) {
+            Log.e(TAG, "removeDiskLruBasedCache - " + e);
+        } catch (Exception e) {
+            Log.e(TAG, "removeDiskLruBasedCache - " + e);
+        }
+    }
+
 	@Override
 	public void clear() {
-        synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
+        mDiskCacheLock.writeLock().lock();
+        try {
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
                     mDiskLruCache.delete();
@@ -390,8 +588,11 @@ public class DiskLruBasedCache implements Cache {
                     Log.e(TAG, "clearCache - " + e);
                 }
                 mDiskLruCache = null;
+                // Reentrant: the cache is reopened before any reader gets back in.
                 initDiskCache();
             }
+        } finally {
+            mDiskCacheLock.writeLock().unlock();
         }
 	}
 	
@@ -400,7 +601,8 @@ public class DiskLruBasedCache implements Cache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void flush() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
@@ -411,6 +613,8 @@ public class DiskLruBasedCache implements Cache {
                     Log.e(TAG, "flush - " + e);
                 }
             }
+        } finally {
+            mDiskCacheLock.readLock().unlock();
         }
     }
 
@@ -419,7 +623,8 @@ public class DiskLruBasedCache implements Cache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void close() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLock.writeLock().lock();
+        try {
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
@@ -433,6 +638,8 @@ public class DiskLruBasedCache implements Cache {
                     Log.e(TAG, "close - " + e);
                 }
             }
+        } finally {
+            mDiskCacheLock.writeLock().unlock();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.android.volley.VolleyLog;
+
+/**
+ * Download progress persisted next to the target file, in a sidecar named
+ * {@code <target>.progress}.
+ *
+ * <p>The target is described as one or more byte-range segments, each with the offset up to
+ * which its bytes are known to be on disk. The sidecar is only rewritten after the target's
+ * data has been forced to storage, and always through a temp file and rename, so a crash at
+ * any point leaves a resume offset that never runs ahead of the data.</p>
+ */
+public class DownloadCheckpoint {
+
+    /** Magic number identifying a checkpoint file. */
+    private static final int CHECKPOINT_MAGIC = 0x56444c31; // "VDL1"
+
+    private static final String SUFFIX = ".progress";
+
+    /** A byte range of the target and how much of it is on disk. */
+    public static class Segment {
+        /** First byte of the range. */
+        public final long start;
+        /** One past the last byte of the range, or -1 if the length is unknown. */
+        public final long end;
+        /** Offset up to which the range has been written and forced to disk. */
+        volatile long committed;
+
+        public Segment(long start, long end, long committed) {
+            this.start = start;
+            this.end = end;
+            this.committed = committed;
+        }
+
+        /** Returns the offset up to which this segment is durably written. */
+        public long getCommitted() {
+            return committed;
+        }
+
+        /** Returns true if every byte of a bounded segment has been written. */
+        public boolean isComplete() {
+            return end >= 0 && committed >= end;
+        }
+    }
+
+    private final File mTarget;
+    private final long mTotalLength;
+    private final List<Segment> mSegments;
+
+    /**
+     * Creates a checkpoint for a target split into the given segments.
+     *
+     * @param target The file being downloaded
+     * @param totalLength Total length of the target, or -1 if unknown
+     * @param segments The byte ranges the target is fetched in
+     */
+    public DownloadCheckpoint(File target, long totalLength, List<Segment> segments) {
+        mTarget = target;
+        mTotalLength = totalLength;
+        mSegments = Collections.unmodifiableList(new ArrayList<Segment>(segments));
+    }
+
+    /**
+     * Creates a checkpoint for a target fetched as a single stream starting at the given offset.
+     */
+    public static DownloadCheckpoint single(File target, long totalLength, long offset) {
+        List<Segment> segments = new ArrayList<Segment>(1);
+        segments.add(new Segment(0, totalLength, offset));
+        return new DownloadCheckpoint(target, totalLength, segments);
+    }
+
+    /**
+     * Creates a checkpoint for a target of known length split into the given number of
+     * equally sized segments, none of them started yet.
+     */
+    public static DownloadCheckpoint split(File target, long totalLength, int count) {
+        List<Segment> segments = new ArrayList<Segment>(count);
+        long size = totalLength / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? totalLength : start + size;
+            segments.add(new Segment(start, end, start));
+        }
+        return new DownloadCheckpoint(target, totalLength, segments);
+    }
+
+    /** Returns true if the target is fetched in more than one segment. */
+    public boolean isSegmented() {
+        return mSegments.size() > 1;
+    }
+
+    public File getTarget() {
+        return mTarget;
+    }
+
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    /** Returns the number of bytes already on disk across all segments. */
+    public long getCommittedBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.committed - segment.start;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the offset a single-stream download of the target may resume from. Uses the
+     * sidecar if there is one; otherwise a target without a sidecar was written by an older
+     * version, and its length is taken as is.
+     */
+    public static long getResumeOffset(File target) {
+        DownloadCheckpoint checkpoint = read(target);
+        if (checkpoint == null) {
+            return target.length();
+        }
+        if (checkpoint.mSegments.size() != 1) {
+            // Progress of a segmented download cannot be resumed as one stream.
+            return 0;
+        }
+        return Math.min(checkpoint.mSegments.get(0).committed, target.length());
+    }
+
+    /**
+     * Reads the checkpoint of the given target, or returns null if there is none or it is
+     * unreadable.
+     */
+    public static DownloadCheckpoint read(File target) {
+        File file = sidecarFor(target);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("bad checkpoint magic");
+            }
+            long totalLength = in.readLong();
+            int count = in.readInt();
+            if (count <= 0 || count > 1024) {
+                throw new IOException("bad segment count " + count);
+            }
+            List<Segment> segments = new ArrayList<Segment>(count);
+            for (int i = 0; i < count; i++) {
+                segments.add(new Segment(in.readLong(), in.readLong(), in.readLong()));
+            }
+            return new DownloadCheckpoint(target, totalLength, segments);
+        } catch (IOException e) {
+            VolleyLog.d("Ignoring unreadable download checkpoint %s: %s", file, e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the sidecar with the current progress. The caller must have forced
+     * the target's data to disk first.
+     */
+    public synchronized void save() throws IOException {
+        File file = sidecarFor(mTarget);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(mTotalLength);
+            out.writeInt(mSegments.size());
+            for (Segment segment : mSegments) {
+                out.writeLong(segment.start);
+                out.writeLong(segment.end);
+                out.writeLong(segment.committed);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace download checkpoint " + file);
+        }
+    }
+
+    /**
+     * Removes the sidecar of the given target, once the download is complete or abandoned.
+     */
+    public static void delete(File target) {
+        sidecarFor(target).delete();
+    }
+
+    private static File sidecarFor(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+}
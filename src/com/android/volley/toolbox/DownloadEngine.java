@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.SystemClock;
+
+import com.android.volley.ResponseDelivery;
+import com.android.volley.VolleyLog;
+
+/**
+ * Writes download bodies into their target file through a {@link FileChannel}.
+ *
+ * <p>Bodies are copied in large pooled buffers and written with positional writes, so each
+ * segment of a target can be written independently of the others. Progress is forced to disk
+ * and recorded in a {@link DownloadCheckpoint} every {@link #CHECKPOINT_INTERVAL_BYTES} bytes
+ * or {@link #CHECKPOINT_INTERVAL_MS} ms, whichever comes first.</p>
+ */
+public class DownloadEngine {
+
+    /** Size of the buffers bodies are copied through. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Buffers shared by all downloads; keeps a few around between downloads. */
+    private static final ByteArrayPool sBufferPool = new ByteArrayPool(4 * BUFFER_SIZE);
+
+    /** Bytes written between two checkpoints. */
+    private static final long CHECKPOINT_INTERVAL_BYTES = 1024 * 1024;
+
+    /** Time between two checkpoints. */
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private final DownloadRequest mRequest;
+    private final DownloadCheckpoint mCheckpoint;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    /** Bytes of the target on disk, across all segments. */
+    private final ProgressAggregator.Tracker mProgress;
+
+    /**
+     * Opens the target of the given checkpoint for writing. A single-segment checkpoint that
+     * starts from scratch truncates the target; otherwise existing bytes are kept.
+     *
+     * @param request The request the target belongs to
+     * @param delivery Delivery to post progress through
+     * @param checkpoint Segments to write and their progress so far
+     */
+    public DownloadEngine(DownloadRequest request, ResponseDelivery delivery,
+            DownloadCheckpoint checkpoint) throws IOException {
+        mRequest = request;
+        mCheckpoint = checkpoint;
+        mProgress = ProgressAggregator.getDefault().track(request, delivery,
+                checkpoint.getTotalLength(), checkpoint.getCommittedBytes());
+        File target = checkpoint.getTarget();
+        mFile = new RandomAccessFile(target, "rw");
+        mChannel = mFile.getChannel();
+        if (checkpoint.getCommittedBytes() == 0 && checkpoint.getSegments().size() == 1) {
+            mChannel.truncate(0);
+        }
+    }
+
+    /** Returns the checkpoint this engine records progress in. */
+    public DownloadCheckpoint getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * Sets the target to its final length up front, so that segments written out of order
+     * land in a file that is already its final size.
+     */
+    public void preallocate(long length) throws IOException {
+        if (length > 0 && mFile.length() != length) {
+            mFile.setLength(length);
+        }
+    }
+
+    /**
+     * Copies a body into its segment of the target, starting at the segment's committed
+     * offset. Returns when the body ends, the segment is full or the request is canceled.
+     *
+     * @param in The body of the response serving this segment
+     * @param segment The segment to fill
+     * @throws IOException if reading or writing fails, or the request was canceled before the
+     *         segment was complete
+     */
+    public void transfer(InputStream in, DownloadCheckpoint.Segment segment) throws IOException {
+        byte[] buffer = sBufferPool.getBuf(BUFFER_SIZE);
+        try {
+            long position = segment.committed;
+            long sinceCheckpoint = 0;
+            long lastCheckpoint = SystemClock.uptimeMillis();
+            while (!mRequest.isCanceled() && (segment.end < 0 || position < segment.end)) {
+                int max = BUFFER_SIZE;
+                if (segment.end >= 0) {
+                    max = (int) Math.min(max, segment.end - position);
+                }
+                int filled = fill(in, buffer, max);
+                if (filled <= 0) {
+                    break;
+                }
+                ByteBuffer source = ByteBuffer.wrap(buffer, 0, filled);
+                while (source.hasRemaining()) {
+                    position += mChannel.write(source, position);
+                }
+                sinceCheckpoint += filled;
+                mProgress.add(filled);
+
+                long now = SystemClock.uptimeMillis();
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL_BYTES
+                        || now - lastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+                    checkpoint(segment, position);
+                    sinceCheckpoint = 0;
+                    lastCheckpoint = now;
+                }
+            }
+            checkpoint(segment, position);
+            if (mRequest.isCanceled() && !segment.isComplete()) {
+                throw new IOException("user stop download thread");
+            }
+        } finally {
+            sBufferPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * Posts the final progress, forces the target to disk and removes the checkpoint.
+     */
+    public void complete() throws IOException {
+        mChannel.force(false);
+        mProgress.finish();
+        DownloadCheckpoint.delete(mCheckpoint.getTarget());
+    }
+
+    /**
+     * Closes the target. The checkpoint, if still present, stays behind for a later resume.
+     */
+    public void close() {
+        mProgress.release();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            VolleyLog.v("Error closing download target %s", mCheckpoint.getTarget());
+        }
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // Already closed with the channel.
+        }
+    }
+
+    /** Forces written data to disk, then records it as committed. */
+    private void checkpoint(DownloadCheckpoint.Segment segment, long position)
+            throws IOException {
+        if (position == segment.committed) {
+            return;
+        }
+        mChannel.force(false);
+        segment.committed = position;
+        mCheckpoint.save();
+    }
+
+    /**
+     * Reads until the buffer holds max bytes or the stream ends, so writes go out in large
+     * chunks even when the socket hands back small reads.
+     */
+    private static int fill(InputStream in, byte[] buffer, int max) throws IOException {
+        int filled = 0;
+        while (filled < max) {
+            int read = in.read(buffer, filled, max - filled);
+            if (read == -1) {
+                break;
+            }
+            filled += read;
+            if (in.available() <= 0) {
+                // Do not sit on data already read while the socket is slow.
+                break;
+            }
+        }
+        return filled == 0 && max > 0 ? -1 : filled;
+    }
+}
@@ -6,6 +6,9 @@ import java.util.Map;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.Response.LoadingListener;
@@ -24,6 +27,7 @@ public class DownloadRequest extends StringRequest {
 
     private String target;
     private boolean isResume;
+    private int segmentCount = 1;
 
     public String getTarget() {
         return target;
@@ -41,10 +45,38 @@ public class DownloadRequest extends StringRequest {
         this.isResume = isResume;
     }
     
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Fetches the target over up to the given number of concurrent range requests, written
+     * into one preallocated file. Falls back to a single stream when the server does not
+     * support ranges or the target is too small to be worth splitting.
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = Math.max(1, segmentCount);
+    }
+
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
         File file = new File(target);
-        final long fileLen = file.length();
+        if (segmentCount > 1) {
+            // Always ask for a range so the response tells us whether ranges are supported
+            // and how long the target is. A segmented download in progress resumes its first
+            // segment on this connection.
+            long offset = 0;
+            DownloadCheckpoint checkpoint = isResume ? DownloadCheckpoint.read(file) : null;
+            if (checkpoint != null && checkpoint.isSegmented()) {
+                offset = checkpoint.getSegments().get(0).getCommitted();
+            } else if (isResume) {
+                offset = DownloadCheckpoint.getResumeOffset(file);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Range", "bytes=" + offset + "-");
+            return headers;
+        }
+        final long fileLen = DownloadCheckpoint.getResumeOffset(file);
         if (isResume && fileLen > 0) {
             Map<String, String> headers = new HashMap<String, String>();
             headers.put("Range", "bytes="+fileLen+"-");
@@ -62,4 +94,45 @@ public class DownloadRequest extends StringRequest {
     public void stopDownload() {
         cancel();
     }
+
+    /**
+     * Returns a request for the remaining bytes of one segment of this download. It carries
+     * this request's URL and headers, with the Range replaced by the segment's.
+     */
+    Request<Void> newSegmentRequest(DownloadCheckpoint.Segment segment) {
+        return new SegmentRequest(this, segment);
+    }
+
+    /**
+     * A range request for one segment of a download. It is executed directly on the
+     * {@link HttpStack} by {@link BasicNetwork} and never added to a queue.
+     */
+    private static class SegmentRequest extends Request<Void> {
+        private final DownloadRequest mParent;
+        private final DownloadCheckpoint.Segment mSegment;
+
+        SegmentRequest(DownloadRequest parent, DownloadCheckpoint.Segment segment) {
+            super(Method.GET, parent.getUrl(), null);
+            mParent = parent;
+            mSegment = segment;
+            setRetryPolicy(new DefaultRetryPolicy(parent.getTimeoutMs(), 0, 1));
+            setShouldGzip(false);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<String, String>(mParent.getHeaders());
+            headers.put("Range", "bytes=" + mSegment.getCommitted() + "-" + (mSegment.end - 1));
+            return headers;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
 }
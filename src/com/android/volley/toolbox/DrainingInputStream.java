@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decorator for a response body {@link InputStream} that reads whatever is left of the body
+ * when it is closed, so the underlying connection can go back to the keep-alive pool instead
+ * of being torn down. Bodies with more than the drain limit left are abandoned, as reading
+ * them would cost more than a new connection.
+ */
+public class DrainingInputStream extends FilterInputStream {
+    private final ConnectionStats mStats;
+    private final long mDrainLimit;
+    private boolean mEof = false;
+    private boolean mClosed = false;
+
+    /**
+     * @param in The body stream of a connection
+     * @param stats Counters to record the outcome in
+     * @param drainLimit Maximum number of unread bytes to drain on close
+     */
+    public DrainingInputStream(InputStream in, ConnectionStats stats, long drainLimit) {
+        super(in);
+        mStats = stats;
+        mDrainLimit = drainLimit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            mEof = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read == -1) {
+            mEof = true;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        long drained = 0;
+        try {
+            if (!mEof) {
+                byte[] skip = new byte[1024];
+                int read;
+                while (drained <= mDrainLimit && (read = in.read(skip)) != -1) {
+                    drained += read;
+                }
+                mEof = drained <= mDrainLimit;
+            }
+        } catch (IOException e) {
+            mEof = false;
+        } finally {
+            mStats.onReleased(mEof, drained);
+            in.close();
+        }
+    }
+}
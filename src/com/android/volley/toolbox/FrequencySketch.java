@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * A compact estimate of how often keys have been requested recently, used by
+ * {@link DiskBasedCache} to decide whether a new entry is worth evicting others for.
+ *
+ * <p>This is the count-min sketch of TinyLFU: four 4-bit counters per key, packed sixteen to a
+ * long, with the estimate being the smallest of the four. Once the number of increments reaches
+ * ten times the expected number of keys every counter is halved, so that old popularity fades.
+ * Not thread safe.</p>
+ */
+class FrequencySketch {
+
+    /** Counters saturate at this value. */
+    private static final int MAX_FREQUENCY = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize = 0;
+
+    /**
+     * @param expectedKeys Rough number of distinct keys the cache holds
+     */
+    FrequencySketch(int expectedKeys) {
+        int length = 1;
+        while (length < expectedKeys) {
+            length <<= 1;
+        }
+        mTable = new long[length];
+        mTableMask = length - 1;
+        mSampleSize = 10 * length;
+    }
+
+    /** Returns the estimated number of recent requests for the key, at most 15. */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records a request for the key. */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            long mask = 0xfL << offset;
+            if ((mTable[index] & mask) != mask) {
+                mTable[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mTableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
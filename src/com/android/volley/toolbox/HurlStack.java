@@ -59,10 +59,18 @@ public class HurlStack implements HttpStack {
         public String rewriteUrl(String originalUrl);
     }
 
+    /** Default number of unread body bytes drained to keep a connection reusable. */
+    public static final long DEFAULT_DRAIN_LIMIT = 64 * 1024;
+
     private final UrlRewriter mUrlRewriter;
     private final SSLSocketFactory mSslSocketFactory;
     private final String mUserAgent;
 
+    /** How response bodies were released, and so how often connections were reusable. */
+    private final ConnectionStats mConnectionStats = new ConnectionStats();
+
+    private volatile long mDrainLimit = DEFAULT_DRAIN_LIMIT;
+
     public HurlStack(String userAgent) {
         this(null, userAgent);
     }
@@ -84,9 +92,39 @@ public class HurlStack implements HttpStack {
         mUserAgent = userAgent;
     }
 
+    /**
+     * Configures the platform's HttpURLConnection keep-alive pool, which is shared by every
+     * HurlStack in the process. Takes effect for connections opened afterwards.
+     *
+     * @param maxIdleConnections Maximum number of idle connections the pool keeps
+     * @param maxIdleMs Time an idle connection is kept before it is closed
+     */
+    public static void configureKeepAlive(int maxIdleConnections, long maxIdleMs) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(maxIdleMs));
+    }
+
+    /**
+     * Sets how many unread body bytes are drained when a response is closed early, so that its
+     * connection can be reused. Larger leftovers are abandoned together with the connection.
+     */
+    public void setDrainLimit(long drainLimit) {
+        mDrainLimit = drainLimit;
+    }
+
+    /**
+     * Returns counters of how response bodies were released, including the share of
+     * connections that could go back to the keep-alive pool.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mConnectionStats;
+    }
+
     @Override
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError {
+        mConnectionStats.onRequest();
         String url = request.getUrl();
         HashMap<String, String> map = new HashMap<String, String>();
         // chenbo add gzip support,new user-agent
@@ -156,7 +194,7 @@ public class HurlStack implements HttpStack {
      * @param connection
      * @return an HttpEntity populated with data from <code>connection</code>.
      */
-    private static HttpEntity entityFromConnection(HttpURLConnection connection) {
+    private HttpEntity entityFromConnection(HttpURLConnection connection) {
         BasicHttpEntity entity = new BasicHttpEntity();
         InputStream inputStream;
         try {
@@ -164,6 +202,10 @@ public class HurlStack implements HttpStack {
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
+        if (inputStream != null) {
+            // Whoever closes the body, the rest of it is drained so the socket can be reused.
+            inputStream = new DrainingInputStream(inputStream, mConnectionStats, mDrainLimit);
+        }
         entity.setContent(inputStream);
         entity.setContentLength(connection.getContentLength());
         entity.setContentEncoding(connection.getContentEncoding());
@@ -16,6 +16,7 @@
 
 package com.android.volley.toolbox;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import android.content.Context;
@@ -131,6 +132,14 @@ public class ImageRequest extends Request<Bitmap> {
 //        return resized;
 //    }
 
+    /**
+     * Cached images are decoded straight from the cache file, see {@link #doParse}.
+     */
+    @Override
+    public boolean canParseCacheBody() {
+        return true;
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
         // Serialize all decode on a global lock to reduce concurrent heap usage.
@@ -138,7 +147,9 @@ public class ImageRequest extends Request<Bitmap> {
             try {
                 return doParse(response);
             } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+                long length = response.data != null ? response.data.length
+                        : response.body != null ? response.body.length() : 0;
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", length, getUrl());
                 return Response.error(new ParseError(e));
             }
         }
@@ -149,7 +160,23 @@ public class ImageRequest extends Request<Bitmap> {
      */
     private Response<Bitmap> doParse(NetworkResponse response) {
         Bitmap bitmap = null;
-        if (URLUtil.isNetworkUrl(getUrl())) {
+        if (URLUtil.isNetworkUrl(getUrl()) && response.data == null && response.body != null) {
+            // A cache hit left in its file: decode from the mapping instead of a heap copy.
+            InputStream is = null;
+            try {
+                is = response.body.open();
+                bitmap = BitmapDecoder.inputStream2Bitmap(mContext, getUrl(), is, mDecodeConfig, mMaxWidth, mMaxHeight);
+            } catch (IOException e) {
+                return Response.error(new ParseError(e));
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        } else if (URLUtil.isNetworkUrl(getUrl())) {
             byte[] data = response.data;
             bitmap = BitmapDecoder.bytes2Bitmap(data, mDecodeConfig, mMaxWidth, mMaxHeight);
         } else {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.android.volley.NetworkResponse;
+
+/**
+ * Builds {@link JSONObject}s and {@link JSONArray}s token by token from a response body
+ * stream, without first decoding the whole body into a String. Falls back to decoding the
+ * String on platforms without {@link JsonReader} (API &lt; 11).
+ */
+public class JsonStreamParser {
+
+    private JsonStreamParser() {
+    }
+
+    /**
+     * Parses a response body holding a JSON object.
+     */
+    public static JSONObject parseObject(NetworkResponse response, InputStream in)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return new JSONObject(StreamingStringRequest.readString(response, in));
+        }
+        JsonReader reader = newReader(response, in);
+        return readObject(reader);
+    }
+
+    /**
+     * Parses a response body holding a JSON array.
+     */
+    public static JSONArray parseArray(NetworkResponse response, InputStream in)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return new JSONArray(StreamingStringRequest.readString(response, in));
+        }
+        JsonReader reader = newReader(response, in);
+        return readArray(reader);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static JsonReader newReader(NetworkResponse response, InputStream in) {
+        InputStreamReader reader;
+        try {
+            reader = new InputStreamReader(in, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            reader = new InputStreamReader(in);
+        }
+        JsonReader jsonReader = new JsonReader(reader);
+        // Match the leniency of org.json's tokener.
+        jsonReader.setLenient(true);
+        return jsonReader;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new JSONException("Unexpected token " + token);
+        }
+    }
+
+    /** Converts a number literal the way org.json's tokener does. */
+    private static Object parseNumber(String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1
+                && literal.indexOf('E') == -1) {
+            try {
+                long value = Long.parseLong(literal);
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // Too large for a long; fall through to double.
+            }
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            return literal;
+        }
+    }
+}
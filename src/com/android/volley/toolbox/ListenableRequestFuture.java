@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+/**
+ * A Future for a Volley request that can be listened to and composed without blocking.
+ *
+ * <p>Like {@link RequestFuture}, it is used as a request's listeners:</p>
+ * <pre>
+ * ListenableRequestFuture&lt;JSONObject&gt; future = ListenableRequestFuture.newFuture();
+ * requestQueue.add(future.attach(new JsonObjectRequest(URL, null, future, future)));
+ *
+ * future.transform(new ListenableRequestFuture.Function&lt;JSONObject, String&gt;() {
+ *     public String apply(JSONObject response) {
+ *         return response.optString("name");
+ *     }
+ * }).addCallback(new ListenableRequestFuture.Callback&lt;String&gt;() {
+ *     public void onSuccess(String name) { ... }
+ *     public void onFailure(VolleyError error) { ... }
+ * }, null);
+ * </pre>
+ *
+ * <p>Callbacks, transforms and {@link #allAsList combinations} run on the thread that
+ * completes the future, normally the delivery thread, unless given an executor; composing
+ * futures takes no thread of its own. Any number of threads may still block in {@link #get()}.
+ * A {@link Subscriber} additionally sees progress and intermediate responses, such as a
+ * soft-expired cache hit delivered before its refresh, which do not complete the future.</p>
+ *
+ * @param <T> The type of parsed response this future expects.
+ */
+public class ListenableRequestFuture<T> implements Future<T>, Response.Listener<T>,
+        Response.ErrorListener, Response.LoadingListener {
+
+    /** Called once when a future completes. */
+    public interface Callback<T> {
+        public void onSuccess(T result);
+
+        /** Called on failure, and on cancellation with a {@link CancellationException} cause. */
+        public void onFailure(VolleyError error);
+    }
+
+    /** Turns the result of one future into that of another. */
+    public interface Function<F, T> {
+        public T apply(F input) throws VolleyError;
+    }
+
+    /** Turns the result of one future into another future, e.g. of a follow-up request. */
+    public interface AsyncFunction<F, T> {
+        public ListenableRequestFuture<T> apply(F input) throws VolleyError;
+    }
+
+    /** Receives every element a request produces, not only its final result. */
+    public interface Subscriber<T> {
+        /** Called with upload or download progress of the request. */
+        public void onProgress(long count, long current);
+
+        /** Called with a response that a fresher one may follow. */
+        public void onIntermediate(T response);
+
+        /** Called with the final response; nothing follows. */
+        public void onComplete(T response);
+
+        /** Called on failure or cancellation; nothing follows. */
+        public void onError(VolleyError error);
+    }
+
+    /** Runs callbacks on the completing thread. */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /** Guards the completion state and the pending callbacks. */
+    private final Object mLock = new Object();
+
+    /** Released once the future completes, for blocking getters. */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile Request<?> mRequest;
+
+    private boolean mCompleted = false;
+    private boolean mCancelled = false;
+    private T mResult;
+    private VolleyError mError;
+
+    /** Callbacks waiting for completion; null once completed. */
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+
+    private final CopyOnWriteArrayList<Subscriber<? super T>> mSubscribers =
+            new CopyOnWriteArrayList<Subscriber<? super T>>();
+
+    /** Futures this one was derived from, canceled along with it. */
+    private final CopyOnWriteArrayList<Future<?>> mUpstream =
+            new CopyOnWriteArrayList<Future<?>>();
+
+    public static <E> ListenableRequestFuture<E> newFuture() {
+        return new ListenableRequestFuture<E>();
+    }
+
+    /**
+     * Returns a future that has already succeeded with the given result.
+     */
+    public static <E> ListenableRequestFuture<E> immediateFuture(E result) {
+        ListenableRequestFuture<E> future = new ListenableRequestFuture<E>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * Returns a future of the results of all the given futures, in their order. It fails as
+     * soon as one of them fails; canceling it cancels all of them.
+     */
+    public static <E> ListenableRequestFuture<List<E>> allAsList(
+            List<? extends ListenableRequestFuture<? extends E>> futures) {
+        final ListenableRequestFuture<List<E>> combined = new ListenableRequestFuture<List<E>>();
+        final int size = futures.size();
+        if (size == 0) {
+            combined.set(Collections.<E>emptyList());
+            return combined;
+        }
+        final Object[] results = new Object[size];
+        final AtomicInteger remaining = new AtomicInteger(size);
+        combined.mUpstream.addAll(futures);
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<E>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void onSuccess(E result) {
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0) {
+                        combined.set((List<E>) Arrays.asList(results));
+                    }
+                }
+
+                @Override
+                public void onFailure(VolleyError error) {
+                    combined.setException(error);
+                }
+            }, null);
+        }
+        return combined;
+    }
+
+    protected ListenableRequestFuture() {}
+
+    /**
+     * Makes this future cancel the given request when canceled, and tells intermediate
+     * responses of it apart from the final one.
+     */
+    public void setRequest(Request<?> request) {
+        mRequest = request;
+    }
+
+    /**
+     * Sets the given request as this future's request and this future as its loading listener,
+     * and returns it for adding to a queue.
+     */
+    public <R extends Request<?>> R attach(R request) {
+        setRequest(request);
+        request.setLoadingListener(this);
+        return request;
+    }
+
+    /**
+     * Completes the future with the given result.
+     *
+     * @return false if the future had already completed
+     */
+    public boolean set(T result) {
+        return complete(result, null, false);
+    }
+
+    /**
+     * Fails the future with the given error.
+     *
+     * @return false if the future had already completed
+     */
+    public boolean setException(VolleyError error) {
+        return complete(null, error, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, new VolleyError(new CancellationException()), true)) {
+            return false;
+        }
+        Request<?> request = mRequest;
+        if (request != null) {
+            request.cancel();
+        }
+        for (Future<?> upstream : mUpstream) {
+            upstream.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mCancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mCompleted;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getDone();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getDone();
+    }
+
+    private T getDone() throws ExecutionException {
+        synchronized (mLock) {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mResult;
+        }
+    }
+
+    /**
+     * Runs the listener once this future completes, on the given executor, or on the
+     * completing thread if it is null. Runs it right away if already complete.
+     */
+    public void addListener(final Runnable listener, Executor executor) {
+        final Executor target = executor == null ? DIRECT : executor;
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                target.execute(listener);
+            }
+        };
+        synchronized (mLock) {
+            if (!mCompleted) {
+                mCallbacks.add(dispatch);
+                return;
+            }
+        }
+        dispatch.run();
+    }
+
+    /**
+     * Calls back with the result once this future completes, on the given executor, or on the
+     * completing thread if it is null.
+     */
+    public void addCallback(final Callback<? super T> callback, Executor executor) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                VolleyError error;
+                synchronized (mLock) {
+                    result = mResult;
+                    error = mError;
+                }
+                if (error != null) {
+                    callback.onFailure(error);
+                } else {
+                    callback.onSuccess(result);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns a future of the result of this one passed through the function. The function
+     * runs on the thread completing this future; failures skip it.
+     */
+    public <R> ListenableRequestFuture<R> transform(
+            final Function<? super T, ? extends R> function) {
+        final ListenableRequestFuture<R> derived = new ListenableRequestFuture<R>();
+        derived.mUpstream.add(this);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                R transformed;
+                try {
+                    transformed = function.apply(result);
+                } catch (VolleyError e) {
+                    derived.setException(e);
+                    return;
+                } catch (RuntimeException e) {
+                    derived.setException(new VolleyError(e));
+                    return;
+                }
+                derived.set(transformed);
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                derived.setException(error);
+            }
+        }, null);
+        return derived;
+    }
+
+    /**
+     * Returns a future of the future the function makes of this one's result, e.g. a request
+     * that needs the response of this one. Canceling the returned future cancels both.
+     */
+    public <R> ListenableRequestFuture<R> then(
+            final AsyncFunction<? super T, R> function) {
+        final ListenableRequestFuture<R> derived = new ListenableRequestFuture<R>();
+        derived.mUpstream.add(this);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                ListenableRequestFuture<R> next;
+                try {
+                    next = function.apply(result);
+                } catch (VolleyError e) {
+                    derived.setException(e);
+                    return;
+                } catch (RuntimeException e) {
+                    derived.setException(new VolleyError(e));
+                    return;
+                }
+                derived.mUpstream.add(next);
+                if (derived.isCancelled()) {
+                    next.cancel(false);
+                    return;
+                }
+                next.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R nextResult) {
+                        derived.set(nextResult);
+                    }
+
+                    @Override
+                    public void onFailure(VolleyError error) {
+                        derived.setException(error);
+                    }
+                }, null);
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                derived.setException(error);
+            }
+        }, null);
+        return derived;
+    }
+
+    /**
+     * Subscribes to every element of the request: progress, intermediate responses and the
+     * final result or error. A subscriber added after completion only gets the final element.
+     */
+    public void subscribe(Subscriber<? super T> subscriber) {
+        synchronized (mLock) {
+            if (!mCompleted) {
+                mSubscribers.add(subscriber);
+                return;
+            }
+        }
+        notifyCompleted(subscriber);
+    }
+
+    public void unsubscribe(Subscriber<? super T> subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    @Override
+    public void onResponse(T response) {
+        Request<?> request = mRequest;
+        if (request != null && request.isDeliveringIntermediate()) {
+            for (Subscriber<? super T> subscriber : mSubscribers) {
+                subscriber.onIntermediate(response);
+            }
+            return;
+        }
+        set(response);
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        setException(error);
+    }
+
+    @Override
+    public void onLoading(long count, long current) {
+        for (Subscriber<? super T> subscriber : mSubscribers) {
+            subscriber.onProgress(count, current);
+        }
+    }
+
+    private boolean complete(T result, VolleyError error, boolean cancelled) {
+        List<Runnable> callbacks;
+        List<Subscriber<? super T>> subscribers;
+        synchronized (mLock) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mCancelled = cancelled;
+            mResult = result;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            subscribers = new ArrayList<Subscriber<? super T>>(mSubscribers);
+            mSubscribers.clear();
+        }
+        mDone.countDown();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        for (Subscriber<? super T> subscriber : subscribers) {
+            notifyCompleted(subscriber);
+        }
+        return true;
+    }
+
+    private void notifyCompleted(Subscriber<? super T> subscriber) {
+        T result;
+        VolleyError error;
+        synchronized (mLock) {
+            result = mResult;
+            error = mError;
+        }
+        if (error != null) {
+            subscriber.onError(error);
+        } else {
+            subscriber.onComplete(result);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.android.volley.Request;
+import com.android.volley.ResponseDelivery;
+
+/**
+ * Decorator for a response body {@link InputStream} that counts the bytes read into a
+ * {@link ProgressAggregator.Tracker}, which posts loading progress to the request's
+ * {@link com.android.volley.Response.LoadingListener} at the request's rate.
+ */
+public class LoadingInputStream extends FilterInputStream {
+    private final ProgressAggregator.Tracker mProgress;
+
+    /**
+     * @param in The body stream
+     * @param delivery Delivery to post progress through
+     * @param request The request the body belongs to
+     * @param length Content length of the body, or -1 if unknown
+     */
+    public LoadingInputStream(InputStream in, ResponseDelivery delivery, Request<?> request,
+            long length) {
+        super(in);
+        mProgress = ProgressAggregator.getDefault().track(request, delivery, length, 0);
+    }
+
+    /** Returns the number of bytes read so far. */
+    public long getCount() {
+        return mProgress.get();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        onRead(b == -1 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        onRead(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        mProgress.add(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Stops progress reporting without a final update if the body wasn't read to its end. */
+    @Override
+    public void close() throws IOException {
+        mProgress.release();
+        super.close();
+    }
+
+    private void onRead(int read) {
+        if (read == -1) {
+            mProgress.finish();
+        } else {
+            mProgress.add(read);
+        }
+    }
+}
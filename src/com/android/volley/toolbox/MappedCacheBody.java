@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.android.volley.Cache;
+
+/**
+ * A cache entry body backed by a region of its file.
+ *
+ * <p>Regions of {@link #MIN_MAPPED_LENGTH} bytes or more are memory-mapped, so reading them
+ * goes through the page cache without a copy on the Java heap; smaller ones are read into a
+ * buffer, which is cheaper than setting up a mapping. A mapping stays valid after the channel
+ * is closed and after the file is renamed or deleted, which is how both disk caches replace
+ * entries, so the body can outlive the lock it was opened under.</p>
+ */
+public class MappedCacheBody implements Cache.Body {
+
+    /** Bodies smaller than this are read rather than mapped. */
+    public static final int MIN_MAPPED_LENGTH = 64 * 1024;
+
+    private final ByteBuffer mBuffer;
+
+    private MappedCacheBody(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Creates a body over the given region of a file. The channel may be closed once this
+     * returns.
+     */
+    public static MappedCacheBody fromChannel(FileChannel channel, long offset, long length)
+            throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid body length " + length);
+        }
+        if (length >= MIN_MAPPED_LENGTH) {
+            return new MappedCacheBody(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return new MappedCacheBody(buffer);
+    }
+
+    @Override
+    public long length() {
+        return mBuffer.capacity();
+    }
+
+    @Override
+    public InputStream open() {
+        return new BufferInputStream(mBuffer.duplicate());
+    }
+
+    /**
+     * An InputStream over a private view of the buffer. Supports mark and reset, so decoders
+     * that read a header and rewind need no extra buffering.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer mView;
+        private int mMark = 0;
+
+        BufferInputStream(ByteBuffer view) {
+            mView = view;
+        }
+
+        @Override
+        public int read() {
+            return mView.hasRemaining() ? mView.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!mView.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mView.remaining());
+            mView.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mView.remaining()));
+            mView.position(mView.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mView.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mMark = mView.position();
+        }
+
+        @Override
+        public void reset() {
+            mView.position(mMark);
+        }
+    }
+}
@@ -3,19 +3,13 @@ package com.android.volley.toolbox;
 
 import java.io.File;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.SystemClock;
-
 import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.ExecutorDelivery;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.Response.LoadingListener;
-import com.android.volley.toolbox.UploadMultipartEntity.ProgressListener;
 import com.android.volley.toolbox.multipart.FilePart;
 import com.android.volley.toolbox.multipart.StringPart;
 
@@ -47,26 +41,9 @@ public abstract class MultiPartRequest<T> extends Request<T> {
         
         mMultipartEntity = new UploadMultipartEntity();
         
-        final ExecutorDelivery delivery = new ExecutorDelivery(new Handler(Looper.getMainLooper()));
         setLoadingListener(loadingListener);
         if (loadingListener != null) {
-            mMultipartEntity.setListener(new ProgressListener() {
-                long time = SystemClock.uptimeMillis();
-                long count = -1;
-                
-                @Override
-                public void transferred(long num) {
-                    if (count == -1) {
-                        count = mMultipartEntity.getContentLength();
-                    }
-                    // LogUtils.d("bacy", "upload->" + count + ",num->" + num);
-                    long thisTime = SystemClock.uptimeMillis();
-                    if (thisTime - time >= getRate() || count == num) {
-                        time = thisTime;
-                        delivery.postLoading(MultiPartRequest.this, count, num);
-                    }
-                }
-            });
+            mMultipartEntity.setProgress(this);
         }
         setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, DefaultRetryPolicy.DEFAULT_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
     }
@@ -0,0 +1,1028 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyLog;
+
+/**
+ * An {@link HttpStack} that multiplexes requests over a few non-blocking HTTP/1.1 connections.
+ *
+ * <p>All socket I/O happens on one selector thread. Each host gets up to a fixed number of
+ * keep-alive connections, and once they are all busy further idempotent requests are pipelined
+ * behind the ones already sent, up to a fixed depth per connection. Non-idempotent requests are
+ * only sent on an otherwise idle connection and nothing is pipelined behind them. Idempotent
+ * requests whose connection is lost before they were answered are sent again once.</p>
+ *
+ * <p>Response bodies are read into memory, up to {@link #setMaxBodySize(int)} bytes; a larger
+ * response fails with an IOException. Requests this stack can't serve that way (HTTPS,
+ * {@link MultiPartRequest} uploads and {@link DownloadRequest} files) are handed to the
+ * fallback stack.</p>
+ *
+ * <p>The request timeout applies to the time without any data, not to the whole exchange: a
+ * slow download keeps going as long as bytes keep arriving.</p>
+ */
+public class NioHttpStack implements HttpStack {
+
+    /** Default number of connections kept per host. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+
+    /** Default number of requests outstanding on one connection. */
+    public static final int DEFAULT_MAX_PIPELINE_DEPTH = 4;
+
+    /** Time an idle connection is kept open. */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    /** Upper bound on one select, so that timeouts are checked regularly. */
+    private static final long SELECT_INTERVAL_MS = 1000;
+
+    /** Number of times an idempotent request is sent before its connection failure is final. */
+    private static final int MAX_ATTEMPTS = 2;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** Largest status line plus headers accepted from a server. */
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    /** Default largest response body accepted from a server. */
+    public static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    private static final String HEADER_ENCODING = "ISO-8859-1";
+
+    private final String mUserAgent;
+    private final HttpStack mFallback;
+    private final int mMaxConnectionsPerHost;
+    private final int mMaxPipelineDepth;
+
+    /** Largest response body accepted, read by the selector thread for each new connection. */
+    private volatile int mMaxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+    /** Exchanges handed over by callers, picked up by the selector thread. */
+    private final ConcurrentLinkedQueue<Exchange> mSubmitted = new ConcurrentLinkedQueue<Exchange>();
+
+    /** Connections and waiting exchanges per host:port. Only touched by the selector thread. */
+    private final Map<String, HostState> mHosts = new HashMap<String, HostState>();
+
+    /** Read buffer shared by every connection. Only touched by the selector thread. */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** Opened with the selector thread on the first request. Guarded by {@code this}. */
+    private Selector mSelector;
+
+    private volatile boolean mShutdown = false;
+
+    public NioHttpStack(String userAgent) {
+        this(userAgent, new HurlStack(userAgent));
+    }
+
+    /**
+     * @param fallback Stack to use for requests this stack can't serve, may be null
+     */
+    public NioHttpStack(String userAgent, HttpStack fallback) {
+        this(userAgent, fallback, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_PIPELINE_DEPTH);
+    }
+
+    /**
+     * @param fallback Stack to use for requests this stack can't serve, may be null
+     * @param maxConnectionsPerHost Number of connections opened to one host at most
+     * @param maxPipelineDepth Number of requests outstanding on one connection at most
+     */
+    public NioHttpStack(String userAgent, HttpStack fallback, int maxConnectionsPerHost,
+            int maxPipelineDepth) {
+        if (maxConnectionsPerHost < 1 || maxPipelineDepth < 1) {
+            throw new IllegalArgumentException("Invalid limits: connections="
+                    + maxConnectionsPerHost + " depth=" + maxPipelineDepth);
+        }
+        mUserAgent = userAgent;
+        mFallback = fallback;
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mMaxPipelineDepth = maxPipelineDepth;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+        if (!"http".equals(url.getProtocol()) || request instanceof MultiPartRequest
+                || request instanceof DownloadRequest) {
+            if (mFallback == null) {
+                throw new IOException("NioHttpStack can't perform " + request.getUrl());
+            }
+            return mFallback.performRequest(request, additionalHeaders);
+        }
+        if (mShutdown) {
+            throw new IOException("NioHttpStack has been shut down");
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        // Resolve here so that DNS lookups never block the selector thread.
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(url.getHost());
+        }
+
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (request.isShouldGzip()) {
+            headers.put(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        }
+        headers.put(USER_AGENT, mUserAgent);
+        headers.putAll(request.getHeaders());
+        headers.putAll(additionalHeaders);
+
+        Exchange exchange = newExchange(request, url, port, address, headers);
+        ensureStarted().wakeup();
+        return exchange.await(CONNECTION_TIME_OUT_MS, request.getTimeoutMs());
+    }
+
+    /**
+     * Sets the largest response body accepted from a server. Responses with a larger body
+     * fail with an IOException instead of being read into memory. Applies to connections
+     * opened from now on.
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid max body size: " + maxBodySize);
+        }
+        mMaxBodySize = maxBodySize;
+    }
+
+    /**
+     * Closes every connection and stops the selector thread. Requests still outstanding fail
+     * with an IOException, and later requests are refused.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private Exchange newExchange(Request<?> request, URL url, int port,
+            InetSocketAddress address, Map<String, String> headers)
+            throws IOException, AuthFailureError {
+        String method;
+        byte[] body = null;
+        boolean hasBody = false;
+        boolean idempotent = true;
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                body = request.getPostBody();
+                hasBody = body != null;
+                method = hasBody ? "POST" : "GET";
+                idempotent = !hasBody;
+                if (hasBody) {
+                    headers.put(HEADER_CONTENT_TYPE, request.getPostBodyContentType());
+                }
+                break;
+            case Method.GET:
+                method = "GET";
+                break;
+            case Method.DELETE:
+                method = "DELETE";
+                break;
+            case Method.POST:
+                method = "POST";
+                hasBody = true;
+                idempotent = false;
+                break;
+            case Method.PUT:
+                method = "PUT";
+                hasBody = true;
+                break;
+            case Method.HEAD:
+                method = "HEAD";
+                break;
+            case Method.OPTIONS:
+                method = "OPTIONS";
+                break;
+            case Method.TRACE:
+                method = "TRACE";
+                break;
+            case Method.PATCH:
+                method = "PATCH";
+                hasBody = true;
+                idempotent = false;
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+        if (hasBody && request.getMethod() != Method.DEPRECATED_GET_OR_POST) {
+            headers.put(HEADER_CONTENT_TYPE, request.getBodyContentType());
+            body = request.getBody();
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        String path = url.getFile();
+        head.append(method).append(' ').append(path.length() == 0 ? "/" : path)
+                .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (port != url.getDefaultPort()) {
+            head.append(':').append(port);
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (hasBody) {
+            head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(HEADER_ENCODING);
+        byte[] message = headBytes;
+        if (body != null && body.length > 0) {
+            message = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, message, 0, headBytes.length);
+            System.arraycopy(body, 0, message, headBytes.length, body.length);
+        }
+        Exchange exchange = new Exchange(url.getHost() + ":" + port, address, message,
+                idempotent, request.getMethod() == Method.HEAD);
+        mSubmitted.add(exchange);
+        return exchange;
+    }
+
+    private synchronized Selector ensureStarted() throws IOException {
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            Thread thread = new Thread("Volley-NioHttpStack") {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return mSelector;
+    }
+
+    private void runLoop() {
+        Selector selector;
+        synchronized (this) {
+            selector = mSelector;
+        }
+        while (!mShutdown) {
+            try {
+                selector.select(SELECT_INTERVAL_MS);
+            } catch (IOException e) {
+                VolleyLog.e(e, "NioHttpStack select failed");
+                break;
+            }
+            Exchange submitted;
+            while ((submitted = mSubmitted.poll()) != null) {
+                HostState host = getHost(submitted.hostKey);
+                host.waiting.add(submitted);
+                dispatch(host);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        finishConnect(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                } catch (IOException e) {
+                    close(connection, e);
+                }
+            }
+            expireConnections(SystemClock.elapsedRealtime());
+        }
+
+        IOException shutdown = new IOException("NioHttpStack has been shut down");
+        for (HostState host : new ArrayList<HostState>(mHosts.values())) {
+            for (Exchange exchange : host.waiting) {
+                exchange.fail(shutdown);
+            }
+            host.waiting.clear();
+            for (Connection connection : new ArrayList<Connection>(host.connections)) {
+                close(connection, shutdown);
+            }
+        }
+        Exchange submitted;
+        while ((submitted = mSubmitted.poll()) != null) {
+            submitted.fail(shutdown);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private HostState getHost(String hostKey) {
+        HostState host = mHosts.get(hostKey);
+        if (host == null) {
+            host = new HostState(hostKey);
+            mHosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    /**
+     * Sends as many waiting exchanges of the host as its connections take.
+     */
+    private void dispatch(HostState host) {
+        while (!host.waiting.isEmpty()) {
+            Exchange exchange = host.waiting.getFirst();
+            if (exchange.abandoned) {
+                host.waiting.removeFirst();
+                continue;
+            }
+            Connection connection = pickConnection(host, exchange);
+            if (connection == null) {
+                if (host.connections.size() >= mMaxConnectionsPerHost) {
+                    break;
+                }
+                try {
+                    connection = open(host, exchange.address);
+                } catch (IOException e) {
+                    host.waiting.removeFirst();
+                    exchange.fail(e);
+                    continue;
+                }
+            }
+            host.waiting.removeFirst();
+            connection.send(exchange);
+        }
+        if (host.waiting.isEmpty() && host.connections.isEmpty()) {
+            mHosts.remove(host.hostKey);
+        }
+    }
+
+    /**
+     * Returns the least loaded connection able to take the exchange, or null if none is, or
+     * if a new connection may be opened instead of pipelining behind other requests.
+     */
+    private Connection pickConnection(HostState host, Exchange exchange) {
+        Connection best = null;
+        for (Connection connection : host.connections) {
+            int outstanding = connection.exchanges.size();
+            if (connection.exclusive || outstanding >= mMaxPipelineDepth
+                    || (!exchange.idempotent && outstanding > 0)) {
+                continue;
+            }
+            if (best == null || outstanding < best.exchanges.size()) {
+                best = connection;
+            }
+        }
+        if (best != null && !best.exchanges.isEmpty()
+                && host.connections.size() < mMaxConnectionsPerHost) {
+            return null;
+        }
+        return best;
+    }
+
+    private Connection open(HostState host, InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(host, channel, mMaxBodySize);
+            if (channel.connect(address)) {
+                connection.connected = true;
+                connection.key = channel.register(mSelector, SelectionKey.OP_READ, connection);
+            } else {
+                connection.key = channel.register(mSelector, SelectionKey.OP_CONNECT, connection);
+            }
+            host.connections.add(connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void finishConnect(Connection connection) throws IOException {
+        if (connection.channel.finishConnect()) {
+            connection.connected = true;
+            connection.lastActivity = SystemClock.elapsedRealtime();
+            connection.updateInterest();
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        while (!connection.pendingWrites.isEmpty()) {
+            ByteBuffer buffer = connection.pendingWrites.getFirst();
+            if (connection.channel.write(buffer) > 0) {
+                connection.touch(SystemClock.elapsedRealtime(), false);
+            }
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            connection.pendingWrites.removeFirst();
+        }
+        connection.updateInterest();
+    }
+
+    private void read(Connection connection) throws IOException {
+        mReadBuffer.clear();
+        int read = connection.channel.read(mReadBuffer);
+        if (read == 0) {
+            return;
+        }
+        connection.lastActivity = SystemClock.elapsedRealtime();
+        if (read < 0) {
+            // The server closed the connection; that ends a body delimited by end of stream.
+            if (!connection.exchanges.isEmpty()) {
+                HttpResponse response;
+                try {
+                    response = connection.parser.finish();
+                } catch (BodyTooLargeException e) {
+                    connection.exchanges.removeFirst().fail(e);
+                    throw e;
+                }
+                if (response != null) {
+                    connection.exchanges.removeFirst().complete(response);
+                }
+            }
+            close(connection, new IOException("Connection closed by server"));
+            return;
+        }
+        connection.touch(connection.lastActivity, true);
+        mReadBuffer.flip();
+        connection.parser.append(mReadBuffer);
+        while (!connection.exchanges.isEmpty()) {
+            Exchange exchange = connection.exchanges.getFirst();
+            HttpResponse response;
+            try {
+                response = connection.parser.parse(exchange.head);
+            } catch (BodyTooLargeException e) {
+                // Not worth sending again; the rest of the connection's exchanges may be.
+                connection.exchanges.removeFirst();
+                exchange.fail(e);
+                throw e;
+            }
+            if (response == null) {
+                break;
+            }
+            connection.exchanges.removeFirst();
+            connection.exclusive = false;
+            exchange.complete(response);
+            if (!connection.parser.isKeepAlive()) {
+                close(connection, new IOException("Connection closed by server"));
+                return;
+            }
+        }
+        if (connection.exchanges.isEmpty() && connection.parser.hasInput()) {
+            throw new IOException("Unexpected data from server");
+        }
+        dispatch(connection.host);
+    }
+
+    /**
+     * Closes connections that failed to connect in time, that have been idle for too long,
+     * or whose next response is no longer awaited by anyone.
+     */
+    private void expireConnections(long now) {
+        List<Connection> expired = new ArrayList<Connection>();
+        for (HostState host : mHosts.values()) {
+            for (Connection connection : host.connections) {
+                if (!connection.connected) {
+                    if (now - connection.lastActivity > CONNECTION_TIME_OUT_MS) {
+                        expired.add(connection);
+                    }
+                } else if (connection.exchanges.isEmpty()) {
+                    if (now - connection.lastActivity > KEEP_ALIVE_MS) {
+                        expired.add(connection);
+                    }
+                } else if (connection.exchanges.getFirst().abandoned) {
+                    expired.add(connection);
+                }
+            }
+        }
+        for (Connection connection : expired) {
+            close(connection, connection.connected ? new SocketTimeoutException("Read timed out")
+                    : new SocketTimeoutException("Connect timed out"));
+        }
+    }
+
+    /**
+     * Closes the connection. Exchanges still outstanding on it go back to the front of the
+     * host's queue if they may be sent again, and fail otherwise.
+     */
+    private void close(Connection connection, IOException cause) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        HostState host = connection.host;
+        host.connections.remove(connection);
+        ListIterator<Exchange> it = connection.exchanges.listIterator(connection.exchanges.size());
+        while (it.hasPrevious()) {
+            Exchange exchange = it.previous();
+            if (exchange.abandoned) {
+                continue;
+            }
+            if (exchange.idempotent && exchange.attempts < MAX_ATTEMPTS && !mShutdown) {
+                host.waiting.addFirst(exchange);
+            } else {
+                exchange.fail(cause);
+            }
+        }
+        connection.exchanges.clear();
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Closed connection to %s: %s", host.hostKey, cause.getMessage());
+        }
+        if (!mShutdown) {
+            dispatch(host);
+        }
+    }
+
+    /** The connections to one host:port and the exchanges waiting for one of them. */
+    private static class HostState {
+        final String hostKey;
+        final List<Connection> connections = new ArrayList<Connection>();
+        final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+
+        HostState(String hostKey) {
+            this.hostKey = hostKey;
+        }
+    }
+
+    /** One keep-alive connection. Only touched by the selector thread. */
+    private static class Connection {
+        final HostState host;
+        final SocketChannel channel;
+        SelectionKey key;
+
+        /** Exchanges sent or being sent, in the order their responses arrive. */
+        final LinkedList<Exchange> exchanges = new LinkedList<Exchange>();
+
+        /** Encoded requests not yet fully written. */
+        final LinkedList<ByteBuffer> pendingWrites = new LinkedList<ByteBuffer>();
+
+        final ResponseParser parser;
+
+        boolean connected = false;
+
+        /** Set while a non-idempotent request is outstanding. */
+        boolean exclusive = false;
+
+        /** Time the connection was opened, or last read or connected. */
+        long lastActivity = SystemClock.elapsedRealtime();
+
+        Connection(HostState host, SocketChannel channel, int maxBodySize) {
+            this.host = host;
+            this.channel = channel;
+            this.parser = new ResponseParser(maxBodySize);
+        }
+
+        /**
+         * Records that data moved for every exchange outstanding on the connection.
+         *
+         * @param read Whether data was read, as opposed to written
+         */
+        void touch(long now, boolean read) {
+            for (Exchange exchange : exchanges) {
+                exchange.lastProgress = now;
+                if (read) {
+                    exchange.receiving = true;
+                }
+            }
+        }
+
+        void send(Exchange exchange) {
+            exchange.attempts++;
+            exchange.lastProgress = SystemClock.elapsedRealtime();
+            exchanges.add(exchange);
+            if (!exchange.idempotent) {
+                exclusive = true;
+            }
+            pendingWrites.add(ByteBuffer.wrap(exchange.message));
+            if (connected) {
+                updateInterest();
+            }
+        }
+
+        void updateInterest() {
+            key.interestOps(pendingWrites.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /** A request handed to the selector thread, and the caller waiting for its response. */
+    private static class Exchange {
+        final String hostKey;
+        final InetSocketAddress address;
+        final byte[] message;
+        final boolean idempotent;
+        final boolean head;
+
+        /** Number of times the request has been sent. Only touched by the selector thread. */
+        int attempts = 0;
+
+        /** Set once the caller stopped waiting. */
+        volatile boolean abandoned = false;
+
+        /** Time the request was last queued, sent, or had data written or read. */
+        volatile long lastProgress = SystemClock.elapsedRealtime();
+
+        /** Set once data arrived on the connection the request was sent on. */
+        volatile boolean receiving = false;
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile HttpResponse mResponse;
+        private volatile IOException mError;
+
+        Exchange(String hostKey, InetSocketAddress address, byte[] message, boolean idempotent,
+                boolean head) {
+            this.hostKey = hostKey;
+            this.address = address;
+            this.message = message;
+            this.idempotent = idempotent;
+            this.head = head;
+        }
+
+        void complete(HttpResponse response) {
+            mResponse = response;
+            mDone.countDown();
+        }
+
+        void fail(IOException error) {
+            mError = error;
+            mDone.countDown();
+        }
+
+        /**
+         * Waits for the response as long as data keeps moving.
+         *
+         * @param connectTimeoutMs Extra time allowed before any data arrived
+         * @param readTimeoutMs Time allowed without any data written or read
+         */
+        HttpResponse await(long connectTimeoutMs, long readTimeoutMs) throws IOException {
+            try {
+                while (true) {
+                    long allowed = receiving ? readTimeoutMs : connectTimeoutMs + readTimeoutMs;
+                    long wait = lastProgress + allowed - SystemClock.elapsedRealtime();
+                    if (wait <= 0) {
+                        abandoned = true;
+                        throw new SocketTimeoutException("No data for " + allowed + "ms");
+                    }
+                    // Wake up at least once per read timeout to notice data that arrived.
+                    long step = readTimeoutMs > 0 ? Math.min(wait, readTimeoutMs) : wait;
+                    if (mDone.await(step, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                abandoned = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return mResponse;
+        }
+    }
+
+    /** Thrown when a response body exceeds the size limit. */
+    // Visible for testing.
+    static class BodyTooLargeException extends IOException {
+        BodyTooLargeException(long size) {
+            super("Response body too large: " + size + " bytes");
+        }
+    }
+
+    /**
+     * Incremental parser for the responses arriving on one connection.
+     */
+    // Visible for testing.
+    static class ResponseParser {
+        private static final int STATE_HEAD = 0;
+        private static final int STATE_FIXED = 1;
+        private static final int STATE_CHUNK_SIZE = 2;
+        private static final int STATE_CHUNK_DATA = 3;
+        private static final int STATE_CHUNK_END = 4;
+        private static final int STATE_TRAILER = 5;
+        private static final int STATE_UNTIL_CLOSE = 6;
+
+        private byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+        private int mStart = 0;
+        private int mEnd = 0;
+
+        private final int mMaxBodySize;
+
+        private int mState = STATE_HEAD;
+        private BasicHttpResponse mResponse;
+        private ByteArrayOutputStream mBody;
+        private long mRemaining;
+        private boolean mKeepAlive = true;
+
+        ResponseParser(int maxBodySize) {
+            mMaxBodySize = maxBodySize;
+        }
+
+        void append(ByteBuffer src) {
+            int length = src.remaining();
+            if (mBuffer.length - mEnd < length) {
+                int used = mEnd - mStart;
+                if (mBuffer.length - used < length) {
+                    byte[] grown = new byte[Math.max(mBuffer.length * 2, used + length)];
+                    System.arraycopy(mBuffer, mStart, grown, 0, used);
+                    mBuffer = grown;
+                } else {
+                    System.arraycopy(mBuffer, mStart, mBuffer, 0, used);
+                }
+                mStart = 0;
+                mEnd = used;
+            }
+            src.get(mBuffer, mEnd, length);
+            mEnd += length;
+        }
+
+        boolean hasInput() {
+            return mEnd > mStart;
+        }
+
+        /** Whether the connection may be used after the last parsed response. */
+        boolean isKeepAlive() {
+            return mKeepAlive;
+        }
+
+        /**
+         * Consumes buffered input and returns the next complete response, or null if more
+         * input is needed.
+         */
+        HttpResponse parse(boolean headRequest) throws IOException {
+            while (true) {
+                switch (mState) {
+                    case STATE_HEAD: {
+                        int end = indexOf(mStart, "\r\n\r\n");
+                        if (end < 0) {
+                            if (mEnd - mStart > MAX_HEAD_SIZE) {
+                                throw new IOException("Response headers too large");
+                            }
+                            return null;
+                        }
+                        String head = new String(mBuffer, mStart, end - mStart, HEADER_ENCODING);
+                        mStart = end + 4;
+                        if (parseHead(head, headRequest)) {
+                            return completeResponse();
+                        }
+                        break;
+                    }
+                    case STATE_FIXED:
+                    case STATE_CHUNK_DATA: {
+                        int n = (int) Math.min(mRemaining, mEnd - mStart);
+                        writeBody(n);
+                        mRemaining -= n;
+                        if (mRemaining > 0) {
+                            return null;
+                        }
+                        if (mState == STATE_FIXED) {
+                            return completeResponse();
+                        }
+                        mState = STATE_CHUNK_END;
+                        break;
+                    }
+                    case STATE_CHUNK_SIZE: {
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        int semicolon = line.indexOf(';');
+                        if (semicolon >= 0) {
+                            line = line.substring(0, semicolon);
+                        }
+                        try {
+                            mRemaining = Long.parseLong(line.trim(), 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Bad chunk size: " + line);
+                        }
+                        if (mBody.size() + mRemaining > mMaxBodySize) {
+                            throw new BodyTooLargeException(mBody.size() + mRemaining);
+                        }
+                        mState = mRemaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+                        break;
+                    }
+                    case STATE_CHUNK_END: {
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        if (line.length() != 0) {
+                            throw new IOException("Missing chunk terminator");
+                        }
+                        mState = STATE_CHUNK_SIZE;
+                        break;
+                    }
+                    case STATE_TRAILER: {
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        if (line.length() == 0) {
+                            return completeResponse();
+                        }
+                        break;
+                    }
+                    case STATE_UNTIL_CLOSE: {
+                        writeBody(mEnd - mStart);
+                        return null;
+                    }
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+
+        /**
+         * Called at end of stream. Returns the response if its body was delimited by the end
+         * of the stream, or null if no response was complete.
+         */
+        HttpResponse finish() throws IOException {
+            if (mState != STATE_UNTIL_CLOSE) {
+                return null;
+            }
+            parse(false);
+            return completeResponse();
+        }
+
+        /**
+         * Parses the status line and headers, and sets up reading of the body.
+         *
+         * @return true if the response has no body, false if a body follows or the response
+         *         was informational and another head follows
+         */
+        private boolean parseHead(String head, boolean headRequest) throws IOException {
+            String[] lines = head.split("\r\n");
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                throw new IOException("Bad status line: " + lines[0]);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line: " + lines[0]);
+            }
+            if (code >= 100 && code < 200) {
+                // Interim response, the real one follows.
+                return false;
+            }
+            int minor = status[0].equals("HTTP/1.0") ? 0 : 1;
+            mResponse = new BasicHttpResponse(new BasicStatusLine(
+                    new ProtocolVersion("HTTP", 1, minor), code,
+                    status.length > 2 ? status[2] : ""));
+            mBody = new ByteArrayOutputStream();
+            mKeepAlive = minor == 1;
+            boolean chunked = false;
+            long contentLength = -1;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                mResponse.addHeader(name, value);
+                if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    if (value.equalsIgnoreCase("close")) {
+                        mKeepAlive = false;
+                    } else if (value.equalsIgnoreCase("keep-alive")) {
+                        mKeepAlive = true;
+                    }
+                }
+            }
+            if (headRequest || code == 204 || code == 304) {
+                return true;
+            }
+            if (chunked) {
+                mState = STATE_CHUNK_SIZE;
+            } else if (contentLength >= 0) {
+                if (contentLength > mMaxBodySize) {
+                    throw new BodyTooLargeException(contentLength);
+                }
+                mRemaining = contentLength;
+                mState = STATE_FIXED;
+            } else {
+                mKeepAlive = false;
+                mState = STATE_UNTIL_CLOSE;
+            }
+            return false;
+        }
+
+        /** Moves the next length bytes of input to the body. */
+        private void writeBody(int length) throws IOException {
+            if (mBody.size() + length > mMaxBodySize) {
+                throw new BodyTooLargeException(mBody.size() + length);
+            }
+            mBody.write(mBuffer, mStart, length);
+            mStart += length;
+        }
+
+        private HttpResponse completeResponse() throws UnsupportedEncodingException {
+            BasicHttpResponse response = mResponse;
+            ByteArrayEntity entity = new ByteArrayEntity(mBody.toByteArray());
+            if (response.getFirstHeader(HEADER_CONTENT_TYPE) != null) {
+                entity.setContentType(response.getFirstHeader(HEADER_CONTENT_TYPE));
+            }
+            HttpEntity result = entity;
+            if (response.getFirstHeader("Content-Encoding") != null) {
+                String encoding = response.getFirstHeader("Content-Encoding").getValue();
+                entity.setContentEncoding(encoding);
+                if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+                    result = new InflatingEntity(entity);
+                }
+            }
+            response.setEntity(result);
+            mResponse = null;
+            mBody = null;
+            mState = STATE_HEAD;
+            return response;
+        }
+
+        /** Returns the next CRLF terminated line without its terminator, or null. */
+        private String readLine() throws IOException {
+            int end = indexOf(mStart, "\r\n");
+            if (end < 0) {
+                if (mEnd - mStart > MAX_HEAD_SIZE) {
+                    throw new IOException("Line too long");
+                }
+                return null;
+            }
+            String line = new String(mBuffer, mStart, end - mStart, HEADER_ENCODING);
+            mStart = end + 2;
+            return line;
+        }
+
+        private int indexOf(int from, String pattern) {
+            int last = mEnd - pattern.length();
+            outer:
+            for (int i = from; i <= last; i++) {
+                for (int j = 0; j < pattern.length(); j++) {
+                    if (mBuffer[i + j] != pattern.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -35,6 +35,20 @@ public class NoCache implements Cache {
     public void put(String key, Entry entry) {
     }
 
+    @Override
+    public Entry getLazy(String key) {
+        return null;
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        return null;
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+    }
+
     @Override
     public void invalidate(String key, boolean fullExpire) {
     }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.ResponseDelivery;
+
+/**
+ * Collects upload and download progress of all requests and publishes it from one shared
+ * thread at a fixed rate.
+ *
+ * <p>Code moving a body only adds the bytes it moved to the request's {@link Tracker}, an
+ * atomic counter; it neither reads the clock nor posts anything. Once per tick the aggregator
+ * thread samples every tracker and posts progress for those that moved since their last post
+ * and whose {@link Request#getRate() rate} allows it, all in one pass. The thread waits while
+ * nothing is tracked.</p>
+ */
+public class ProgressAggregator {
+
+    /** Default time between two samples. */
+    public static final long DEFAULT_TICK_MS = 50;
+
+    private static ProgressAggregator sDefault;
+
+    /** Time between two samples; read by the thread before each sleep. */
+    private volatile long mTickMs;
+
+    /** Trackers of requests with a loading listener and a transfer in progress. */
+    private final CopyOnWriteArrayList<Tracker> mTrackers = new CopyOnWriteArrayList<Tracker>();
+
+    /** Guards the start of the thread and its idle wait. */
+    private final Object mLock = new Object();
+
+    private boolean mStarted = false;
+
+    private final AtomicLong mTickCount = new AtomicLong();
+    private final AtomicLong mPublishCount = new AtomicLong();
+
+    /**
+     * Returns the aggregator shared by the toolbox, sampling every {@link #DEFAULT_TICK_MS}
+     * unless changed with {@link #setTickMs(long)}.
+     */
+    public static synchronized ProgressAggregator getDefault() {
+        if (sDefault == null) {
+            sDefault = new ProgressAggregator(DEFAULT_TICK_MS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param tickMs Time between two samples; the fastest any request's progress is published
+     */
+    public ProgressAggregator(long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs must be positive");
+        }
+        mTickMs = tickMs;
+    }
+
+    /**
+     * Changes the time between two samples, from the next tick on. A shorter tick publishes
+     * progress more smoothly at the cost of more wakeups.
+     */
+    public void setTickMs(long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs must be positive");
+        }
+        mTickMs = tickMs;
+    }
+
+    public long getTickMs() {
+        return mTickMs;
+    }
+
+    /**
+     * Returns a tracker for a transfer of the given request. Progress is only published for
+     * requests with a loading listener; the tracker counts either way.
+     *
+     * @param request The request whose body is moved
+     * @param delivery Delivery to post progress through
+     * @param total Length of the body, or -1 if unknown
+     * @param start Bytes already moved, e.g. by an earlier attempt being resumed
+     */
+    public Tracker track(Request<?> request, ResponseDelivery delivery, long total, long start) {
+        Tracker tracker = new Tracker(this, request, delivery, total, start);
+        if (request.getLoadingListener() != null) {
+            tracker.mRegistered = true;
+            mTrackers.add(tracker);
+            synchronized (mLock) {
+                if (!mStarted) {
+                    mStarted = true;
+                    start();
+                }
+                mLock.notify();
+            }
+        }
+        return tracker;
+    }
+
+    /** Returns the number of requests currently tracked. */
+    public int getTrackedCount() {
+        return mTrackers.size();
+    }
+
+    /** Returns the number of samples taken. */
+    public long getTickCount() {
+        return mTickCount.get();
+    }
+
+    /** Returns the number of progress updates posted, final ones included. */
+    public long getPublishCount() {
+        return mPublishCount.get();
+    }
+
+    private void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                while (true) {
+                    try {
+                        synchronized (mLock) {
+                            while (mTrackers.isEmpty()) {
+                                mLock.wait();
+                            }
+                        }
+                        Thread.sleep(mTickMs);
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    tick();
+                }
+            }
+        }, "Volley-Progress");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Samples every tracker and posts the ones that moved. */
+    private void tick() {
+        mTickCount.incrementAndGet();
+        long now = SystemClock.uptimeMillis();
+        for (Tracker tracker : mTrackers) {
+            synchronized (tracker) {
+                if (!tracker.mRegistered) {
+                    continue;
+                }
+                long current = tracker.mTransferred.get();
+                if (current == tracker.mPublished
+                        || now - tracker.mLastPostTime < tracker.mRequest.getRate()) {
+                    continue;
+                }
+                tracker.mLastPostTime = now;
+                tracker.post(current, false);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of one transfer. Safe to update from several threads, e.g. the
+     * segments of one download.
+     */
+    public static final class Tracker {
+        private final ProgressAggregator mAggregator;
+        private final Request<?> mRequest;
+        private final ResponseDelivery mDelivery;
+        private final long mTotal;
+        private final AtomicLong mTransferred;
+
+        /** The fields below are guarded by this tracker. */
+        private boolean mRegistered = false;
+        private long mPublished = -1;
+        private long mLastPostTime = 0;
+
+        private Tracker(ProgressAggregator aggregator, Request<?> request,
+                ResponseDelivery delivery, long total, long start) {
+            mAggregator = aggregator;
+            mRequest = request;
+            mDelivery = delivery;
+            mTotal = total;
+            mTransferred = new AtomicLong(start);
+        }
+
+        /** Adds bytes moved and returns the new count. */
+        public long add(long count) {
+            return mTransferred.addAndGet(count);
+        }
+
+        /** Returns the bytes moved so far. */
+        public long get() {
+            return mTransferred.get();
+        }
+
+        /**
+         * Stops tracking and posts the final progress, unless already released.
+         */
+        public void finish() {
+            synchronized (this) {
+                if (!mRegistered) {
+                    return;
+                }
+                mRegistered = false;
+                post(mTransferred.get(), true);
+            }
+            mAggregator.mTrackers.remove(this);
+        }
+
+        /**
+         * Stops tracking without posting anything further. Safe to call more than once, and
+         * after {@link #finish()}.
+         */
+        public void release() {
+            synchronized (this) {
+                if (!mRegistered) {
+                    return;
+                }
+                mRegistered = false;
+            }
+            mAggregator.mTrackers.remove(this);
+        }
+
+        /** Must be called with this tracker held. */
+        private void post(long current, boolean last) {
+            mPublished = current;
+            long count;
+            if (mTotal >= 0) {
+                count = mTotal;
+            } else {
+                // Unknown length: report the body as half done until it ends.
+                count = last ? current : current * 2;
+            }
+            mDelivery.postLoading(mRequest, count, current);
+            mAggregator.mPublishCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+
+/**
+ * A {@link NetworkResponse} whose body was consumed by a {@link StreamingRequest} while it was
+ * read. It carries the parsed response in place of the raw data.
+ */
+public class StreamedNetworkResponse extends NetworkResponse {
+
+    /** The response parsed from the body stream. */
+    public final Response<?> parsed;
+
+    /** Number of body bytes read from the connection. */
+    public final long bodyLength;
+
+    public StreamedNetworkResponse(int statusCode, Map<String, String> headers,
+            Response<?> parsed, long bodyLength) {
+        super(statusCode, (byte[]) null, headers, false);
+        this.parsed = parsed;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * Implements {@link com.android.volley.Request#parseNetworkResponse(NetworkResponse)} for a
+     * streaming request: returns the already parsed response of a streamed body, or replays a
+     * cached body or a byte[] body (from an error path) through the request's stream parser.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Response<T> parse(StreamingRequest<T> request, NetworkResponse response) {
+        if (response instanceof StreamedNetworkResponse) {
+            return (Response<T>) ((StreamedNetworkResponse) response).parsed;
+        }
+        try {
+            if (response.data == null && response.body != null) {
+                InputStream in = response.body.open();
+                try {
+                    return request.parseNetworkStream(response, in);
+                } finally {
+                    in.close();
+                }
+            }
+            byte[] data = response.data != null ? response.data : new byte[0];
+            return request.parseNetworkStream(response, new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+
+/**
+ * A {@link JsonArrayRequest} that builds its {@link JSONArray} while the body is read from the
+ * connection, without materialising the body as a byte[] or String first.
+ */
+public class StreamingJsonArrayRequest extends JsonArrayRequest
+        implements StreamingRequest<JSONArray> {
+
+    public StreamingJsonArrayRequest(String url, Listener<JSONArray> listener,
+            ErrorListener errorListener) {
+        super(url, listener, errorListener);
+    }
+    @Override
+    public boolean canParseCacheBody() {
+        return true;
+    }
+
+    @Override
+    protected Response<JSONArray> parseNetworkResponse(NetworkResponse response) {
+        return StreamedNetworkResponse.parse(this, response);
+    }
+
+    @Override
+    public Response<JSONArray> parseNetworkStream(NetworkResponse response, InputStream in)
+            throws IOException {
+        try {
+            return Response.success(JsonStreamParser.parseArray(response, in),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        } catch (JSONException je) {
+            return Response.error(new ParseError(je));
+        } catch (IllegalStateException e) {
+            // JsonReader reports structurally malformed input this way.
+            return Response.error(new ParseError(e));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+
+/**
+ * A request that parses its response body straight off the connection instead of having
+ * {@link BasicNetwork} copy it into a byte[] first.
+ *
+ * <p>Streaming is used for successful responses to requests that are not cached. Cache hits
+ * arrive as a {@link com.android.volley.Cache.Body} if the request overrides
+ * {@link com.android.volley.Request#canParseCacheBody()}, error bodies as a byte[]; both can be
+ * replayed through the same parser with
+ * {@link StreamedNetworkResponse#parse(StreamingRequest, NetworkResponse)}.</p>
+ *
+ * @param <T> The type of parsed response this request expects.
+ */
+public interface StreamingRequest<T> {
+    /**
+     * Parses the response body from the given stream. Called on the network dispatcher thread;
+     * the stream is closed by the caller.
+     *
+     * @param response Status and headers of the response; its data is null when streaming
+     * @param in The response body
+     * @return The parsed response
+     * @throws IOException if reading the body fails
+     */
+    public Response<T> parseNetworkStream(NetworkResponse response, InputStream in)
+            throws IOException;
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.Response.LoadingListener;
+
+/**
+ * A {@link StringRequest} that decodes the body straight off the connection, so the response
+ * is never held as a byte[] next to the decoded String.
+ */
+public class StreamingStringRequest extends StringRequest implements StreamingRequest<String> {
+
+    public StreamingStringRequest(int method, String url, Listener<String> listener,
+            ErrorListener errorListener) {
+        super(method, url, listener, errorListener);
+    }
+
+    public StreamingStringRequest(int method, String url, Listener<String> listener,
+            ErrorListener errorListener, LoadingListener loadingListener) {
+        super(method, url, listener, errorListener, loadingListener);
+    }
+
+    public StreamingStringRequest(String url, Listener<String> listener,
+            ErrorListener errorListener) {
+        super(url, listener, errorListener);
+    }
+
+    @Override
+    public boolean canParseCacheBody() {
+        return true;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+        return StreamedNetworkResponse.parse(this, response);
+    }
+
+    @Override
+    public Response<String> parseNetworkStream(NetworkResponse response, InputStream in)
+            throws IOException {
+        return Response.success(readString(response, in),
+                HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    /**
+     * Decodes a response body stream using the charset of the response headers.
+     */
+    static String readString(NetworkResponse response, InputStream in) throws IOException {
+        Reader reader;
+        try {
+            reader = new InputStreamReader(in, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            reader = new InputStreamReader(in);
+        }
+        StringBuilder builder = new StringBuilder(initialCapacity(response));
+        char[] buffer = new char[2048];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, count);
+        }
+        return builder.toString();
+    }
+
+    /** Sizes the decode buffer from Content-Length so it need not grow while reading. */
+    private static int initialCapacity(NetworkResponse response) {
+        String contentLength = response.headers.get("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Math.max(16, Math.min(Integer.parseInt(contentLength.trim()), 1 << 20));
+            } catch (NumberFormatException e) {
+                // Fall through to the default.
+            }
+        }
+        return 2048;
+    }
+}
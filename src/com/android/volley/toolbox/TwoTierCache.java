@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.android.volley.Cache;
+
+/**
+ * A {@link Cache} that keeps recently used entries in memory in front of another cache,
+ * typically one on disk.
+ *
+ * <p>The memory tier is an LRU bounded by the bytes of entry data it holds. Puts are written
+ * through to both tiers; entries read from the second tier are promoted into memory. Entries
+ * larger than an eighth of the memory tier are never kept in it, so that one large response
+ * can't flush out many small ones. Bodies read lazily stay in the second tier, since the point
+ * of reading them lazily is to keep them off the heap.</p>
+ *
+ * <p>A read from the second tier is only promoted if no write to its key started or finished
+ * while it ran, so a concurrent put, removal or invalidation is never undone by an older
+ * copy.</p>
+ */
+public class TwoTierCache implements Cache {
+
+    /** Default size of the memory tier in bytes. */
+    public static final int DEFAULT_MEMORY_BYTES = 1024 * 1024;
+
+    /** Memory tier entries by key, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, Entry> mMemory =
+            new LinkedHashMap<String, Entry>(16, .75f, true);
+
+    /** The second tier. */
+    private final Cache mSecondTier;
+
+    private final int mMaxMemoryBytes;
+    private final int mMaxEntryBytes;
+
+    /** Bytes of data held in the memory tier. Guarded by mMemory. */
+    private int mMemoryBytes = 0;
+
+    /** Second-tier reads in progress by key. Guarded by mMemory. */
+    private final HashMap<String, ReadMarker> mReads = new HashMap<String, ReadMarker>();
+
+    private long mMemoryHitCount = 0;
+    private long mSecondTierHitCount = 0;
+    private long mMissCount = 0;
+
+    /** Tracks the second-tier reads of one key, and whether the key was written meanwhile. */
+    private static class ReadMarker {
+        int readers = 0;
+        boolean written = false;
+    }
+
+    /**
+     * Keeps up to {@link #DEFAULT_MEMORY_BYTES} in memory in front of the given cache.
+     */
+    public TwoTierCache(Cache secondTier) {
+        this(secondTier, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * @param secondTier The cache behind the memory tier
+     * @param maxMemoryBytes Bytes of entry data the memory tier may hold
+     */
+    public TwoTierCache(Cache secondTier, int maxMemoryBytes) {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException("maxMemoryBytes must be positive");
+        }
+        mSecondTier = secondTier;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxEntryBytes = Math.max(1, maxMemoryBytes / 8);
+    }
+
+    /** Returns the cache behind the memory tier. */
+    public Cache getSecondTier() {
+        return mSecondTier;
+    }
+
+    @Override
+    public Entry get(String key) {
+        ReadMarker marker;
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                mMemoryHitCount++;
+                return copy(entry, entry.data);
+            }
+            marker = mReads.get(key);
+            if (marker == null) {
+                marker = new ReadMarker();
+                mReads.put(key, marker);
+            }
+            marker.readers++;
+        }
+        Entry entry = null;
+        try {
+            entry = mSecondTier.get(key);
+        } finally {
+            synchronized (mMemory) {
+                if (--marker.readers == 0) {
+                    mReads.remove(key);
+                }
+                if (entry == null) {
+                    mMissCount++;
+                } else {
+                    mSecondTierHitCount++;
+                    // A write since the read started may have made this copy stale.
+                    if (!marker.written) {
+                        promoteLocked(key, entry);
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public Entry getLazy(String key) {
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                mMemoryHitCount++;
+                return copy(entry, entry.data);
+            }
+        }
+        Entry entry = mSecondTier.getLazy(key);
+        synchronized (mMemory) {
+            if (entry == null) {
+                mMissCount++;
+            } else {
+                mSecondTierHitCount++;
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                return copy(entry, null);
+            }
+        }
+        return mSecondTier.getMetadata(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (mMemory) {
+            markWrittenLocked(key);
+            promoteLocked(key, entry);
+        }
+        mSecondTier.put(key, entry);
+        markWritten(key);
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        synchronized (mMemory) {
+            markWrittenLocked(key);
+            Entry cached = mMemory.get(key);
+            if (cached != null) {
+                mMemory.put(key, copy(entry, cached.data));
+            }
+        }
+        mSecondTier.updateMetadata(key, entry);
+        markWritten(key);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (mMemory) {
+            markWrittenLocked(key);
+            Entry cached = mMemory.get(key);
+            if (cached != null) {
+                Entry invalidated = copy(cached, cached.data);
+                invalidated.softTtl = -1;
+                if (fullExpire) {
+                    invalidated.ttl = -1;
+                }
+                mMemory.put(key, invalidated);
+            }
+        }
+        mSecondTier.invalidate(key, fullExpire);
+        markWritten(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mMemory) {
+            markWrittenLocked(key);
+            removeFromMemory(key);
+        }
+        mSecondTier.remove(key);
+        markWritten(key);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mMemory) {
+            markAllWrittenLocked();
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+        mSecondTier.clear();
+        synchronized (mMemory) {
+            markAllWrittenLocked();
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mSecondTier.initialize();
+    }
+
+    /** Returns the number of reads served from memory. */
+    public long getMemoryHitCount() {
+        synchronized (mMemory) {
+            return mMemoryHitCount;
+        }
+    }
+
+    /** Returns the number of reads served from the second tier. */
+    public long getSecondTierHitCount() {
+        synchronized (mMemory) {
+            return mSecondTierHitCount;
+        }
+    }
+
+    /** Returns the number of reads neither tier could serve. */
+    public long getMissCount() {
+        synchronized (mMemory) {
+            return mMissCount;
+        }
+    }
+
+    /** Returns the bytes of entry data held in memory. */
+    public int getMemoryBytes() {
+        synchronized (mMemory) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * Keeps the entry in memory if it fits, evicting the least recently used entries. Must be
+     * called with mMemory held.
+     */
+    private void promoteLocked(String key, Entry entry) {
+        removeFromMemory(key);
+        if (entry.data == null || entry.data.length > mMaxEntryBytes) {
+            return;
+        }
+        mMemory.put(key, copy(entry, entry.data));
+        mMemoryBytes += entry.data.length;
+        Iterator<Map.Entry<String, Entry>> it = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+            mMemoryBytes -= it.next().getValue().data.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Marks second-tier reads of the key in progress as stale. Writes mark before and after
+     * reaching the second tier, so a read overlapping either end is never promoted.
+     */
+    private void markWritten(String key) {
+        synchronized (mMemory) {
+            markWrittenLocked(key);
+        }
+    }
+
+    /** Must be called with mMemory held. */
+    private void markWrittenLocked(String key) {
+        ReadMarker marker = mReads.get(key);
+        if (marker != null) {
+            marker.written = true;
+        }
+    }
+
+    /** Must be called with mMemory held. */
+    private void markAllWrittenLocked() {
+        for (ReadMarker marker : mReads.values()) {
+            marker.written = true;
+        }
+    }
+
+    /** Must be called with mMemory held. */
+    private void removeFromMemory(String key) {
+        Entry removed = mMemory.remove(key);
+        if (removed != null) {
+            mMemoryBytes -= removed.data.length;
+        }
+    }
+
+    /**
+     * Returns a copy of the entry with the given data, so that callers changing the TTLs or
+     * headers of an entry they were handed, as BasicNetwork does on a 304, don't change the
+     * one in memory. The data itself is shared and must not be written to.
+     */
+    private static Entry copy(Entry metadata, byte[] data) {
+        Entry e = new Entry();
+        e.data = data;
+        e.etag = metadata.etag;
+        e.serverDate = metadata.serverDate;
+        e.ttl = metadata.ttl;
+        e.softTtl = metadata.softTtl;
+        e.responseHeaders = new HashMap<String, String>(metadata.responseHeaders);
+        return e;
+    }
+}
@@ -4,6 +4,12 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Request;
+import com.android.volley.ResponseDelivery;
 import com.android.volley.toolbox.multipart.MultipartEntity;
 
 /**
@@ -16,14 +22,48 @@ public class UploadMultipartEntity extends MultipartEntity {
 
     private ProgressListener listener;
     private long offset;
+    private Request<?> request;
+
+    /** Delivers progress of requests without a delivery of their own; created on first use. */
+    private static ResponseDelivery sMainThreadDelivery;
 
     public void setListener(ProgressListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * Reports upload progress of the given request through the shared
+     * {@link ProgressAggregator} instead of a {@link ProgressListener}. Progress goes through
+     * the request's own {@link Request#getResponseDelivery() delivery} as of the upload, or
+     * to the main thread if it has none.
+     */
+    public void setProgress(Request<?> request) {
+        this.request = request;
+    }
+
+    private static synchronized ResponseDelivery getMainThreadDelivery() {
+        if (sMainThreadDelivery == null) {
+            sMainThreadDelivery = new ExecutorDelivery(new Handler(Looper.getMainLooper()));
+        }
+        return sMainThreadDelivery;
+    }
+
     @Override
     public void writeTo(OutputStream outstream) throws IOException {
-        if (listener == null) {
+        if (request != null) {
+            ResponseDelivery delivery = request.getResponseDelivery();
+            if (delivery == null) {
+                delivery = getMainThreadDelivery();
+            }
+            ProgressAggregator.Tracker progress = ProgressAggregator.getDefault().track(request,
+                    delivery, getContentLength(), offset);
+            try {
+                super.writeTo(new TrackingOutputStream(outstream, progress));
+                progress.finish();
+            } finally {
+                progress.release();
+            }
+        } else if (listener == null) {
             super.writeTo(outstream);
         } else {
             super.writeTo(new CountingOutputStream(outstream, offset, this.listener));
@@ -63,6 +103,30 @@ public class UploadMultipartEntity extends MultipartEntity {
         
     }
 
+    /**
+     * Counts written bytes into a tracker, which publishes them at the request's rate.
+     */
+    static class TrackingOutputStream extends FilterOutputStream {
+        private final ProgressAggregator.Tracker progress;
+
+        public TrackingOutputStream(OutputStream out, ProgressAggregator.Tracker progress) {
+            super(out);
+            this.progress = progress;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            progress.add(len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            progress.add(1);
+        }
+    }
+
     public static interface ProgressListener {
         void transferred(long num);
     }
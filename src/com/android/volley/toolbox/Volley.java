@@ -25,6 +25,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.http.AndroidHttpClient;
 import android.os.Build;
 
+import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.RequestQueue;
 import com.android.volley.VolleyLog;
@@ -44,7 +45,27 @@ public class Volley {
      */
     public static RequestQueue newRequestQueue(Context context, HttpStack stack) {
         File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        return newRequestQueue(context, stack, new DiskLruBasedCache(cacheDir));
+    }
+
+    /**
+     * Like {@link #newRequestQueue(Context, HttpStack)}, but recent cache entries are served
+     * from memory and cache writes reach the disk on a background thread, after the response
+     * has been delivered. Costs up to {@link TwoTierCache#DEFAULT_MEMORY_BYTES} plus
+     * {@link WriteBehindCache#DEFAULT_MAX_STAGED_BYTES} of heap; apps that already keep
+     * decoded images in a memory cache may not gain much from it.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @param stack An {@link HttpStack} to use for the network, or null for default.
+     * @return A started {@link RequestQueue} instance.
+     */
+    public static RequestQueue newTieredCacheRequestQueue(Context context, HttpStack stack) {
+        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        Cache cache = new TwoTierCache(new WriteBehindCache(new DiskLruBasedCache(cacheDir)));
+        return newRequestQueue(context, stack, cache);
+    }
 
+    private static RequestQueue newRequestQueue(Context context, HttpStack stack, Cache cache) {
         String userAgent = null;
         try {
             String packageName = context.getPackageName();
@@ -65,7 +86,7 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskLruBasedCache(cacheDir), network);
+        RequestQueue queue = new RequestQueue(cache, network);
         queue.start();
 
         return queue;
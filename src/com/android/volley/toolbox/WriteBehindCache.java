@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+/**
+ * A {@link Cache} that stages writes in memory and applies them to another cache on a
+ * background thread, so that a network dispatcher can post its response without first waiting
+ * for the entry to reach the disk.
+ *
+ * <p>Puts, metadata updates and removals are recorded per key, a newer one replacing an older
+ * one that hasn't been written yet, and are written in batches in the order they were first
+ * staged. Staged writes are visible to every read, so the cache behaves as if they had already
+ * been applied. The bytes of staged data are bounded; once the bound is reached the
+ * {@link OverflowPolicy} decides whether a put waits for the writer or is dropped.</p>
+ *
+ * <p>Every instance shares one writer thread, which exits after a minute without work.</p>
+ */
+public class WriteBehindCache implements Cache {
+
+    /** Default bound on the data held in staged puts. */
+    public static final int DEFAULT_MAX_STAGED_BYTES = 2 * 1024 * 1024;
+
+    /** Default number of staged writes applied per batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+    /** What a put does when the staging area is full. */
+    public enum OverflowPolicy {
+        /** Wait until the writer has made room. */
+        BLOCK,
+        /** Drop the put; the underlying cache keeps whatever it had for the key. */
+        DISCARD
+    }
+
+    /** Kinds of staged writes. */
+    private static final int OP_PUT = 1;
+    private static final int OP_UPDATE_METADATA = 2;
+    private static final int OP_REMOVE = 3;
+
+    /** A write waiting to be applied. Immutable once staged. */
+    private static class Pending {
+        final int op;
+        final Entry entry;
+        final int size;
+
+        Pending(int op, Entry entry) {
+            this.op = op;
+            this.entry = entry;
+            this.size = op == OP_PUT && entry.data != null ? entry.data.length : 0;
+        }
+    }
+
+    private final Cache mDelegate;
+    private final int mMaxStagedBytes;
+    private final int mMaxBatchSize;
+    private final OverflowPolicy mOverflowPolicy;
+
+    /** Guards every field below; also signalled whenever staged writes have been applied. */
+    private final Object mLock = new Object();
+
+    /** Staged writes by key, oldest first. A write stays here until it has been applied. */
+    private final LinkedHashMap<String, Pending> mStaged = new LinkedHashMap<String, Pending>();
+
+    private int mStagedBytes = 0;
+    private boolean mDrainScheduled = false;
+
+    /** Whether the writer is applying a batch it took. */
+    private boolean mApplying = false;
+
+    /** Number of clears in progress; the writer takes no batch meanwhile. */
+    private int mClearing = 0;
+
+    private long mStagedCount = 0;
+    private long mStageTimeNanos = 0;
+    private long mWrittenCount = 0;
+    private long mWriteTimeNanos = 0;
+    private long mBatchCount = 0;
+    private long mDiscardedCount = 0;
+
+    /** Applies the staged writes of every instance, one batch at a time. */
+    private static final ExecutorService sWriter = new ThreadPoolExecutor(0, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Volley-CacheWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Stages up to {@link #DEFAULT_MAX_STAGED_BYTES} in front of the given cache, blocking puts
+     * once the bound is reached.
+     */
+    public WriteBehindCache(Cache delegate) {
+        this(delegate, DEFAULT_MAX_STAGED_BYTES, DEFAULT_MAX_BATCH_SIZE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param delegate The cache writes are applied to
+     * @param maxStagedBytes Bound on the data held in staged puts
+     * @param maxBatchSize Number of staged writes applied before the writer lets go of them
+     * @param overflowPolicy What a put does when the bound is reached
+     */
+    public WriteBehindCache(Cache delegate, int maxStagedBytes, int maxBatchSize,
+            OverflowPolicy overflowPolicy) {
+        if (maxStagedBytes <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalid bounds: maxStagedBytes="
+                    + maxStagedBytes + " maxBatchSize=" + maxBatchSize);
+        }
+        mDelegate = delegate;
+        mMaxStagedBytes = maxStagedBytes;
+        mMaxBatchSize = maxBatchSize;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /** Returns the cache writes are applied to. */
+    public Cache getDelegate() {
+        return mDelegate;
+    }
+
+    @Override
+    public Entry get(String key) {
+        Pending pending;
+        synchronized (mLock) {
+            pending = mStaged.get(key);
+        }
+        if (pending == null) {
+            return mDelegate.get(key);
+        }
+        return read(pending, pending.op == OP_UPDATE_METADATA ? mDelegate.get(key) : null);
+    }
+
+    @Override
+    public Entry getLazy(String key) {
+        Pending pending;
+        synchronized (mLock) {
+            pending = mStaged.get(key);
+        }
+        if (pending == null) {
+            return mDelegate.getLazy(key);
+        }
+        // A staged put already has its data on the heap and is returned as is.
+        return read(pending, pending.op == OP_UPDATE_METADATA ? mDelegate.getLazy(key) : null);
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        Pending pending;
+        synchronized (mLock) {
+            pending = mStaged.get(key);
+        }
+        if (pending == null) {
+            return mDelegate.getMetadata(key);
+        }
+        if (pending.op == OP_REMOVE) {
+            return null;
+        }
+        if (pending.op == OP_UPDATE_METADATA && mDelegate.getMetadata(key) == null) {
+            return null;
+        }
+        return withData(pending.entry, null, null);
+    }
+
+    /**
+     * Returns what a read would see once the staged write is applied to the given entry.
+     */
+    private static Entry read(Pending pending, Entry stored) {
+        switch (pending.op) {
+            case OP_PUT:
+                return withData(pending.entry, pending.entry.data, pending.entry.body);
+            case OP_UPDATE_METADATA:
+                return stored == null ? null : withData(pending.entry, stored.data, stored.body);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        Pending pending = new Pending(OP_PUT, entry);
+        synchronized (mLock) {
+            while (mStagedBytes > 0 && mStagedBytes + pending.size > mMaxStagedBytes) {
+                if (mOverflowPolicy == OverflowPolicy.DISCARD) {
+                    mDiscardedCount++;
+                    VolleyLog.v("Write-behind cache full, discarding %s", key);
+                    return;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDiscardedCount++;
+                    return;
+                }
+            }
+            stage(key, pending);
+            mStagedCount++;
+            mStageTimeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Stages the new metadata; a staged put of the key takes it over directly.
+     */
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        synchronized (mLock) {
+            Pending pending = mStaged.get(key);
+            if (pending != null && pending.op == OP_REMOVE) {
+                return;
+            }
+            if (pending != null && pending.op == OP_PUT) {
+                Entry updated = withData(entry, pending.entry.data, pending.entry.body);
+                stage(key, new Pending(OP_PUT, updated));
+            } else {
+                stage(key, new Pending(OP_UPDATE_METADATA, withData(entry, null, null)));
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Entry entry = getMetadata(key);
+        if (entry != null) {
+            entry.softTtl = -1;
+            if (fullExpire) {
+                entry.ttl = -1;
+            }
+            updateMetadata(key, entry);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mLock) {
+            stage(key, new Pending(OP_REMOVE, null));
+        }
+    }
+
+    /**
+     * Drops the writes staged so far and clears the underlying cache. Waits for a batch the
+     * writer is applying, so that nothing it writes outlives the clear. Writes staged by other
+     * threads while the clear runs are kept and applied afterwards.
+     */
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            mStaged.clear();
+            mStagedBytes = 0;
+            mClearing++;
+            mLock.notifyAll();
+            while (mApplying) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        try {
+            mDelegate.clear();
+        } finally {
+            synchronized (mLock) {
+                mClearing--;
+                if (mClearing == 0 && !mStaged.isEmpty() && !mDrainScheduled) {
+                    mDrainScheduled = true;
+                    sWriter.execute(mDrain);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mDelegate.initialize();
+    }
+
+    /**
+     * Blocks until every write staged so far has been applied to the underlying cache.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mStaged.isEmpty()) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /** Returns the number of writes waiting to be applied. */
+    public int getStagedCount() {
+        synchronized (mLock) {
+            return mStaged.size();
+        }
+    }
+
+    /** Returns the bytes of data held in staged puts. */
+    public int getStagedBytes() {
+        synchronized (mLock) {
+            return mStagedBytes;
+        }
+    }
+
+    /** Returns the number of puts dropped because the staging area was full. */
+    public long getDiscardedCount() {
+        synchronized (mLock) {
+            return mDiscardedCount;
+        }
+    }
+
+    /** Returns the number of batches the writer has applied. */
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * Returns the mean time a put spent on the caller's thread, waits for room included, in
+     * microseconds.
+     */
+    public long getAverageStageMicros() {
+        synchronized (mLock) {
+            return mStagedCount == 0 ? 0 : mStageTimeNanos / mStagedCount / 1000;
+        }
+    }
+
+    /**
+     * Returns the mean time the writer took to apply a write to the underlying cache, in
+     * microseconds. Less {@link #getAverageStageMicros()}, this is the time taken off the
+     * delivery of each cached response.
+     */
+    public long getAverageWriteMicros() {
+        synchronized (mLock) {
+            return mWrittenCount == 0 ? 0 : mWriteTimeNanos / mWrittenCount / 1000;
+        }
+    }
+
+    /**
+     * Replaces the staged write of the key, moving it to the back of the order. Must be
+     * called with the lock held.
+     */
+    private void stage(String key, Pending pending) {
+        Pending old = mStaged.remove(key);
+        if (old != null) {
+            mStagedBytes -= old.size;
+        }
+        mStaged.put(key, pending);
+        mStagedBytes += pending.size;
+        if (!mDrainScheduled && mClearing == 0) {
+            mDrainScheduled = true;
+            sWriter.execute(mDrain);
+        }
+    }
+
+    /**
+     * Applies staged writes in batches until none are left, or until a clear starts; the clear
+     * schedules it again once done.
+     */
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            List<String> keys = new ArrayList<String>(mMaxBatchSize);
+            List<Pending> batch = new ArrayList<Pending>(mMaxBatchSize);
+            while (true) {
+                synchronized (mLock) {
+                    if (mStaged.isEmpty() || mClearing > 0) {
+                        mDrainScheduled = false;
+                        mLock.notifyAll();
+                        return;
+                    }
+                    mApplying = true;
+                    Iterator<Map.Entry<String, Pending>> it = mStaged.entrySet().iterator();
+                    while (batch.size() < mMaxBatchSize && it.hasNext()) {
+                        Map.Entry<String, Pending> staged = it.next();
+                        keys.add(staged.getKey());
+                        batch.add(staged.getValue());
+                    }
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    apply(keys.get(i), batch.get(i));
+                }
+                long elapsed = System.nanoTime() - start;
+                synchronized (mLock) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        // Keep a write staged after this one was taken.
+                        Pending pending = batch.get(i);
+                        if (mStaged.get(keys.get(i)) == pending) {
+                            mStaged.remove(keys.get(i));
+                            mStagedBytes -= pending.size;
+                        }
+                    }
+                    mApplying = false;
+                    mWrittenCount += batch.size();
+                    mWriteTimeNanos += elapsed;
+                    mBatchCount++;
+                    mLock.notifyAll();
+                }
+                keys.clear();
+                batch.clear();
+            }
+        }
+    };
+
+    private void apply(String key, Pending pending) {
+        try {
+            switch (pending.op) {
+                case OP_PUT:
+                    mDelegate.put(key, pending.entry);
+                    break;
+                case OP_UPDATE_METADATA:
+                    mDelegate.updateMetadata(key, pending.entry);
+                    break;
+                default:
+                    mDelegate.remove(key);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Write-behind cache failed to write %s", key);
+        }
+    }
+
+    /**
+     * Returns a copy of the entry's metadata with the given data. The headers are copied too,
+     * since callers may change the headers of an entry they were handed, as BasicNetwork does
+     * on a 304.
+     */
+    private static Entry withData(Entry metadata, byte[] data, Body body) {
+        Entry e = new Entry();
+        e.data = data;
+        e.body = body;
+        e.etag = metadata.etag;
+        e.serverDate = metadata.serverDate;
+        e.ttl = metadata.ttl;
+        e.softTtl = metadata.softTtl;
+        e.responseHeaders = new HashMap<String, String>(metadata.responseHeaders);
+        return e;
+    }
+}
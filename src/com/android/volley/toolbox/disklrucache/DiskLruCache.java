@@ -16,7 +16,8 @@
 
 package com.android.volley.toolbox.disklrucache;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
@@ -33,6 +34,7 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -91,6 +93,8 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
+  /** First four bytes of a binary journal, "DLC2". A text journal starts with MAGIC. */
+  static final int BINARY_MAGIC = 0x444c4332;
   static final long ANY_SEQUENCE_NUMBER = -1;
   static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
   private static final String CLEAN = "CLEAN";
@@ -98,6 +102,15 @@ public final class DiskLruCache implements Closeable {
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
 
+  /** Record types of the binary journal. */
+  private static final int OP_CLEAN = 1;
+  private static final int OP_DIRTY = 2;
+  private static final int OP_REMOVE = 3;
+  private static final int OP_READ = 4;
+
+  /** Distinct reads collected before their READ records are appended. */
+  private static final int READ_BATCH_SIZE = 64;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -136,6 +149,22 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The journal above is the original text format, which is still read so that
+     * existing caches survive an upgrade; it is rewritten in the binary format
+     * on open. A binary journal has the same records without the text:
+     *     int     BINARY_MAGIC
+     *     varint  application version
+     *     varint  value count
+     * followed by records, each a type byte, the key as a length byte and its
+     * ASCII characters, and for CLEAN records the value lengths as varints. A
+     * CLEAN record of a 32 character key with two values takes about 38 bytes.
+     *
+     * READ records are not appended on every hit. Keys read are collected and
+     * written as one READ record each once READ_BATCH_SIZE distinct keys have
+     * been read, on flush and on close, so a key read many times in a row costs
+     * one record. Reads not yet written when the process dies only cost LRU
+     * precision. A READ record for a key the journal doesn't hold is ignored.
      */
 
   private final File directory;
@@ -146,7 +175,9 @@ public final class DiskLruCache implements Closeable {
   private long maxSize;
   private final int valueCount;
   private long size = 0;
-  private Writer journalWriter;
+  private OutputStream journalWriter;
+  /** Keys read since READ records were last written, oldest first. */
+  private final LinkedHashSet<String> pendingReads = new LinkedHashSet<String>();
   private final LinkedHashMap<String, Entry> lruEntries =
       new LinkedHashMap<String, Entry>(0, 0.75f, true);
   private int redundantOpCount;
@@ -221,10 +252,16 @@ public final class DiskLruCache implements Closeable {
     DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
     if (cache.journalFile.exists()) {
       try {
-        cache.readJournal();
+        boolean rewrite = !cache.readJournal();
         cache.processJournal();
-        cache.journalWriter = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
+        if (rewrite) {
+          // Migrate a text journal, or drop the torn record a crash left at the end.
+          cache.rebuildJournal();
+          cache.redundantOpCount = 0;
+        } else {
+          cache.journalWriter = new BufferedOutputStream(
+              new FileOutputStream(cache.journalFile, true));
+        }
         return cache;
       } catch (IOException journalIsCorrupt) {
         System.out
@@ -244,7 +281,92 @@ public final class DiskLruCache implements Closeable {
     return cache;
   }
 
-  private void readJournal() throws IOException {
+  /**
+   * Reads the journal in whichever format it was written.
+   *
+   * @return true if it is a complete binary journal that can be appended to,
+   *     false if it must be rewritten first
+   */
+  private boolean readJournal() throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(journalFile));
+    try {
+      int magic = readInt(in);
+      if (magic == BINARY_MAGIC) {
+        return readBinaryJournal(in);
+      }
+    } catch (EOFException e) {
+      // Shorter than a header in either format; the text reader reports it.
+    } finally {
+      Util.closeQuietly(in);
+    }
+    readTextJournal();
+    return false;
+  }
+
+  private boolean readBinaryJournal(InputStream in) throws IOException {
+    long journalAppVersion = readVarLong(in);
+    long journalValueCount = readVarLong(in);
+    if (journalAppVersion != appVersion || journalValueCount != valueCount) {
+      throw new IOException("unexpected journal header: [" + journalAppVersion + ", "
+          + journalValueCount + "]");
+    }
+
+    int recordCount = 0;
+    boolean complete = true;
+    while (true) {
+      int op = in.read();
+      if (op == -1) {
+        break;
+      }
+      try {
+        readJournalRecord(op, in);
+      } catch (EOFException tornRecord) {
+        complete = false;
+        break;
+      }
+      recordCount++;
+    }
+    redundantOpCount = recordCount - lruEntries.size();
+    return complete;
+  }
+
+  private void readJournalRecord(int op, InputStream in) throws IOException {
+    String key = readKey(in);
+    if (op == OP_REMOVE) {
+      lruEntries.remove(key);
+      return;
+    }
+    if (op == OP_READ) {
+      // Moves a known entry to the head of the LRU queue.
+      lruEntries.get(key);
+      return;
+    }
+    long[] lengths = null;
+    if (op == OP_CLEAN) {
+      // Read the whole record before applying it, so that a torn one changes nothing.
+      lengths = new long[valueCount];
+      for (int i = 0; i < valueCount; i++) {
+        lengths[i] = readVarLong(in);
+      }
+    }
+
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+    if (op == OP_CLEAN) {
+      System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+      entry.readable = true;
+      entry.currentEditor = null;
+    } else if (op == OP_DIRTY) {
+      entry.currentEditor = new Editor(entry);
+    } else {
+      throw new IOException("unexpected journal record: " + op);
+    }
+  }
+
+  private void readTextJournal() throws IOException {
     StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
     try {
       String magic = reader.readLine();
@@ -347,24 +469,19 @@ public final class DiskLruCache implements Closeable {
       journalWriter.close();
     }
 
-    Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+    // The entries are written in LRU order, which already reflects any pending reads.
+    pendingReads.clear();
+    OutputStream writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp));
     try {
-      writer.write(MAGIC);
-      writer.write("\n");
-      writer.write(VERSION_1);
-      writer.write("\n");
-      writer.write(Integer.toString(appVersion));
-      writer.write("\n");
-      writer.write(Integer.toString(valueCount));
-      writer.write("\n");
-      writer.write("\n");
+      writeInt(writer, BINARY_MAGIC);
+      writeVarLong(writer, appVersion);
+      writeVarLong(writer, valueCount);
 
       for (Entry entry : lruEntries.values()) {
         if (entry.currentEditor != null) {
-          writer.write(DIRTY + ' ' + entry.key + '\n');
+          writeRecord(writer, OP_DIRTY, entry.key, null);
         } else {
-          writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+          writeRecord(writer, OP_CLEAN, entry.key, entry.lengths);
         }
       }
     } finally {
@@ -377,8 +494,83 @@ public final class DiskLruCache implements Closeable {
     renameTo(journalFileTmp, journalFile, false);
     journalFileBackup.delete();
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true));
+  }
+
+  /** Appends one binary journal record; {@code lengths} is only written for CLEAN. */
+  private static void writeRecord(OutputStream out, int op, String key, long[] lengths)
+      throws IOException {
+    out.write(op);
+    out.write(key.length());
+    for (int i = 0; i < key.length(); i++) {
+      out.write(key.charAt(i));
+    }
+    if (lengths != null) {
+      for (long length : lengths) {
+        writeVarLong(out, length);
+      }
+    }
+  }
+
+  /** Appends a READ record for every key read since the last call. */
+  private void writePendingReads() throws IOException {
+    if (pendingReads.isEmpty()) {
+      return;
+    }
+    for (String key : pendingReads) {
+      writeRecord(journalWriter, OP_READ, key, null);
+      redundantOpCount++;
+    }
+    pendingReads.clear();
+  }
+
+  private static String readKey(InputStream in) throws IOException {
+    int length = readByte(in);
+    char[] key = new char[length];
+    for (int i = 0; i < length; i++) {
+      key[i] = (char) readByte(in);
+    }
+    return new String(key);
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private static void writeInt(OutputStream out, int n) throws IOException {
+    out.write(n >>> 24);
+    out.write(n >>> 16);
+    out.write(n >>> 8);
+    out.write(n);
+  }
+
+  private static int readInt(InputStream in) throws IOException {
+    return (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+  }
+
+  /** Writes a non-negative number in seven bit groups, low group first. */
+  private static void writeVarLong(OutputStream out, long n) throws IOException {
+    while ((n & ~0x7fL) != 0) {
+      out.write((int) ((n & 0x7f) | 0x80));
+      n >>>= 7;
+    }
+    out.write((int) n);
+  }
+
+  private static long readVarLong(InputStream in) throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte(in);
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("malformed journal length");
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -433,13 +625,18 @@ public final class DiskLruCache implements Closeable {
       return null;
     }
 
-    redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
-    if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+    // Re-adding moves the key behind the others, matching the order of the reads.
+    pendingReads.remove(key);
+    pendingReads.add(key);
+    if (pendingReads.size() >= READ_BATCH_SIZE) {
+      writePendingReads();
+      if (journalRebuildRequired()) {
+        executorService.submit(cleanupCallable);
+      }
     }
 
-    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    // Copied: the streams are read outside the lock, while a commit or removal updates lengths.
+    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone());
   }
 
   /**
@@ -469,7 +666,7 @@ public final class DiskLruCache implements Closeable {
     entry.currentEditor = editor;
 
     // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
+    writeRecord(journalWriter, OP_DIRTY, key, null);
     journalWriter.flush();
     return editor;
   }
@@ -545,13 +742,14 @@ public final class DiskLruCache implements Closeable {
     entry.currentEditor = null;
     if (entry.readable | success) {
       entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      writeRecord(journalWriter, OP_CLEAN, entry.key, entry.lengths);
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
       }
     } else {
       lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+      pendingReads.remove(entry.key);
+      writeRecord(journalWriter, OP_REMOVE, entry.key, null);
     }
     journalWriter.flush();
 
@@ -594,8 +792,9 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
+    writeRecord(journalWriter, OP_REMOVE, key, null);
     lruEntries.remove(key);
+    pendingReads.remove(key);
 
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -619,6 +818,7 @@ public final class DiskLruCache implements Closeable {
   public synchronized void flush() throws IOException {
     checkNotClosed();
     trimToSize();
+    writePendingReads();
     journalWriter.flush();
   }
 
@@ -633,6 +833,7 @@ public final class DiskLruCache implements Closeable {
       }
     }
     trimToSize();
+    writePendingReads();
     journalWriter.close();
     journalWriter = null;
   }
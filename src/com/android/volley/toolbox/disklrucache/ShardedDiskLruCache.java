@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache that hashes keys into a fixed number of independent {@link DiskLruCache} shards.
+ *
+ * <p>Each shard has its own directory, journal, lock, size budget and cleanup thread, so
+ * edits, journal appends and journal rebuilds for keys in different shards never wait on each
+ * other. Eviction is LRU within a shard only.
+ *
+ * <p>The total size budget is split between the shards and periodically rebalanced: each shard
+ * keeps what it currently uses plus an equal share of the free space, but never less than
+ * half of an even split, so that a shard whose keys carry larger values is not held to the
+ * same budget as the rest while none of them can be starved.
+ *
+ * <p>A cache of one shard lives directly in the directory, in the same layout as a plain
+ * {@link DiskLruCache}, so existing caches can be opened unchanged. Shards of a larger cache
+ * live in numbered subdirectories. The shard count is recorded in the directory; if it changes,
+ * the existing entries would hash to the wrong shards and the cache is wiped on open.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  static final String SHARD_COUNT_FILE = "shards";
+
+  /** Number of edits between two rebalances of the shard budgets. */
+  private static final int REBALANCE_INTERVAL = 64;
+
+  private final File directory;
+  private final DiskLruCache[] shards;
+  private final AtomicInteger editsSinceRebalance = new AtomicInteger();
+  private volatile long maxSize;
+
+  private ShardedDiskLruCache(File directory, DiskLruCache[] shards, long maxSize) {
+    this.directory = directory;
+    this.shards = shards;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes all shards together should use
+   * @param shardCount the number of shards. Must be positive.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount) throws IOException {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+    if (maxSize < shardCount) {
+      throw new IllegalArgumentException("maxSize < shardCount");
+    }
+    directory.mkdirs();
+    int previousCount = readShardCount(directory);
+    if (previousCount != shardCount) {
+      Util.deleteContents(directory);
+    }
+    writeShardCount(directory, shardCount);
+
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
+    long shardSize = maxSize / shardCount;
+    try {
+      for (int i = 0; i < shardCount; i++) {
+        File shardDirectory = shardCount == 1 ? directory : new File(directory, String.valueOf(i));
+        shards[i] = DiskLruCache.open(shardDirectory, appVersion, valueCount, shardSize);
+      }
+    } catch (IOException e) {
+      for (DiskLruCache shard : shards) {
+        Util.closeQuietly(shard);
+      }
+      throw e;
+    }
+    ShardedDiskLruCache cache = new ShardedDiskLruCache(directory, shards, maxSize);
+    cache.rebalance();
+    return cache;
+  }
+
+  /**
+   * Returns the shard count recorded in the directory. A directory without a record holds
+   * either nothing or a plain single-shard cache.
+   */
+  private static int readShardCount(File directory) {
+    File file = new File(directory, SHARD_COUNT_FILE);
+    if (!file.exists()) {
+      return new File(directory, DiskLruCache.JOURNAL_FILE).exists()
+          || !hasContents(directory) ? 1 : -1;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int count = 0;
+      int c;
+      while ((c = in.read()) != -1 && c != '\n') {
+        if (c < '0' || c > '9') {
+          return -1;
+        }
+        count = count * 10 + (c - '0');
+      }
+      return count;
+    } catch (IOException e) {
+      return -1;
+    } finally {
+      Util.closeQuietly(in);
+    }
+  }
+
+  private static boolean hasContents(File directory) {
+    String[] names = directory.list();
+    return names != null && names.length > 0;
+  }
+
+  private static void writeShardCount(File directory, int shardCount) throws IOException {
+    OutputStream out = new FileOutputStream(new File(directory, SHARD_COUNT_FILE));
+    try {
+      out.write((shardCount + "\n").getBytes(Util.US_ASCII.name()));
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Returns the shard that holds {@code key}. */
+  private DiskLruCache shardFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return shards[(h & 0x7fffffff) % shards.length];
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist or is not currently readable.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    return shardFor(key).get(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    if (editsSinceRebalance.incrementAndGet() >= REBALANCE_INTERVAL) {
+      editsSinceRebalance.set(0);
+      rebalance();
+    }
+    return shardFor(key).edit(key);
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return shardFor(key).remove(key);
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Returns the directory of the shard that stores the data of {@code key}. */
+  public File getDirectory(String key) {
+    return shardFor(key).getDirectory();
+  }
+
+  /** Returns the number of shards. */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the maximum number of bytes that all shards together should use.
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes all shards together can store and
+   * redistributes it between them, trimming shards as necessary.
+   */
+  public void setMaxSize(long maxSize) {
+    if (maxSize < shards.length) {
+      throw new IllegalArgumentException("maxSize < shardCount");
+    }
+    this.maxSize = maxSize;
+    rebalance();
+  }
+
+  /**
+   * Returns the number of bytes currently used by all shards. This may be
+   * greater than the max size if a background deletion is pending.
+   */
+  public long size() {
+    long size = 0;
+    for (DiskLruCache shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  /**
+   * Redistributes the total budget between the shards: each keeps its current
+   * size plus an equal share of the free space, with a floor of half an even
+   * split. Shards whose budget shrinks trim themselves in the background.
+   */
+  public void rebalance() {
+    int count = shards.length;
+    if (count == 1) {
+      if (shards[0].getMaxSize() != maxSize) {
+        shards[0].setMaxSize(maxSize);
+      }
+      return;
+    }
+    long total = maxSize;
+    long floor = Math.max(1, total / count / 2);
+    long[] sizes = new long[count];
+    long used = 0;
+    for (int i = 0; i < count; i++) {
+      sizes[i] = shards[i].size();
+      used += sizes[i];
+    }
+    long freeShare = Math.max(0, total - used) / count;
+
+    long[] budgets = new long[count];
+    long assigned = 0;
+    long aboveFloor = 0;
+    for (int i = 0; i < count; i++) {
+      budgets[i] = Math.max(floor, sizes[i] + freeShare);
+      assigned += budgets[i];
+      aboveFloor += budgets[i] - floor;
+    }
+    // Over budget when shards are over their share or were raised to the floor; take the
+    // excess from the shards above the floor in proportion to what they hold above it.
+    long excess = assigned - total;
+    if (excess > 0 && aboveFloor > 0) {
+      for (int i = 0; i < count; i++) {
+        long above = budgets[i] - floor;
+        budgets[i] -= (long) ((double) excess * above / aboveFloor);
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      if (shards[i].getMaxSize() != budgets[i]) {
+        shards[i].setMaxSize(budgets[i]);
+      }
+    }
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    for (DiskLruCache shard : shards) {
+      if (!shard.isClosed()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /** Closes every shard. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    IOException failure = null;
+    for (DiskLruCache shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    Util.deleteContents(directory);
+  }
+}
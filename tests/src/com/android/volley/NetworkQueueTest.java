@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Checks the per-host in-flight limit, priority order and round-robin fairness of
+ * {@link NetworkQueue}.
+ */
+public class NetworkQueueTest {
+
+    private static int sSequence = 0;
+
+    /** A request that is never executed; only its URL and priority matter here. */
+    private static class TestRequest extends Request<Object> {
+        private final Priority mPriority;
+
+        TestRequest(String url, Priority priority) {
+            super(Method.GET, url, null);
+            mPriority = priority;
+            setSequence(sSequence++);
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+    }
+
+    private static TestRequest request(String host) {
+        return request(host, Request.Priority.NORMAL);
+    }
+
+    private static TestRequest request(String host, Request.Priority priority) {
+        return new TestRequest("http://" + host + "/path", priority);
+    }
+
+    @Test
+    public void hostOfUsesTheUrlHost() {
+        assertEquals("a.example.com", NetworkQueue.hostOf("http://a.example.com:8080/x?y=1"));
+        assertEquals("", NetworkQueue.hostOf(null));
+    }
+
+    @Test
+    public void hostAtItsLimitIsSkipped() {
+        NetworkQueue queue = new NetworkQueue(2);
+        TestRequest a1 = request("a");
+        TestRequest a2 = request("a");
+        TestRequest a3 = request("a");
+        TestRequest b1 = request("b");
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(a3);
+        queue.add(b1);
+
+        assertSame(a1, queue.poll());
+        assertSame(b1, queue.poll());
+        assertSame(a2, queue.poll());
+        assertEquals(2, queue.getInFlightCount("a"));
+        assertEquals(1, queue.getQueueDepth("a"));
+
+        // a3 is queued but "a" is at its limit, so nothing can be handed out.
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void finishedReleasesTheSlot() throws Exception {
+        final NetworkQueue queue = new NetworkQueue(1);
+        TestRequest first = request("a");
+        TestRequest second = request("a");
+        queue.add(first);
+        queue.add(second);
+        assertSame(first, queue.take());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        queue.finished(first);
+        assertEquals(0, queue.getInFlightCount("a"));
+        assertSame(second, queue.peek());
+        assertSame(second, queue.take());
+
+        // Finishing an unknown or already finished request is a no-op.
+        queue.finished(first);
+        assertEquals(1, queue.getInFlightCount("a"));
+    }
+
+    @Test
+    public void finishedWakesABlockedTaker() throws Exception {
+        final NetworkQueue queue = new NetworkQueue(1);
+        TestRequest first = request("a");
+        final TestRequest second = request("a");
+        queue.add(first);
+        queue.add(second);
+        assertSame(first, queue.take());
+
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread taker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (queue.take() == second) {
+                        taken.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Test failure is reported by the latch.
+                }
+            }
+        };
+        taker.start();
+        assertFalse(taken.await(50, TimeUnit.MILLISECONDS));
+        queue.finished(first);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        taker.join();
+    }
+
+    @Test
+    public void higherPriorityGoesFirstAcrossHosts() {
+        NetworkQueue queue = new NetworkQueue();
+        TestRequest low = request("a", Request.Priority.LOW);
+        TestRequest normal = request("b", Request.Priority.NORMAL);
+        TestRequest immediate = request("c", Request.Priority.IMMEDIATE);
+        TestRequest high = request("a", Request.Priority.HIGH);
+        queue.add(low);
+        queue.add(normal);
+        queue.add(immediate);
+        queue.add(high);
+
+        assertSame(immediate, queue.poll());
+        assertSame(high, queue.poll());
+        assertSame(normal, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void equalPrioritiesRotateBetweenHosts() {
+        NetworkQueue queue = new NetworkQueue(100);
+        List<TestRequest> busy = new ArrayList<TestRequest>();
+        for (int i = 0; i < 6; i++) {
+            TestRequest request = request("busy");
+            busy.add(request);
+            queue.add(request);
+        }
+        TestRequest quiet1 = request("quiet");
+        TestRequest quiet2 = request("quiet");
+        queue.add(quiet1);
+        queue.add(quiet2);
+
+        // The quiet host is served every other take instead of after the whole busy backlog.
+        assertSame(busy.get(0), queue.poll());
+        assertSame(quiet1, queue.poll());
+        assertSame(busy.get(1), queue.poll());
+        assertSame(quiet2, queue.poll());
+        for (int i = 2; i < 6; i++) {
+            assertSame(busy.get(i), queue.poll());
+        }
+    }
+
+    @Test
+    public void removeAndDrainTo() {
+        NetworkQueue queue = new NetworkQueue(1);
+        TestRequest a1 = request("a");
+        TestRequest a2 = request("a");
+        TestRequest b1 = request("b");
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(b1);
+
+        assertTrue(queue.remove(b1));
+        assertFalse(queue.remove(b1));
+        assertEquals(0, queue.getQueueDepth("b"));
+        assertEquals(2, queue.size());
+
+        assertSame(a1, queue.poll());
+        List<Request<?>> drained = new ArrayList<Request<?>>();
+        // drainTo ignores host limits, so a2 comes out although "a" is at its limit.
+        assertEquals(1, queue.drainTo(drained));
+        assertSame(a2, drained.get(0));
+        assertEquals(0, queue.size());
+        assertEquals(1, queue.getInFlightCount("a"));
+    }
+
+    @Test
+    public void manyTakersNeverExceedTheLimit() throws Exception {
+        final int limit = 3;
+        final int hosts = 4;
+        final int perHost = 200;
+        final int takers = 16;
+        final NetworkQueue queue = new NetworkQueue(limit);
+        final ConcurrentHashMap<String, AtomicInteger> inFlight =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger maxSeen = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(hosts * perHost);
+        for (int h = 0; h < hosts; h++) {
+            inFlight.put("h" + h, new AtomicInteger());
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < takers; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Request<?> request = queue.take();
+                            String host = NetworkQueue.hostOf(request.getUrl());
+                            int now = inFlight.get(host).incrementAndGet();
+                            int max;
+                            while (now > (max = maxSeen.get())
+                                    && !maxSeen.compareAndSet(max, now)) {
+                                // Retry until the maximum is recorded.
+                            }
+                            Thread.yield();
+                            inFlight.get(host).decrementAndGet();
+                            queue.finished(request);
+                            done.incrementAndGet();
+                            finished.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // Shut down by the test.
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (int i = 0; i < perHost; i++) {
+            for (int h = 0; h < hosts; h++) {
+                queue.add(request("h" + h));
+            }
+        }
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+
+        assertEquals(hosts * perHost, done.get());
+        assertTrue("max in flight " + maxSeen.get(), maxSeen.get() <= limit);
+        assertEquals(0, queue.size());
+        for (int h = 0; h < hosts; h++) {
+            assertEquals(0, queue.getInFlightCount("h" + h));
+        }
+    }
+}
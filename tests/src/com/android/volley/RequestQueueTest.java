@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.NoCache;
+
+/**
+ * Checks the in-flight bookkeeping of {@link RequestQueue}: coalescing of requests for the
+ * same cache key, cancelAll by tag, and that no request is lost or left current when many
+ * threads add, finish and cancel at once.
+ */
+public class RequestQueueTest {
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    /** Counts deliveries; responses are cacheable for ten minutes. */
+    private static class TestRequest extends Request<String> {
+        final AtomicInteger delivered = new AtomicInteger();
+        private final CountDownLatch mDone;
+
+        TestRequest(String url, Object tag, CountDownLatch done) {
+            super(Method.GET, url, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                }
+            });
+            setTag(tag);
+            setShouldCache(true);
+            mDone = done;
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(new String(response.data),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+            delivered.incrementAndGet();
+            if (mDone != null) {
+                mDone.countDown();
+            }
+        }
+    }
+
+    /** Answers with the url, after an optional gate opens. */
+    private static class StubNetwork implements Network {
+        final AtomicInteger requests = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        @Override
+        public NetworkResponse performRequest(ResponseDelivery delivery, Request<?> request)
+                throws VolleyError {
+            requests.incrementAndGet();
+            try {
+                if (gate != null) {
+                    gate.await(10, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Cache-Control", "max-age=600");
+            return new NetworkResponse(request.getUrl().getBytes(), headers);
+        }
+    }
+
+    /** Returns the number of requests the queue considers current. */
+    private static int currentCount(RequestQueue queue) {
+        final AtomicInteger count = new AtomicInteger();
+        queue.cancelAll(new RequestQueue.RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                count.incrementAndGet();
+                return false;
+            }
+        });
+        return count.get();
+    }
+
+    private static void awaitIdle(RequestQueue queue) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (currentCount(queue) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void duplicatesWaitForTheRequestInFlight() throws Exception {
+        StubNetwork network = new StubNetwork();
+        network.gate = new CountDownLatch(1);
+        mQueue = new RequestQueue(new DiskBasedCache(mTemp.newFolder("cache")), network, 2,
+                ExecutorDelivery.immediate());
+        mQueue.start();
+
+        CountDownLatch done = new CountDownLatch(3);
+        TestRequest first = new TestRequest("http://example.com/a", null, done);
+        mQueue.add(first);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (network.requests.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        TestRequest second = new TestRequest("http://example.com/a", null, done);
+        TestRequest third = new TestRequest("http://example.com/a", null, done);
+        mQueue.add(second);
+        mQueue.add(third);
+        assertEquals(3, currentCount(mQueue));
+
+        network.gate.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // The duplicates were held back and then answered from the cache the first one primed.
+        assertEquals(1, network.requests.get());
+        assertEquals(1, second.delivered.get());
+        assertEquals(1, third.delivered.get());
+        awaitIdle(mQueue);
+        assertEquals(0, currentCount(mQueue));
+    }
+
+    @Test
+    public void cancelAllByTagOnlyCancelsThatTag() throws Exception {
+        mQueue = new RequestQueue(new NoCache(), new StubNetwork(), 1,
+                ExecutorDelivery.immediate());
+        Object tag = new Object();
+        // Tags are compared by identity, not equality.
+        String equalTag = new String("tag");
+        String otherEqualTag = new String("tag");
+        List<TestRequest> tagged = new ArrayList<TestRequest>();
+        List<TestRequest> others = new ArrayList<TestRequest>();
+        for (int i = 0; i < 20; i++) {
+            TestRequest request = new TestRequest("http://example.com/" + i, tag, null);
+            tagged.add(request);
+            mQueue.add(request);
+            TestRequest other = new TestRequest("http://example.com/" + i,
+                    i % 2 == 0 ? equalTag : null, null);
+            others.add(other);
+            mQueue.add(other);
+        }
+        assertEquals(40, currentCount(mQueue));
+
+        mQueue.cancelAll(otherEqualTag);
+        mQueue.cancelAll(tag);
+        for (TestRequest request : tagged) {
+            assertTrue(request.isCanceled());
+        }
+        for (TestRequest request : others) {
+            assertFalse(request.isCanceled());
+        }
+        // The tagged requests were taken off the cache queue and finished at once, which
+        // released the untagged duplicates staged behind them.
+        assertEquals(20, currentCount(mQueue));
+
+        mQueue.cancelAll(equalTag);
+        assertEquals(10, currentCount(mQueue));
+    }
+
+    @Test
+    public void concurrentAddFinishAndCancelLeaveNothingBehind() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final int keys = 20;
+        final int tags = 4;
+        StubNetwork network = new StubNetwork();
+        mQueue = new RequestQueue(new NoCache(), network, 4, ExecutorDelivery.immediate());
+        mQueue.start();
+        final Object[] tagObjects = new Object[tags];
+        for (int i = 0; i < tags; i++) {
+            tagObjects[i] = new Object();
+        }
+
+        final List<TestRequest> all = new ArrayList<TestRequest>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> adders = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    List<TestRequest> mine = new ArrayList<TestRequest>();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        TestRequest request = new TestRequest(
+                                "http://example.com/" + random.nextInt(keys),
+                                tagObjects[random.nextInt(tags)], null);
+                        mine.add(request);
+                        mQueue.add(request);
+                    }
+                    synchronized (all) {
+                        all.addAll(mine);
+                    }
+                }
+            };
+            thread.start();
+            adders.add(thread);
+        }
+        Thread canceller = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                for (int i = 0; i < 50; i++) {
+                    mQueue.cancelAll(tagObjects[random.nextInt(tags)]);
+                    Thread.yield();
+                }
+            }
+        };
+
+        start.countDown();
+        canceller.start();
+        for (Thread thread : adders) {
+            thread.join();
+        }
+        canceller.join();
+        awaitIdle(mQueue);
+
+        assertEquals(0, currentCount(mQueue));
+        assertEquals(threads * perThread, all.size());
+        for (TestRequest request : all) {
+            assertTrue(request.delivered.get() <= 1);
+            if (!request.isCanceled()) {
+                assertEquals(1, request.delivered.get());
+            }
+        }
+        // Nothing is left staged: a new request for every key still goes out.
+        CountDownLatch done = new CountDownLatch(keys);
+        for (int i = 0; i < keys; i++) {
+            mQueue.add(new TestRequest("http://example.com/" + i, null, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.android.volley.toolbox.NoCache;
+
+/**
+ * Runs requests through a {@link RequestQueue} using {@link ThreadPerRequestDispatcher}, and
+ * compares it with the dispatcher pool against a network that answers after a delay.
+ */
+public class ThreadPerRequestDispatcherTest {
+
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    /** Counts down a latch once answered, successfully or not. */
+    private static class TestRequest extends Request<String> {
+        final AtomicInteger errors = new AtomicInteger();
+        private final CountDownLatch mDone;
+
+        TestRequest(String url, CountDownLatch done) {
+            super(Method.GET, url, null);
+            mDone = done;
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(new String(response.data), null);
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+            mDone.countDown();
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            errors.incrementAndGet();
+            mDone.countDown();
+        }
+    }
+
+    /** Answers after a fixed delay; urls containing "slow" wait for the gate instead. */
+    private static class DelayedNetwork implements Network {
+        private final long mDelayMs;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+
+        DelayedNetwork(long delayMs) {
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public NetworkResponse performRequest(ResponseDelivery delivery, Request<?> request)
+                throws VolleyError {
+            int now = inFlight.incrementAndGet();
+            int max;
+            while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) {
+                // Retry until the peak is recorded.
+            }
+            try {
+                if (request.getUrl().contains("slow")) {
+                    gate.await(10, TimeUnit.SECONDS);
+                } else if (mDelayMs > 0) {
+                    Thread.sleep(mDelayMs);
+                }
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return new NetworkResponse(request.getUrl().getBytes());
+        }
+    }
+
+    private static String url(int host, String path) {
+        return "http://host" + host + ".example.com/" + path;
+    }
+
+    @Test
+    public void slowRequestsDoNotHoldUpOthers() throws Exception {
+        DelayedNetwork network = new DelayedNetwork(0);
+        mQueue = new RequestQueue(new NoCache(), network, ThreadPerRequestDispatcher.factory(null),
+                ExecutorDelivery.immediate());
+        mQueue.start();
+
+        CountDownLatch slowDone = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            mQueue.add(new TestRequest(url(i, "slow"), slowDone));
+        }
+        CountDownLatch fastDone = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            mQueue.add(new TestRequest(url(100 + i, "fast"), fastDone));
+        }
+        // Ten long polls are more than the default pool's eight threads could ever take on.
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        assertEquals(10, slowDone.getCount());
+
+        network.gate.countDown();
+        assertTrue(slowDone.await(10, TimeUnit.SECONDS));
+        ThreadPerRequestDispatcher dispatcher =
+                (ThreadPerRequestDispatcher) mQueue.getNetworkDispatchStrategy();
+        assertEquals(30, dispatcher.getDispatchedCount());
+        assertTrue(dispatcher.getPeakInFlightCount() >= 10);
+    }
+
+    @Test
+    public void refusedRequestFailsAndFreesItsHostSlot() throws Exception {
+        Executor refusing = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        };
+        mQueue = new RequestQueue(new NoCache(), new DelayedNetwork(0),
+                ThreadPerRequestDispatcher.factory(refusing), ExecutorDelivery.immediate());
+        mQueue.start();
+
+        CountDownLatch done = new CountDownLatch(1);
+        TestRequest request = new TestRequest(url(0, "x"), done);
+        mQueue.add(request);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, request.errors.get());
+        // The slot is given back right after the error is posted.
+        NetworkQueue networkQueue = mQueue.getNetworkQueue();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (networkQueue.getInFlightCount("host0.example.com") > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, networkQueue.getInFlightCount("host0.example.com"));
+        assertEquals(0, ((ThreadPerRequestDispatcher) mQueue.getNetworkDispatchStrategy())
+                .getInFlightCount());
+    }
+
+    @Test
+    public void pausedDispatcherHoldsRequestsUntilResumed() throws Exception {
+        mQueue = new RequestQueue(new NoCache(), new DelayedNetwork(0),
+                ThreadPerRequestDispatcher.factory(null), ExecutorDelivery.immediate());
+        mQueue.getNetworkDispatchStrategy().pause();
+        mQueue.start();
+
+        CountDownLatch done = new CountDownLatch(1);
+        mQueue.add(new TestRequest(url(0, "x"), done));
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        mQueue.getNetworkDispatchStrategy().resume();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /** Performs the requests against a network answering after the delay; returns the ms. */
+    private long timeRun(NetworkDispatchStrategy.Factory strategy, DelayedNetwork network,
+            int hosts, int perHost) throws Exception {
+        mQueue = new RequestQueue(new NoCache(), network, strategy,
+                ExecutorDelivery.immediate());
+        mQueue.start();
+        try {
+            CountDownLatch done = new CountDownLatch(hosts * perHost);
+            long start = System.nanoTime();
+            for (int i = 0; i < perHost; i++) {
+                for (int h = 0; h < hosts; h++) {
+                    mQueue.add(new TestRequest(url(h, "item" + i), done));
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            mQueue.stop();
+            mQueue = null;
+        }
+    }
+
+    @Test
+    public void comparisonWithThePoolOnADelayedNetwork() throws Exception {
+        final int hosts = 8;
+        final int perHost = NetworkQueue.DEFAULT_MAX_REQUESTS_PER_HOST;
+        final long delayMs = 200;
+
+        DelayedNetwork pooledNetwork = new DelayedNetwork(delayMs);
+        long pooledMs = timeRun(NetworkDispatcherPool.factory(2, 8,
+                NetworkDispatcherPool.DEFAULT_KEEP_ALIVE_MS,
+                NetworkDispatcherPool.DEFAULT_TARGET_QUEUE_WAIT_MS), pooledNetwork, hosts,
+                perHost);
+        DelayedNetwork threadedNetwork = new DelayedNetwork(delayMs);
+        long threadedMs = timeRun(ThreadPerRequestDispatcher.factory(null), threadedNetwork,
+                hosts, perHost);
+
+        System.out.println("ThreadPerRequestDispatcher: " + hosts * perHost + " requests of "
+                + delayMs + "ms, pool(2..8) " + pooledMs + "ms peak " + pooledNetwork.peak
+                + ", thread per request " + threadedMs + "ms peak " + threadedNetwork.peak);
+        assertTrue(pooledNetwork.peak.get() <= 8);
+        // Every request runs at once, only bounded by the per-host limit.
+        assertEquals(hosts * perHost, threadedNetwork.peak.get());
+        assertTrue(threadedMs < pooledMs);
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.ext.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ResponseDelivery;
+import com.android.volley.VolleyError;
+import com.android.volley.ext.HttpCallback;
+import com.android.volley.ext.RequestInfo;
+import com.android.volley.toolbox.NoCache;
+
+/**
+ * Checks how {@link RequestBatcher} encodes calls, closes batches and hands each result back
+ * to its caller, and counts the round trips a batched run saves against a stub server.
+ */
+public class RequestBatcherTest {
+
+    private static final String PREFIX = "http://api.example.com/";
+    private static final String BATCH_URL = "http://api.example.com/batch";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /** A queue that keeps the batch requests instead of sending them. */
+    private static class CapturingQueue extends RequestQueue {
+        final List<Request<?>> added = Collections.synchronizedList(new ArrayList<Request<?>>());
+
+        CapturingQueue() {
+            super(new NoCache(), new StubNetwork(), 1, ExecutorDelivery.immediate());
+        }
+
+        @Override
+        public <T> Request<T> add(Request<T> request) {
+            added.add(request);
+            return request;
+        }
+    }
+
+    /** Answers each call of a batch with status 200 and its url as the body. */
+    private static class StubNetwork implements Network {
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public NetworkResponse performRequest(ResponseDelivery delivery, Request<?> request)
+                throws VolleyError {
+            requests.incrementAndGet();
+            try {
+                JSONArray calls = new JSONArray(new String(request.getBody(), "UTF-8"));
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < calls.length(); i++) {
+                    results.put(new JSONObject().put("status", 200)
+                            .put("body", calls.getJSONObject(i).getString("url")));
+                }
+                return new NetworkResponse(results.toString().getBytes("UTF-8"));
+            } catch (Exception e) {
+                throw new VolleyError(e);
+            }
+        }
+    }
+
+    /** Appends what happens to the call to a shared log. */
+    private static class RecordingCallback implements HttpCallback {
+        private final String mName;
+        private final List<String> mLog;
+
+        RecordingCallback(String name, List<String> log) {
+            mName = name;
+            mLog = log;
+        }
+
+        @Override
+        public void onStart() {
+        }
+
+        @Override
+        public void onFinish() {
+            mLog.add(mName + ":finish");
+        }
+
+        @Override
+        public void onResult(String string) {
+            mLog.add(mName + ":" + string);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            mLog.add(mName + ":error");
+        }
+
+        @Override
+        public void onCancelled() {
+            mLog.add(mName + ":cancelled");
+        }
+
+        @Override
+        public void onLoading(long count, long current) {
+        }
+    }
+
+    /** An executor that runs tasks at once and counts how often it was used. */
+    private static class CountingExecutor implements Executor {
+        int executions = 0;
+
+        @Override
+        public void execute(Runnable command) {
+            executions++;
+            command.run();
+        }
+    }
+
+    private static RequestInfo info(String path) {
+        return new RequestInfo(PREFIX + path, null);
+    }
+
+    private static RequestInfo info(String path, String key, String value) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(key, value);
+        return new RequestInfo(PREFIX + path, params);
+    }
+
+    private static JSONArray body(Request<?> request) throws Exception {
+        return new JSONArray(new String(request.getBody(), "UTF-8"));
+    }
+
+    private static void answer(Request<?> request, JSONArray results) {
+        ExecutorDelivery.immediate().postResponse(request, Response.success(results, null));
+    }
+
+    @Test
+    public void acceptsOnlyTheFamilyButNotTheBatchUrl() {
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL);
+        assertTrue(batcher.accepts(PREFIX + "user"));
+        assertFalse(batcher.accepts(BATCH_URL));
+        assertFalse(batcher.accepts("http://other.example.com/user"));
+        assertFalse(batcher.accepts(null));
+    }
+
+    @Test
+    public void encodeGetPutsParamsInTheUrl() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL);
+        RequestInfo info = info("user", "id", "1");
+        info.headers.put("X-Token", "t");
+        JSONObject call = batcher.encodeCall(Request.Method.GET, info);
+        assertEquals("GET", call.getString("method"));
+        assertEquals(PREFIX + "user?id=1", call.getString("url"));
+        assertFalse(call.has("params"));
+        assertEquals("t", call.getJSONObject("headers").getString("X-Token"));
+    }
+
+    @Test
+    public void encodePostSendsParamsSeparately() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL);
+        RequestInfo info = info("like", "id", "2");
+        JSONObject call = batcher.encodeCall(Request.Method.POST, info);
+        assertEquals("POST", call.getString("method"));
+        assertEquals(PREFIX + "like", call.getString("url"));
+        assertEquals("2", call.getJSONObject("params").getString("id"));
+        assertFalse(call.has("headers"));
+
+        assertEquals("DELETE",
+                batcher.encodeCall(Request.Method.DELETE, info("x")).getString("method"));
+        assertEquals("PUT", batcher.encodeCall(Request.Method.PUT, info("x")).getString("method"));
+    }
+
+    @Test
+    public void decodeResult() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL);
+        assertEquals("ok",
+                batcher.decodeResult(new JSONObject("{\"status\":200,\"body\":\"ok\"}")));
+        assertEquals("ok", batcher.decodeResult(new JSONObject("{\"body\":\"ok\"}")));
+        assertEquals("", batcher.decodeResult(new JSONObject("{\"status\":204}")));
+        for (String failed : Arrays.asList("{\"status\":404,\"body\":\"missing\"}",
+                "{\"status\":500}", "{\"status\":302}", "{\"status\":100}")) {
+            try {
+                batcher.decodeResult(new JSONObject(failed));
+                fail(failed);
+            } catch (VolleyError expected) {
+            }
+        }
+        try {
+            batcher.decodeResult(null);
+            fail();
+        } catch (VolleyError expected) {
+        }
+    }
+
+    @Test
+    public void fullBatchIsSentAtOnce() throws Exception {
+        CapturingQueue queue = new CapturingQueue();
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 60 * 1000, 3);
+        batcher.add(queue, Request.Method.GET, info("a"), null, DIRECT, this);
+        batcher.add(queue, Request.Method.GET, info("b"), null, DIRECT, this);
+        assertEquals(0, queue.added.size());
+        batcher.add(queue, Request.Method.GET, info("c"), null, DIRECT, this);
+        assertEquals(1, queue.added.size());
+
+        Request<?> request = queue.added.get(0);
+        assertEquals(Request.Method.POST, request.getMethod());
+        assertEquals(BATCH_URL, request.getUrl());
+        assertFalse(request.shouldCache());
+        JSONArray calls = body(request);
+        assertEquals(3, calls.length());
+        assertEquals(PREFIX + "a", calls.getJSONObject(0).getString("url"));
+        assertEquals(PREFIX + "c", calls.getJSONObject(2).getString("url"));
+    }
+
+    @Test
+    public void partialBatchIsSentWhenItsWindowEnds() throws Exception {
+        CapturingQueue queue = new CapturingQueue();
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 50, 20);
+        batcher.add(queue, Request.Method.GET, info("a"), null, DIRECT, this);
+        batcher.add(queue, Request.Method.GET, info("b"), null, DIRECT, this);
+        assertEquals(0, queue.added.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.added.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.added.size());
+        assertEquals(2, body(queue.added.get(0)).length());
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(1, batcher.getRoundTripsSaved());
+    }
+
+    @Test
+    public void resultsAreFannedOutInCallOrderPerExecutor() throws Exception {
+        CapturingQueue queue = new CapturingQueue();
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 60 * 1000, 4);
+        List<String> log = new ArrayList<String>();
+        CountingExecutor first = new CountingExecutor();
+        CountingExecutor second = new CountingExecutor();
+        batcher.add(queue, Request.Method.GET, info("0"), new RecordingCallback("0", log),
+                first, this);
+        batcher.add(queue, Request.Method.GET, info("1"), new RecordingCallback("1", log),
+                second, this);
+        batcher.add(queue, Request.Method.GET, info("2"), new RecordingCallback("2", log),
+                first, this);
+        batcher.add(queue, Request.Method.GET, info("3"), new RecordingCallback("3", log),
+                second, this);
+
+        // The server answers three of the four calls, one of them with an error.
+        answer(queue.added.get(0), new JSONArray("[{\"status\":200,\"body\":\"r0\"},"
+                + "{\"status\":500,\"body\":\"boom\"},{\"body\":\"r2\"}]"));
+
+        assertEquals(1, first.executions);
+        assertEquals(1, second.executions);
+        assertEquals(Arrays.asList("0:r0", "0:finish", "2:r2", "2:finish",
+                "1:error", "1:finish", "3:error", "3:finish"), log);
+    }
+
+    @Test
+    public void failedBatchFailsEveryCall() throws Exception {
+        CapturingQueue queue = new CapturingQueue();
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 60 * 1000, 2);
+        List<String> log = new ArrayList<String>();
+        batcher.add(queue, Request.Method.GET, info("0"), new RecordingCallback("0", log),
+                DIRECT, this);
+        batcher.add(queue, Request.Method.POST, info("1"), new RecordingCallback("1", log),
+                DIRECT, this);
+
+        ExecutorDelivery.immediate().postError(queue.added.get(0), new VolleyError("down"));
+        assertEquals(Arrays.asList("0:error", "0:finish", "1:error", "1:finish"), log);
+    }
+
+    @Test
+    public void cancelledCallsOnlyGetOnCancelled() throws Exception {
+        CapturingQueue queue = new CapturingQueue();
+        RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 60 * 1000, 3);
+        List<String> log = new ArrayList<String>();
+        Object owner = new Object();
+        Object other = new Object();
+        CountingExecutor executor = new CountingExecutor();
+        batcher.add(queue, Request.Method.GET, info("pending"),
+                new RecordingCallback("pending", log), executor, owner);
+        batcher.cancelAll(owner);
+        assertEquals(Arrays.asList("pending:cancelled"), log);
+        assertEquals(1, executor.executions);
+
+        batcher.add(queue, Request.Method.GET, info("a"), new RecordingCallback("a", log),
+                DIRECT, owner);
+        batcher.add(queue, Request.Method.GET, info("b"), new RecordingCallback("b", log),
+                DIRECT, other);
+        batcher.add(queue, Request.Method.GET, info("c"), new RecordingCallback("c", log),
+                DIRECT, other);
+        // The cancelled pending call was not sent.
+        assertEquals(1, queue.added.size());
+        assertEquals(3, body(queue.added.get(0)).length());
+
+        batcher.cancelAll(owner);
+        answer(queue.added.get(0), new JSONArray("[{\"body\":\"ra\"},{\"body\":\"rb\"},"
+                + "{\"body\":\"rc\"}]"));
+        assertEquals(Arrays.asList("pending:cancelled", "a:cancelled", "b:rb", "b:finish",
+                "c:rc", "c:finish"), log);
+    }
+
+    @Test
+    public void batchedRunAgainstStubServerSavesRoundTrips() throws Exception {
+        StubNetwork network = new StubNetwork();
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 2,
+                ExecutorDelivery.immediate());
+        queue.start();
+        try {
+            RequestBatcher batcher = new RequestBatcher(PREFIX, BATCH_URL, 200, 4);
+            final int calls = 10;
+            final CountDownLatch done = new CountDownLatch(calls);
+            final Map<String, String> results =
+                    Collections.synchronizedMap(new HashMap<String, String>());
+            for (int i = 0; i < calls; i++) {
+                final String url = PREFIX + "item/" + i;
+                batcher.add(queue, Request.Method.GET, new RequestInfo(url, null),
+                        new RecordingCallback(url, new ArrayList<String>()) {
+                            @Override
+                            public void onResult(String string) {
+                                results.put(url, string);
+                            }
+
+                            @Override
+                            public void onFinish() {
+                                done.countDown();
+                            }
+                        }, DIRECT, this);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < calls; i++) {
+                assertEquals(PREFIX + "item/" + i, results.get(PREFIX + "item/" + i));
+            }
+            // Two full batches of four and one of two closed by the window.
+            assertEquals(3, network.requests.get());
+            assertEquals(calls, batcher.getCallCount());
+            assertEquals(3, batcher.getBatchCount());
+            assertEquals(calls - 3, batcher.getRoundTripsSaved());
+            System.out.println("RequestBatcher: " + calls + " calls in "
+                    + batcher.getBatchCount() + " round trips, "
+                    + batcher.getRoundTripsSaved() + " saved");
+        } finally {
+            queue.stop();
+        }
+    }
+}
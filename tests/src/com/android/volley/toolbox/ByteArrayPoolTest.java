@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Checks the size classes, reuse and byte bound of {@link ByteArrayPool}, and that concurrent
+ * callers are never handed the same buffer at once.
+ */
+public class ByteArrayPoolTest {
+
+    private static final int BIG = 2 * ByteArrayPool.THREAD_CACHE_MAX_BUF_SIZE;
+
+    @Test
+    public void newBuffersAreRoundedUpToAPowerOfTwo() {
+        ByteArrayPool pool = new ByteArrayPool(1000 * 1024);
+        assertEquals(1024, pool.getBuf(1000).length);
+        assertEquals(1024, pool.getBuf(1024).length);
+        assertEquals(2048, pool.getBuf(1025).length);
+        assertEquals(1, pool.getBuf(0).length);
+        // Rounding past the limit would make a buffer that can never be pooled.
+        assertEquals(600 * 1024, pool.getBuf(600 * 1024).length);
+        assertEquals(5, pool.getMissCount());
+    }
+
+    @Test
+    public void returnedBufferIsReused() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        byte[] small = pool.getBuf(100);
+        pool.returnBuf(small);
+        assertSame(small, pool.getBuf(100));
+
+        byte[] big = pool.getBuf(BIG);
+        pool.returnBuf(big);
+        assertEquals(BIG, pool.getCurrentSize());
+        assertSame(big, pool.getBuf(BIG - 1));
+        assertEquals(0, pool.getCurrentSize());
+        assertEquals(2, pool.getHitCount());
+    }
+
+    @Test
+    public void sharedPoolServesOtherThreads() throws Exception {
+        final ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        byte[] first = new byte[1024];
+        byte[] second = new byte[1024];
+        // The first goes to this thread's cache, the second to the shared pool.
+        pool.returnBuf(first);
+        pool.returnBuf(second);
+        assertEquals(1024, pool.getCurrentSize());
+
+        final byte[][] got = new byte[1][];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                got[0] = pool.getBuf(1024);
+            }
+        };
+        other.start();
+        other.join();
+        assertSame(second, got[0]);
+        assertSame(first, pool.getBuf(1024));
+    }
+
+    @Test
+    public void bufferOneClassUpIsAccepted() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        byte[] twice = new byte[2 * BIG];
+        pool.returnBuf(twice);
+        assertSame(twice, pool.getBuf(BIG));
+
+        byte[] fourTimes = new byte[4 * BIG];
+        pool.returnBuf(fourTimes);
+        assertNotSame(fourTimes, pool.getBuf(BIG));
+        assertEquals(4 * BIG, pool.getCurrentSize());
+    }
+
+    @Test
+    public void poolStaysUnderItsLimitAndDropsLargestFirst() {
+        ByteArrayPool pool = new ByteArrayPool(3 * BIG);
+        byte[] large = new byte[2 * BIG];
+        byte[] small1 = new byte[BIG];
+        byte[] small2 = new byte[BIG];
+        pool.returnBuf(large);
+        pool.returnBuf(small1);
+        assertEquals(3 * BIG, pool.getCurrentSize());
+
+        pool.returnBuf(small2);
+        assertEquals(2 * BIG, pool.getCurrentSize());
+        assertEquals(1, pool.getEvictionCount());
+        assertSame(small2, pool.getBuf(BIG));
+        assertSame(small1, pool.getBuf(BIG));
+
+        // Buffers larger than the whole pool are never kept.
+        pool.returnBuf(new byte[4 * BIG]);
+        assertEquals(0, pool.getCurrentSize());
+    }
+
+    @Test
+    public void concurrentCallersNeverShareABuffer() throws Exception {
+        final ByteArrayPool pool = new ByteArrayPool(256 * 1024);
+        final Set<byte[]> inUse =
+                Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final long seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        int len = 1 + random.nextInt(64 * 1024);
+                        byte[] buf = pool.getBuf(len);
+                        boolean fresh;
+                        synchronized (inUse) {
+                            fresh = inUse.add(buf);
+                        }
+                        if (!fresh || buf.length < len) {
+                            failures.incrementAndGet();
+                        }
+                        synchronized (inUse) {
+                            inUse.remove(buf);
+                        }
+                        pool.returnBuf(buf);
+                        if (pool.getCurrentSize() > pool.getSizeLimit()) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(pool.getCurrentSize() <= pool.getSizeLimit());
+        assertTrue(pool.getHitCount() > 0);
+        assertEquals(8 * 20000, pool.getHitCount() + pool.getMissCount());
+    }
+}
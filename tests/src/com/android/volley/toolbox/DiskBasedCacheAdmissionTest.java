@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.volley.Cache.Entry;
+
+/**
+ * Replays a request trace against {@link DiskBasedCache} with and without frequency-based
+ * admission: a small working set requested over and over, interrupted by scans of urls that
+ * are requested once and never again, as when a user flicks through a long feed.
+ */
+public class DiskBasedCacheAdmissionTest {
+
+    private static final int ENTRY_SIZE = 1024;
+
+    /** Room for about 64 entries. */
+    private static final int CACHE_SIZE = 64 * ENTRY_SIZE;
+
+    private static final int HOT_KEYS = 40;
+    private static final int REQUESTS = 6000;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    /**
+     * Serves the trace from the cache, putting every miss, and returns the hit ratio of the
+     * second half, once the cache has warmed up.
+     */
+    private float simulate(File dir, boolean admission) throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(dir, CACHE_SIZE);
+        cache.setAdmissionEnabled(admission);
+        cache.initialize();
+        Random random = new Random(42);
+        int scanned = 0;
+        int hits = 0;
+        int measured = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            String key;
+            if (i % 200 < 120) {
+                key = "http://example.com/hot/" + random.nextInt(HOT_KEYS);
+            } else {
+                key = "http://example.com/feed/" + scanned++;
+            }
+            boolean hit = cache.get(key) != null;
+            if (!hit) {
+                Entry entry = new Entry();
+                entry.data = new byte[ENTRY_SIZE];
+                entry.ttl = Long.MAX_VALUE;
+                entry.softTtl = Long.MAX_VALUE;
+                cache.put(key, entry);
+            }
+            if (i >= REQUESTS / 2 && key.contains("/hot/")) {
+                measured++;
+                if (hit) {
+                    hits++;
+                }
+            }
+            if (i % 100 == 0) {
+                // Give the trim thread a chance to catch up, as request gaps would.
+                Thread.sleep(1);
+            }
+        }
+        return (float) hits / measured;
+    }
+
+    @Test
+    public void scansDoNotFlushTheWorkingSet() throws Exception {
+        float lru = simulate(mTemp.newFolder("lru"), false);
+        float admitted = simulate(mTemp.newFolder("admission"), true);
+        System.out.println(String.format(
+                "Working set hit ratio: plain LRU %.2f, with admission %.2f", lru, admitted));
+        assertTrue("admission " + admitted + " vs lru " + lru, admitted > lru + 0.1f);
+        assertTrue(admitted > 0.8f);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.volley.Cache.Entry;
+
+/**
+ * Hammers a {@link DiskBasedCache} from many threads at once and checks that every read sees
+ * one complete entry, never a mix of two puts, and that the journal written meanwhile
+ * reproduces the final state on restart. Also measures mixed get/put throughput.
+ */
+public class DiskBasedCacheStressTest {
+
+    private static final int THREADS = 8;
+    private static final int OPS_PER_THREAD = 2000;
+    private static final int KEYS = 48;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    private static String key(int i) {
+        return "http://example.com/item?id=" + i;
+    }
+
+    /** An entry whose data, etag and headers all name the key and the version. */
+    private static Entry entry(String key, long version, int size) {
+        Entry entry = new Entry();
+        byte[] stamp;
+        try {
+            stamp = (key + "#" + version + ";").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        entry.data = new byte[Math.max(size, stamp.length)];
+        for (int i = 0; i < entry.data.length; i++) {
+            entry.data[i] = stamp[i % stamp.length];
+        }
+        entry.etag = String.valueOf(version);
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = Collections.singletonMap("X-Version", String.valueOf(version));
+        return entry;
+    }
+
+    /** Fails unless the entry is one complete put of the key. */
+    private static void assertConsistent(String key, Entry entry) throws Exception {
+        String version = entry.etag;
+        assertNotNull(version);
+        assertEquals(version, entry.responseHeaders.get("X-Version"));
+        Entry expected = entry(key, Long.parseLong(version), entry.data.length);
+        if (!Arrays.equals(expected.data, entry.data)) {
+            fail("Data of " + key + " doesn't match version " + version);
+        }
+    }
+
+    private void hammer(final DiskBasedCache cache, final boolean withRemoves) throws Exception {
+        final AtomicLong versions = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            new Thread("stress-" + t) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            String key = key(random.nextInt(KEYS));
+                            int op = random.nextInt(100);
+                            if (op < 30) {
+                                cache.put(key, entry(key, versions.incrementAndGet(),
+                                        256 + random.nextInt(4096)));
+                            } else if (op < 35 && withRemoves) {
+                                cache.remove(key);
+                            } else if (op < 40) {
+                                cache.invalidate(key, random.nextBoolean());
+                            } else if (op < 50) {
+                                Entry metadata = cache.getMetadata(key);
+                                if (metadata != null) {
+                                    assertEquals(metadata.etag,
+                                            metadata.responseHeaders.get("X-Version"));
+                                }
+                            } else {
+                                Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    assertConsistent(key, entry);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " failures, first: " + failures.get(0));
+        }
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeEntries() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mDir, 64 * 1024 * 1024);
+        cache.initialize();
+        hammer(cache, true);
+        assertTrue(cache.getHitCount() > 0);
+    }
+
+    @Test
+    public void journalWrittenUnderLoadMatchesOnRestart() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mDir, 64 * 1024 * 1024);
+        cache.initialize();
+        hammer(cache, true);
+        cache.awaitIndexWrites();
+
+        DiskBasedCache restarted = new DiskBasedCache(mDir, 64 * 1024 * 1024);
+        restarted.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i);
+            Entry before = cache.get(key);
+            Entry after = restarted.get(key);
+            if (before == null) {
+                assertNull(key, after);
+                continue;
+            }
+            assertNotNull(key, after);
+            assertEquals(key, before.etag, after.etag);
+            assertEquals(key, before.ttl, after.ttl);
+            assertEquals(key, before.softTtl, after.softTtl);
+            assertConsistent(key, after);
+        }
+    }
+
+    @Test
+    public void concurrentEvictionKeepsReadsWhole() throws Exception {
+        // Small enough that the trim thread evicts throughout the run.
+        DiskBasedCache cache = new DiskBasedCache(mDir, 32 * 1024);
+        cache.setAdmissionEnabled(false);
+        cache.initialize();
+        hammer(cache, false);
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    /** Returns the operations per second of the threads doing nine gets to each put. */
+    private static long mixedOpsPerSecond(final DiskBasedCache cache, int threads,
+            final long durationMs) throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread("mixed-" + t) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    try {
+                        start.await();
+                        long deadline = System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(durationMs);
+                        while (System.nanoTime() < deadline) {
+                            String key = key(random.nextInt(KEYS));
+                            if (random.nextInt(10) == 0) {
+                                cache.put(key, entry(key, count, 4096));
+                            } else {
+                                Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    assertConsistent(key, entry);
+                                }
+                            }
+                            count++;
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        ops.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " failures, first: " + failures.get(0));
+        }
+        return ops.get() * 1000 / durationMs;
+    }
+
+    @Test
+    public void mixedThroughput() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mDir, 64 * 1024 * 1024);
+        cache.setAdmissionEnabled(false);
+        cache.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            cache.put(key(i), entry(key(i), i, 4096));
+        }
+        // Warm up before measuring.
+        mixedOpsPerSecond(cache, 4, 300);
+
+        StringBuilder report = new StringBuilder("DiskBasedCache: 4KB 90% get / 10% put ops/s,");
+        for (int threads : new int[] {1, 4, 8}) {
+            long rate = mixedOpsPerSecond(cache, threads, 1000);
+            report.append(' ').append(threads).append(" threads ").append(rate);
+            assertTrue(rate > 0);
+        }
+        System.out.println(report);
+    }
+}
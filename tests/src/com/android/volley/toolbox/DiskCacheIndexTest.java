@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.volley.Cache.Entry;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+/**
+ * Replay and compaction of the {@link DiskCacheIndex} journal, and the startup time of a
+ * {@link DiskBasedCache} with and without it.
+ */
+public class DiskCacheIndexTest {
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    private static CacheHeader header(String key, String etag, int size) {
+        Entry entry = new Entry();
+        entry.data = new byte[size];
+        entry.etag = etag;
+        entry.ttl = 1000;
+        entry.softTtl = 500;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-Key", key);
+        entry.responseHeaders = headers;
+        return new CacheHeader(key, entry);
+    }
+
+    /** Opens a fresh journal, as the cache does on first start. */
+    private DiskCacheIndex open() {
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        Map<String, CacheHeader> loaded = new LinkedHashMap<String, CacheHeader>();
+        if (!index.load(loaded)) {
+            index.compact(loaded.values());
+        }
+        return index;
+    }
+
+    private Map<String, CacheHeader> reload() {
+        Map<String, CacheHeader> loaded = new LinkedHashMap<String, CacheHeader>();
+        assertTrue(new DiskCacheIndex(mDir).load(loaded));
+        return loaded;
+    }
+
+    @Test
+    public void missingJournalNeedsCompaction() {
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        assertFalse(index.load(new HashMap<String, CacheHeader>()));
+        assertTrue(index.needsCompaction(0));
+    }
+
+    @Test
+    public void replaysPutsAndRemovesInOrder() throws Exception {
+        DiskCacheIndex index = open();
+        index.put(header("a", "1", 10));
+        index.put(header("b", "1", 20));
+        index.remove("a");
+        index.put(header("b", "2", 30));
+        index.put(header("c", "1", 40));
+        index.drain();
+
+        Map<String, CacheHeader> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertNull(loaded.get("a"));
+        assertEquals("2", loaded.get("b").etag);
+        assertEquals(30, loaded.get("b").size);
+        assertEquals("b", loaded.get("b").responseHeaders.get("X-Key"));
+        assertEquals(40, loaded.get("c").size);
+        // Replay order is the order of the last put of each key.
+        List<String> keys = new ArrayList<String>(loaded.keySet());
+        assertEquals("b", keys.get(0));
+        assertEquals("c", keys.get(1));
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveEntries() throws Exception {
+        DiskCacheIndex index = open();
+        Map<String, CacheHeader> live = new LinkedHashMap<String, CacheHeader>();
+        for (int i = 0; i < 2000; i++) {
+            CacheHeader h = header("k" + (i % 10), String.valueOf(i), i);
+            live.remove(h.key);
+            live.put(h.key, h);
+            index.put(h);
+        }
+        assertTrue(index.needsCompaction(live.size()));
+        index.drain();
+        long before = new File(mDir, DiskCacheIndex.INDEX_FILE_NAME).length();
+
+        index.compact(live.values());
+        assertFalse(index.needsCompaction(live.size()));
+        index.put(header("after", "x", 5));
+        index.drain();
+
+        File journal = new File(mDir, DiskCacheIndex.INDEX_FILE_NAME);
+        assertTrue(journal.length() < before / 10);
+        assertFalse(new File(mDir, DiskCacheIndex.INDEX_TEMP_FILE_NAME).exists());
+        Map<String, CacheHeader> loaded = reload();
+        assertEquals(11, loaded.size());
+        assertEquals("1999", loaded.get("k9").etag);
+        assertEquals(5, loaded.get("after").size);
+    }
+
+    @Test
+    public void compactionWritesTheEntriesAsQueued() throws Exception {
+        DiskCacheIndex index = open();
+        List<CacheHeader> live = new ArrayList<CacheHeader>();
+        live.add(header("a", "1", 1));
+        index.compact(live);
+        // The caller goes on changing its index; the queued compaction must not see it.
+        live.add(header("b", "1", 1));
+        index.drain();
+
+        Map<String, CacheHeader> loaded = reload();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("a"));
+    }
+
+    @Test
+    public void truncatedJournalKeepsCompleteRecords() throws Exception {
+        DiskCacheIndex index = open();
+        index.put(header("a", "1", 1));
+        index.put(header("b", "1", 1));
+        index.drain();
+        File journal = new File(mDir, DiskCacheIndex.INDEX_FILE_NAME);
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        Map<String, CacheHeader> loaded = new LinkedHashMap<String, CacheHeader>();
+        DiskCacheIndex reopened = new DiskCacheIndex(mDir);
+        assertFalse(reopened.load(loaded));
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("a"));
+        // Records are not appended to a torn journal; the next compaction rewrites it.
+        assertTrue(reopened.needsCompaction(loaded.size()));
+    }
+
+    @Test
+    public void resetDropsJournalAndQueuedChanges() throws Exception {
+        DiskCacheIndex index = open();
+        index.put(header("a", "1", 1));
+        index.reset();
+        index.put(header("b", "1", 1));
+        index.drain();
+
+        assertFalse(new File(mDir, DiskCacheIndex.INDEX_FILE_NAME).exists());
+        assertTrue(index.needsCompaction(0));
+    }
+
+    /** Returns the ms taken to initialize a cache over the directory. */
+    private static long timeInitialize(File dir, int expectedEntries) throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(dir, Integer.MAX_VALUE);
+        long start = System.nanoTime();
+        cache.initialize();
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        cache.awaitIndexWrites();
+        Entry entry = cache.getMetadata("http://example.com/item?id=" + (expectedEntries - 1));
+        assertEquals(String.valueOf(expectedEntries - 1), entry.etag);
+        return ms;
+    }
+
+    @Test
+    public void startupTimeWithAndWithoutIndex() throws Exception {
+        StringBuilder report = new StringBuilder("DiskBasedCache startup:");
+        long indexedMs = 0;
+        long scannedMs = 0;
+        for (int entries : new int[] {1000, 10000, 100000}) {
+            File dir = mTemp.newFolder("startup" + entries);
+            DiskBasedCache cache = new DiskBasedCache(dir, Integer.MAX_VALUE);
+            cache.setAdmissionEnabled(false);
+            cache.initialize();
+            Entry entry = new Entry();
+            entry.data = new byte[64];
+            entry.ttl = Long.MAX_VALUE;
+            entry.softTtl = Long.MAX_VALUE;
+            entry.responseHeaders = new HashMap<String, String>();
+            entry.responseHeaders.put("Content-Type", "application/json");
+            for (int i = 0; i < entries; i++) {
+                entry.etag = String.valueOf(i);
+                cache.put("http://example.com/item?id=" + i, entry);
+            }
+            cache.awaitIndexWrites();
+
+            indexedMs = timeInitialize(dir, entries);
+            // Without the index every file is opened to read its header, as before it.
+            assertTrue(new File(dir, DiskCacheIndex.INDEX_FILE_NAME).delete());
+            scannedMs = timeInitialize(dir, entries);
+            report.append(' ').append(entries).append(" entries ").append(indexedMs)
+                    .append("ms indexed / ").append(scannedMs).append("ms scanned,");
+        }
+        System.out.println(report.substring(0, report.length() - 1));
+        assertTrue(indexedMs < scannedMs);
+    }
+}
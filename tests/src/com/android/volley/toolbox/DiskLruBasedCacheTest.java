@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.volley.Cache.Entry;
+
+/**
+ * Runs puts, reads and removals against a {@link DiskLruBasedCache} from many threads at once,
+ * checks that every read sees one complete put and that the state survives a restart, and
+ * measures read throughput as readers are added.
+ */
+public class DiskLruBasedCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int OPS_PER_THREAD = 1000;
+    private static final int KEYS = 48;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+    private final List<DiskLruBasedCache> mOpened = new ArrayList<DiskLruBasedCache>();
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        for (DiskLruBasedCache cache : mOpened) {
+            cache.close();
+        }
+    }
+
+    private DiskLruBasedCache open(int shards) {
+        DiskLruBasedCache.ImageCacheParams params = new DiskLruBasedCache.ImageCacheParams(mDir);
+        params.diskCacheSize = 64 * 1024 * 1024;
+        params.diskCacheShards = shards;
+        DiskLruBasedCache cache = new DiskLruBasedCache(params);
+        cache.initialize();
+        mOpened.add(cache);
+        return cache;
+    }
+
+    private static String key(int i) {
+        return "http://example.com/item?id=" + i;
+    }
+
+    /** An entry whose data, etag and headers all name the key and the version. */
+    private static Entry entry(String key, long version, int size) {
+        Entry entry = new Entry();
+        byte[] stamp;
+        try {
+            stamp = (key + "#" + version + ";").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        entry.data = new byte[Math.max(size, stamp.length)];
+        for (int i = 0; i < entry.data.length; i++) {
+            entry.data[i] = stamp[i % stamp.length];
+        }
+        entry.etag = String.valueOf(version);
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = Collections.singletonMap("X-Version", String.valueOf(version));
+        return entry;
+    }
+
+    /** Fails unless the entry is one complete put of the key. */
+    private static void assertConsistent(String key, Entry entry) throws Exception {
+        String version = entry.etag;
+        assertNotNull(version);
+        assertEquals(version, entry.responseHeaders.get("X-Version"));
+        Entry expected = entry(key, Long.parseLong(version), entry.data.length);
+        if (!Arrays.equals(expected.data, entry.data)) {
+            fail("Data of " + key + " doesn't match version " + version
+                    + ", length " + entry.data.length);
+        }
+    }
+
+    /**
+     * Mixes puts, removals and reads. Invalidation is left out: it reads the header and writes
+     * it back as two steps, so it may put an older header in front of a newer body.
+     */
+    private void hammer(final DiskLruBasedCache cache) throws Exception {
+        final AtomicLong versions = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            new Thread("stress-" + t) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            String key = key(random.nextInt(KEYS));
+                            int op = random.nextInt(100);
+                            if (op < 30) {
+                                cache.put(key, entry(key, versions.incrementAndGet(),
+                                        256 + random.nextInt(4096)));
+                            } else if (op < 35) {
+                                cache.remove(key);
+                            } else if (op < 50) {
+                                Entry metadata = cache.getMetadata(key);
+                                if (metadata != null) {
+                                    assertEquals(metadata.etag,
+                                            metadata.responseHeaders.get("X-Version"));
+                                }
+                            } else {
+                                Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    assertConsistent(key, entry);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " failures, first: " + failures.get(0));
+        }
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeEntries() throws Exception {
+        hammer(open(1));
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeEntriesWithShards() throws Exception {
+        hammer(open(4));
+    }
+
+    @Test
+    public void stateMatchesOnRestart() throws Exception {
+        DiskLruBasedCache cache = open(4);
+        hammer(cache);
+        List<Entry> before = new ArrayList<Entry>();
+        for (int i = 0; i < KEYS; i++) {
+            before.add(cache.get(key(i)));
+        }
+        cache.close();
+
+        DiskLruBasedCache restarted = open(4);
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i);
+            Entry after = restarted.get(key);
+            if (before.get(i) == null) {
+                assertNull(key, after);
+                continue;
+            }
+            assertNotNull(key, after);
+            assertEquals(key, before.get(i).etag, after.etag);
+            assertConsistent(key, after);
+        }
+    }
+
+    @Test
+    public void invalidateKeepsTheBody() throws Exception {
+        DiskLruBasedCache cache = open(1);
+        String key = key(0);
+        cache.put(key, entry(key, 7, 10000));
+        cache.invalidate(key, false);
+
+        Entry entry = cache.get(key);
+        assertNotNull(entry);
+        assertTrue(entry.refreshNeeded());
+        assertTrue(!entry.isExpired());
+        assertConsistent(key, entry);
+
+        cache.invalidate(key, true);
+        entry = cache.get(key);
+        assertTrue(entry.isExpired());
+        assertConsistent(key, entry);
+    }
+
+    /** Returns the reads per second of the given number of threads reading random keys. */
+    private static long readsPerSecond(final DiskLruBasedCache cache, int readers, final int keys,
+            final long durationMs) throws Exception {
+        final AtomicLong reads = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(readers);
+        for (int t = 0; t < readers; t++) {
+            final long seed = t;
+            new Thread("reader-" + t) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    try {
+                        start.await();
+                        long deadline = System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(durationMs);
+                        while (System.nanoTime() < deadline) {
+                            if (cache.get(key(random.nextInt(keys))) == null) {
+                                throw new AssertionError("Missing entry");
+                            }
+                            count++;
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        reads.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(durationMs + 30000, TimeUnit.MILLISECONDS));
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " failures, first: " + failures.get(0));
+        }
+        return reads.get() * 1000 / durationMs;
+    }
+
+    @Test
+    public void readThroughput() throws Exception {
+        final int keys = 200;
+        DiskLruBasedCache cache = open(1);
+        for (int i = 0; i < keys; i++) {
+            cache.put(key(i), entry(key(i), i, 4096));
+        }
+        // Warm up before measuring.
+        readsPerSecond(cache, 4, keys, 300);
+
+        StringBuilder report = new StringBuilder("DiskLruBasedCache: 4KB reads/s,");
+        for (int readers : new int[] {1, 4, 8}) {
+            long rate = readsPerSecond(cache, readers, keys, 1000);
+            report.append(' ').append(readers).append(" readers ").append(rate);
+            assertTrue(rate > 0);
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * How {@link DrainingInputStream} releases a body and what it records in
+ * {@link ConnectionStats}.
+ */
+public class DrainingInputStreamTest {
+
+    private static final long LIMIT = 64 * 1024;
+
+    /** Records whether it was closed. */
+    private static class Body extends ByteArrayInputStream {
+        boolean closed;
+
+        Body(int length) {
+            super(new byte[length]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static void readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // Keep reading.
+        }
+    }
+
+    @Test
+    public void bodyReadToTheEndIsReusable() throws Exception {
+        ConnectionStats stats = new ConnectionStats();
+        Body body = new Body(10000);
+        DrainingInputStream in = new DrainingInputStream(body, stats, LIMIT);
+        readFully(in);
+        in.close();
+        in.close();
+
+        assertTrue(body.closed);
+        assertEquals(1, stats.getReusableCount());
+        assertEquals(0, stats.getDrainedCount());
+        assertEquals(0, stats.getAbandonedCount());
+        assertEquals(1f, stats.getReuseRate(), 0f);
+    }
+
+    @Test
+    public void smallLeftoverIsDrained() throws Exception {
+        ConnectionStats stats = new ConnectionStats();
+        Body body = new Body(10000);
+        DrainingInputStream in = new DrainingInputStream(body, stats, LIMIT);
+        assertEquals(100, in.read(new byte[100]));
+        in.close();
+
+        assertEquals(0, body.available());
+        assertEquals(1, stats.getReusableCount());
+        assertEquals(1, stats.getDrainedCount());
+        assertEquals(9900, stats.getDrainedBytes());
+    }
+
+    @Test
+    public void largeLeftoverIsAbandoned() throws Exception {
+        ConnectionStats stats = new ConnectionStats();
+        Body body = new Body((int) LIMIT * 4);
+        DrainingInputStream in = new DrainingInputStream(body, stats, LIMIT);
+        in.read();
+        in.close();
+
+        assertTrue(body.closed);
+        // Gave up shortly after the limit.
+        assertTrue(body.available() > LIMIT * 2);
+        assertEquals(0, stats.getReusableCount());
+        assertEquals(1, stats.getAbandonedCount());
+    }
+
+    @Test
+    public void failureWhileDrainingAbandons() throws Exception {
+        ConnectionStats stats = new ConnectionStats();
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        new DrainingInputStream(broken, stats, LIMIT).close();
+
+        assertEquals(1, stats.getAbandonedCount());
+        assertEquals(0f, stats.getReuseRate(), 0f);
+    }
+}
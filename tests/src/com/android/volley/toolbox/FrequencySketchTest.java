@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsIncrements() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        assertEquals(5, sketch.frequency("a"));
+        assertEquals(1, sketch.frequency("b"));
+    }
+
+    @Test
+    public void saturatesAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 500; i++) {
+            for (int j = 0; j <= i % 7; j++) {
+                sketch.increment("key" + i);
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            assertTrue(sketch.frequency("key" + i) >= i % 7 + 1);
+        }
+    }
+
+    @Test
+    public void agesOldCounts() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("hot");
+        }
+        // Ten increments per counter row trigger a reset that halves every counter.
+        for (int i = 0; i < 10 * 64; i++) {
+            sketch.increment("other" + i);
+        }
+        assertTrue(sketch.frequency("hot") <= 4);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+/**
+ * Runs {@link HurlStack} through {@link BasicNetwork} against a local keep-alive server, with
+ * streaming requests that stop reading early, and counts the connections the server accepts.
+ */
+public class HurlStackTest {
+
+    private static final int BODY_LENGTH = 32 * 1024;
+
+    private ServerSocket mServer;
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final List<Socket> mAccepted = Collections.synchronizedList(new ArrayList<Socket>());
+
+    @BeforeClass
+    public static void disableBackgroundDraining() {
+        // The JDK drains bodies closed early on a background thread, which Android's
+        // HttpURLConnection doesn't; turn it off so abandoned bodies cost their connection.
+        System.setProperty("http.KeepAlive.remainingData", "0");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        new Thread("keep-alive-server") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        mConnections.incrementAndGet();
+                        mAccepted.add(socket);
+                        new Thread("keep-alive-connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown.
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        for (Socket socket : mAccepted) {
+            socket.close();
+        }
+    }
+
+    /** Answers every request on the connection with the same body until the client leaves. */
+    private static void serve(Socket socket) {
+        try {
+            byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                    + BODY_LENGTH + "\r\n\r\n").getBytes("ISO-8859-1");
+            // One write per response, so Nagle's algorithm doesn't hold back the body.
+            byte[] response = new byte[head.length + BODY_LENGTH];
+            System.arraycopy(head, 0, response, 0, head.length);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (skipRequestHead(in)) {
+                out.write(response);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // The client dropped the connection.
+        } catch (IOException e) {
+            // Likewise.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Reads up to the blank line ending a request head; returns false at end of stream. */
+    private static boolean skipRequestHead(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                return false;
+            }
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1
+                    : (b == '\r' ? 1 : 0);
+        }
+        return true;
+    }
+
+    /** Reads only the first bytes of the body, as a parser that found what it needed. */
+    private static class PeekRequest extends Request<String> implements StreamingRequest<String> {
+        PeekRequest(String url) {
+            super(Method.GET, url, null);
+        }
+
+        @Override
+        public Response<String> parseNetworkStream(NetworkResponse response, InputStream in)
+                throws IOException {
+            byte[] head = new byte[16];
+            int read = in.read(head);
+            return Response.success(String.valueOf(read), null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return StreamedNetworkResponse.parse(this, response);
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+        }
+    }
+
+    /** Performs the requests one after another and returns the requests per second. */
+    private long run(HurlStack stack, int count) throws Exception {
+        BasicNetwork network = new BasicNetwork(stack);
+        String url = "http://127.0.0.1:" + mServer.getLocalPort() + "/peek";
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            NetworkResponse response = network.performRequest(ExecutorDelivery.immediate(),
+                    new PeekRequest(url));
+            assertTrue(response instanceof StreamedNetworkResponse);
+        }
+        long elapsedNs = Math.max(1, System.nanoTime() - start);
+        return count * TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+    }
+
+    @Test
+    public void earlyClosedBodiesAreDrainedAndTheConnectionReused() throws Exception {
+        HurlStack stack = new HurlStack("test");
+        run(stack, 50);
+
+        ConnectionStats stats = stack.getConnectionStats();
+        assertEquals(50, stats.getRequestCount());
+        assertEquals(50, stats.getDrainedCount());
+        assertEquals(50L * (BODY_LENGTH - 16), stats.getDrainedBytes());
+        assertEquals(1f, stats.getReuseRate(), 0f);
+        assertEquals(1, mConnections.get());
+    }
+
+    @Test
+    public void requestsPerSecondWithAndWithoutDraining() throws Exception {
+        final int count = 300;
+        HurlStack abandoning = new HurlStack("test");
+        // Below the size of one read, so every body is given up on, as before draining.
+        abandoning.setDrainLimit(-1);
+        HurlStack draining = new HurlStack("test");
+        run(abandoning, 50);
+        run(draining, 50);
+
+        long abandonedRate = 0;
+        long drainedRate = 0;
+        int connectionsBefore = mConnections.get();
+        for (int round = 0; round < 3; round++) {
+            abandonedRate = Math.max(abandonedRate, run(abandoning, count));
+        }
+        int abandonedConnections = mConnections.get() - connectionsBefore;
+        connectionsBefore = mConnections.get();
+        for (int round = 0; round < 3; round++) {
+            drainedRate = Math.max(drainedRate, run(draining, count));
+        }
+        int drainedConnections = mConnections.get() - connectionsBefore;
+
+        System.out.println("HurlStack: " + BODY_LENGTH / 1024 + "KB bodies read 16 bytes into,"
+                + " abandoned " + abandonedRate + " req/s over " + abandonedConnections
+                + " new connections, drained " + drainedRate + " req/s over "
+                + drainedConnections + " new connections; " + draining.getConnectionStats());
+        assertEquals(0f, abandoning.getConnectionStats().getReuseRate(), 0f);
+        assertEquals(1f, draining.getConnectionStats().getReuseRate(), 0f);
+        assertEquals(0, drainedConnections);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpResponse;
+import org.junit.Test;
+
+/**
+ * Feeds raw responses to {@link NioHttpStack.ResponseParser}, whole and byte by byte.
+ */
+public class NioHttpStackParserTest {
+
+    private static final int MAX_BODY = 1024;
+
+    private static void append(NioHttpStack.ResponseParser parser, String data)
+            throws IOException {
+        parser.append(ByteBuffer.wrap(data.getBytes("ISO-8859-1")));
+    }
+
+    private static String body(HttpResponse response) throws IOException {
+        InputStream in = response.getEntity().getContent();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    /** Feeds the data one byte at a time and returns the response once it is complete. */
+    private static HttpResponse parseBytewise(String data, boolean headRequest)
+            throws IOException {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        HttpResponse response = null;
+        for (int i = 0; i < data.length(); i++) {
+            assertNull("response complete before byte " + i, response);
+            append(parser, data.substring(i, i + 1));
+            response = parser.parse(headRequest);
+        }
+        assertFalse(parser.hasInput());
+        return response;
+    }
+
+    @Test
+    public void fixedLength() throws Exception {
+        String data = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Test: a\r\n\r\nhello";
+        HttpResponse response = parseBytewise(data, false);
+        assertNotNull(response);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("a", response.getFirstHeader("X-Test").getValue());
+        assertEquals("hello", body(response));
+    }
+
+    @Test
+    public void chunkedWithExtensionsAndTrailer() throws Exception {
+        String data = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n"
+                + "7\r\n, world\r\n"
+                + "0\r\nX-Trailer: t\r\n\r\n";
+        HttpResponse response = parseBytewise(data, false);
+        assertNotNull(response);
+        assertEquals("hello, world", body(response));
+    }
+
+    @Test
+    public void badChunkIsRejected() throws Exception {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(parser, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabcX\r\n");
+        try {
+            parser.parse(false);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void bodyUntilClose() throws Exception {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(parser, "HTTP/1.1 200 OK\r\n\r\nstreamed ");
+        assertNull(parser.parse(false));
+        append(parser, "until close");
+        assertNull(parser.parse(false));
+        assertFalse(parser.isKeepAlive());
+        HttpResponse response = parser.finish();
+        assertNotNull(response);
+        assertEquals("streamed until close", body(response));
+    }
+
+    @Test
+    public void finishWithoutDelimitedBodyReturnsNull() throws Exception {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(parser, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort");
+        assertNull(parser.parse(false));
+        assertNull(parser.finish());
+    }
+
+    @Test
+    public void interimResponsesAreSkipped() throws Exception {
+        String data = "HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.1 103 Early Hints\r\nLink: </a.css>\r\n\r\n"
+                + "HTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok";
+        HttpResponse response = parseBytewise(data, false);
+        assertNotNull(response);
+        assertEquals(201, response.getStatusLine().getStatusCode());
+        assertNull(response.getFirstHeader("Link"));
+        assertEquals("ok", body(response));
+    }
+
+    @Test
+    public void responsesWithoutBody() throws Exception {
+        // A HEAD response announces the length of the body it doesn't have.
+        HttpResponse head = parseBytewise(
+                "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n", true);
+        assertNotNull(head);
+        assertEquals("", body(head));
+
+        HttpResponse noContent = parseBytewise("HTTP/1.1 204 No Content\r\n\r\n", false);
+        assertEquals(204, noContent.getStatusLine().getStatusCode());
+        assertEquals("", body(noContent));
+
+        HttpResponse notModified = parseBytewise(
+                "HTTP/1.1 304 Not Modified\r\nContent-Length: 100\r\n\r\n", false);
+        assertEquals(304, notModified.getStatusLine().getStatusCode());
+        assertEquals("", body(notModified));
+    }
+
+    @Test
+    public void pipelinedResponsesInOneBuffer() throws Exception {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(parser, "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\none"
+                + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\ntwo\r\n0\r\n\r\n"
+                + "HTTP/1.1 204 No Content\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfo");
+        assertEquals("one", body(parser.parse(false)));
+        assertEquals("two", body(parser.parse(false)));
+        assertEquals(204, parser.parse(false).getStatusLine().getStatusCode());
+        assertNull(parser.parse(false));
+        append(parser, "ur!");
+        assertEquals("four!", body(parser.parse(false)));
+        assertFalse(parser.hasInput());
+    }
+
+    @Test
+    public void keepAlive() throws Exception {
+        NioHttpStack.ResponseParser parser = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(parser, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertNotNull(parser.parse(false));
+        assertTrue(parser.isKeepAlive());
+
+        append(parser, "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+        assertNotNull(parser.parse(false));
+        assertFalse(parser.isKeepAlive());
+
+        append(parser, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertNotNull(parser.parse(false));
+        assertFalse(parser.isKeepAlive());
+
+        append(parser, "HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n");
+        assertNotNull(parser.parse(false));
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void bodiesOverTheLimitAreRejected() throws Exception {
+        NioHttpStack.ResponseParser declared = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(declared, "HTTP/1.1 200 OK\r\nContent-Length: " + (MAX_BODY + 1) + "\r\n\r\n");
+        try {
+            declared.parse(false);
+            fail();
+        } catch (NioHttpStack.BodyTooLargeException expected) {
+        }
+
+        StringBuilder full = new StringBuilder();
+        for (int i = 0; i < MAX_BODY; i++) {
+            full.append('x');
+        }
+        NioHttpStack.ResponseParser chunked = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(chunked, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(MAX_BODY) + "\r\n" + full + "\r\n");
+        assertNull(chunked.parse(false));
+        append(chunked, "1\r\n");
+        try {
+            chunked.parse(false);
+            fail();
+        } catch (NioHttpStack.BodyTooLargeException expected) {
+        }
+
+        NioHttpStack.ResponseParser untilClose = new NioHttpStack.ResponseParser(MAX_BODY);
+        append(untilClose, "HTTP/1.1 200 OK\r\n\r\n" + full + "x");
+        try {
+            untilClose.parse(false);
+            fail();
+        } catch (NioHttpStack.BodyTooLargeException expected) {
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+/**
+ * Runs {@link NioHttpStack} against a scripted server on a local socket: retries of lost
+ * idempotent requests, pipelining, and the idle timeout.
+ */
+public class NioHttpStackTest {
+
+    private static final Pattern CONTENT_LENGTH =
+            Pattern.compile("(?i)Content-Length: (\\d+)");
+
+    private ServerSocket mServer;
+    private NioHttpStack mStack;
+    private final List<Socket> mAccepted = Collections.synchronizedList(new ArrayList<Socket>());
+
+    /** A request that is never delivered; only what goes on the wire matters here. */
+    private static class TestRequest extends Request<Object> {
+        TestRequest(int method, String url) {
+            super(method, url, null);
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mStack = new NioHttpStack("test", null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStack.shutdown();
+        mServer.close();
+        for (Socket socket : mAccepted) {
+            socket.close();
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+    }
+
+    private Socket accept() throws IOException {
+        Socket socket = mServer.accept();
+        socket.setSoTimeout(10000);
+        mAccepted.add(socket);
+        return socket;
+    }
+
+    /** Reads one request, head and body, and returns its request line. */
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Client closed the connection");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1
+                    : (b == '\r' ? 1 : 0);
+        }
+        String text = head.toString("ISO-8859-1");
+        Matcher m = CONTENT_LENGTH.matcher(text);
+        if (m.find()) {
+            for (int n = Integer.parseInt(m.group(1)); n > 0; n--) {
+                in.read();
+            }
+        }
+        return text.substring(0, text.indexOf("\r\n"));
+    }
+
+    private static void write(Socket socket, String data) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(data.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String ok(String body) {
+        return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    private static String body(HttpResponse response) throws IOException {
+        InputStream in = response.getEntity().getContent();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private HttpResponse perform(Request<?> request) throws Exception {
+        return mStack.performRequest(request, new HashMap<String, String>());
+    }
+
+    /** Runs the script on a server thread and rethrows its failure, if any, on join. */
+    private abstract class Script extends Thread {
+        private volatile Throwable mError;
+
+        abstract void script() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                script();
+            } catch (Throwable t) {
+                mError = t;
+            }
+        }
+
+        void finish() throws Throwable {
+            join(10000);
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+
+    @Test
+    public void lostGetIsSentAgain() throws Throwable {
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        Script server = new Script() {
+            @Override
+            void script() throws Exception {
+                Socket first = accept();
+                seen.add(readRequest(first.getInputStream()));
+                first.close();
+                Socket second = accept();
+                seen.add(readRequest(second.getInputStream()));
+                write(second, ok("second try"));
+            }
+        };
+        server.start();
+
+        HttpResponse response = perform(new TestRequest(Request.Method.GET, url("/get")));
+        assertEquals("second try", body(response));
+        server.finish();
+        assertEquals(2, seen.size());
+        assertEquals("GET /get HTTP/1.1", seen.get(0));
+        assertEquals(seen.get(0), seen.get(1));
+    }
+
+    @Test
+    public void lostPostFailsWithoutRetry() throws Throwable {
+        Script server = new Script() {
+            @Override
+            void script() throws Exception {
+                Socket first = accept();
+                assertEquals("POST /post HTTP/1.1", readRequest(first.getInputStream()));
+                first.close();
+            }
+        };
+        server.start();
+
+        try {
+            perform(new TestRequest(Request.Method.POST, url("/post")));
+            fail();
+        } catch (IOException expected) {
+        }
+        server.finish();
+        mServer.setSoTimeout(500);
+        try {
+            accept();
+            fail("POST was sent again");
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void getsArePipelinedOnOneConnection() throws Throwable {
+        mStack = new NioHttpStack("test", null, 1, 4);
+        final int count = 3;
+        Script server = new Script() {
+            @Override
+            void script() throws Exception {
+                Socket socket = accept();
+                List<String> paths = new ArrayList<String>();
+                for (int i = 0; i < count; i++) {
+                    paths.add(readRequest(socket.getInputStream()).split(" ")[1]);
+                }
+                // Answer everything at once, in request order, as one write.
+                StringBuilder responses = new StringBuilder();
+                for (String path : paths) {
+                    responses.append(ok(path));
+                }
+                write(socket, responses.toString());
+            }
+        };
+        server.start();
+
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final String path = "/item" + i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        String body = body(perform(new TestRequest(Request.Method.GET,
+                                url(path))));
+                        if (!path.equals(body)) {
+                            failures.add(path + " got " + body);
+                        }
+                    } catch (Exception e) {
+                        failures.add(path + " failed: " + e);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        server.finish();
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(1, mAccepted.size());
+    }
+
+    @Test
+    public void stalledResponseTimesOut() throws Throwable {
+        Script server = new Script() {
+            @Override
+            void script() throws Exception {
+                Socket socket = accept();
+                readRequest(socket.getInputStream());
+                write(socket, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc");
+            }
+        };
+        server.start();
+
+        TestRequest request = new TestRequest(Request.Method.GET, url("/stall"));
+        request.setRetryPolicy(new DefaultRetryPolicy(300, 0, 1f));
+        long start = System.nanoTime();
+        try {
+            perform(request);
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("timed out after " + elapsedMs + "ms", elapsedMs < 5000);
+        server.finish();
+    }
+
+    @Test
+    public void slowButSteadyResponseDoesNotTimeOut() throws Throwable {
+        final String body = "0123456789";
+        Script server = new Script() {
+            @Override
+            void script() throws Exception {
+                Socket socket = accept();
+                readRequest(socket.getInputStream());
+                write(socket, "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n");
+                for (int i = 0; i < body.length(); i++) {
+                    Thread.sleep(100);
+                    write(socket, body.substring(i, i + 1));
+                }
+            }
+        };
+        server.start();
+
+        TestRequest request = new TestRequest(Request.Method.GET, url("/slow"));
+        request.setRetryPolicy(new DefaultRetryPolicy(300, 0, 1f));
+        assertEquals(body, body(perform(request)));
+        server.finish();
+    }
+}
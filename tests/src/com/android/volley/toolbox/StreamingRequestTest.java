@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+/**
+ * Runs {@link StreamingStringRequest}s through {@link BasicNetwork} and compares the memory
+ * allocated for a large body with that of a plain {@link StringRequest}.
+ */
+public class StreamingRequestTest {
+
+    /** Answers every request with the same body. */
+    private static class StubStack implements HttpStack {
+        private final byte[] mBody;
+        private final int mStatusCode;
+
+        StubStack(byte[] body, int statusCode) {
+            mBody = body;
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public HttpResponse performRequest(Request<?> request,
+                Map<String, String> additionalHeaders) {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, mStatusCode,
+                    "Status");
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(mBody));
+            entity.setContentLength(mBody.length);
+            response.setEntity(entity);
+            response.addHeader("Content-Type", "text/plain; charset=UTF-8");
+            response.addHeader("Content-Length", String.valueOf(mBody.length));
+            return response;
+        }
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    private static NetworkResponse perform(byte[] body, int statusCode, Request<?> request)
+            throws Exception {
+        return new BasicNetwork(new StubStack(body, statusCode))
+                .performRequest(ExecutorDelivery.immediate(), request);
+    }
+
+    @Test
+    public void successfulBodyIsParsedOffTheStream() throws Exception {
+        byte[] body = body(100000);
+        StreamingStringRequest request = new StreamingStringRequest("http://example.com/s",
+                null, null);
+        NetworkResponse response = perform(body, 200, request);
+
+        assertTrue(response instanceof StreamedNetworkResponse);
+        assertNull(response.data);
+        assertEquals(body.length, ((StreamedNetworkResponse) response).bodyLength);
+        Response<String> parsed = request.parseNetworkResponse(response);
+        assertTrue(parsed.isSuccess());
+        assertEquals(new String(body, "UTF-8"), parsed.result);
+    }
+
+    @Test
+    public void cachedRequestGetsBytesAndReplaysThem() throws Exception {
+        byte[] body = body(1000);
+        StreamingStringRequest request = new StreamingStringRequest("http://example.com/s",
+                null, null);
+        request.setShouldCache(true);
+        NetworkResponse response = perform(body, 200, request);
+
+        // The body is needed for the cache entry, so it is read into an array as before.
+        assertFalse(response instanceof StreamedNetworkResponse);
+        assertEquals(body.length, response.data.length);
+        assertEquals(new String(body, "UTF-8"), request.parseNetworkResponse(response).result);
+    }
+
+    @Test
+    public void byteBodyIsReplayedThroughTheStreamParser() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "text/plain; charset=ISO-8859-1");
+        NetworkResponse response = new NetworkResponse(200, new byte[] {(byte) 0xe9}, headers,
+                false);
+        StreamingStringRequest request = new StreamingStringRequest("http://example.com/s",
+                null, null);
+        assertEquals("\u00e9", request.parseNetworkResponse(response).result);
+    }
+
+    /** Returns the bytes allocated by this thread to fetch and parse the body. */
+    private static long allocatedBytes(byte[] body, Request<String> request,
+            StringRequest parser) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        NetworkResponse response = perform(body, 200, request);
+        Response<String> parsed = parser.parseNetworkResponse(response);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertEquals(body.length, parsed.result.length());
+        return allocated;
+    }
+
+    @Test
+    public void streamingAllocatesLessForLargeBodies() throws Exception {
+        StringBuilder report = new StringBuilder("StreamingStringRequest: KB allocated,");
+        for (int size : new int[] {512 * 1024, 4 * 1024 * 1024}) {
+            byte[] body = body(size);
+            long plain = 0;
+            long streamed = 0;
+            // The last of a few rounds, once the pool and the JIT have warmed up.
+            for (int i = 0; i < 5; i++) {
+                StringRequest plainRequest = new StringRequest("http://example.com/s", null,
+                        null);
+                plain = allocatedBytes(body, plainRequest, plainRequest);
+                StreamingStringRequest streamingRequest = new StreamingStringRequest(
+                        "http://example.com/s", null, null);
+                streamed = allocatedBytes(body, streamingRequest, streamingRequest);
+            }
+            report.append(' ').append(size / 1024).append("KB body ").append(plain / 1024)
+                    .append(" plain / ").append(streamed / 1024).append(" streamed,");
+            assertTrue(streamed < plain);
+        }
+        System.out.println(report.substring(0, report.length() - 1));
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox.disklrucache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the binary journal of {@link DiskLruCache}: that it reproduces the cache on reopen,
+ * that text journals are migrated, that a torn last record is dropped and that reads are
+ * batched. Also prints the journal size and open time of a large cache in both formats.
+ */
+public final class DiskLruCacheTest {
+  private static final int APP_VERSION = 100;
+  private static final long MAX_SIZE = Long.MAX_VALUE;
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private File directory;
+  private File journalFile;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    directory = temp.newFolder("cache");
+    journalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  private DiskLruCache reopen() throws IOException {
+    if (cache != null) {
+      cache.close();
+    }
+    cache = DiskLruCache.open(directory, APP_VERSION, 2, MAX_SIZE);
+    return cache;
+  }
+
+  private void set(String key, String a, String b) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, a);
+    editor.set(1, b);
+    editor.commit();
+  }
+
+  private void assertValue(String key, String a, String b) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    try {
+      assertEquals(a, snapshot.getString(0));
+      assertEquals(b, snapshot.getString(1));
+      assertEquals(a.length(), snapshot.getLength(0));
+      assertEquals(b.length(), snapshot.getLength(1));
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private void read(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    snapshot.close();
+  }
+
+  private int journalMagic() throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+    try {
+      return in.readInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  private void appendToJournal(byte... bytes) throws IOException {
+    OutputStream out = new FileOutputStream(journalFile, true);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeFile(String name, String content) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, name)),
+        Util.US_ASCII);
+    try {
+      writer.write(content);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /** Writes a text journal with the given records after the header. */
+  private void writeTextJournal(String... records) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(journalFile), Util.US_ASCII));
+    try {
+      writer.write(DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n" + APP_VERSION
+          + "\n2\n\n");
+      for (String record : records) {
+        writer.write(record);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test public void binaryJournalReproducesTheCache() throws Exception {
+    reopen();
+    set("a", "a0", "a1");
+    set("b", "b0", "b1");
+    set("c", "c00", "c111");
+    set("a", "a00", "a1");
+    assertTrue(cache.remove("b"));
+    read("a");
+    reopen();
+
+    assertEquals(DiskLruCache.BINARY_MAGIC, journalMagic());
+    assertValue("a", "a00", "a1");
+    assertNull(cache.get("b"));
+    assertValue("c", "c00", "c111");
+    assertEquals(12, cache.size());
+  }
+
+  @Test public void readsKeepTheirLruOrderAcrossReopen() throws Exception {
+    reopen();
+    set("a", "a", "a");
+    set("b", "b", "b");
+    set("c", "c", "c");
+    read("a");
+    reopen();
+
+    // b is now the least recently used; a was moved behind c by its read.
+    cache.setMaxSize(4);
+    cache.flush();
+    assertNull(cache.get("b"));
+    assertEquals(4, cache.size());
+    cache.setMaxSize(2);
+    cache.flush();
+    assertNull(cache.get("c"));
+    assertValue("a", "a", "a");
+  }
+
+  @Test public void textJournalIsMigrated() throws Exception {
+    writeFile("k1.0", "ab");
+    writeFile("k1.1", "cde");
+    writeFile("k2.0", "f");
+    writeFile("k2.1", "g");
+    writeFile("k3.0.tmp", "h");
+    writeTextJournal(
+        "DIRTY k1",
+        "CLEAN k1 2 3",
+        "DIRTY k2",
+        "CLEAN k2 1 1",
+        "DIRTY k3",
+        "DIRTY k4",
+        "CLEAN k4 1 1",
+        "REMOVE k4",
+        "READ k1");
+    reopen();
+
+    assertEquals(DiskLruCache.BINARY_MAGIC, journalMagic());
+    assertValue("k1", "ab", "cde");
+    assertValue("k2", "f", "g");
+    assertNull(cache.get("k3"));
+    assertNull(cache.get("k4"));
+    assertFalse(new File(directory, "k3.0.tmp").exists());
+    assertEquals(7, cache.size());
+
+    // The migrated journal carries the entries and their LRU order on.
+    reopen();
+    assertEquals(DiskLruCache.BINARY_MAGIC, journalMagic());
+    assertValue("k1", "ab", "cde");
+    assertValue("k2", "f", "g");
+    cache.setMaxSize(5);
+    cache.flush();
+    assertNull(cache.get("k1"));
+    assertValue("k2", "f", "g");
+  }
+
+  @Test public void tornLastRecordIsDropped() throws Exception {
+    reopen();
+    set("a", "a0", "a1");
+    cache.close();
+    cache = null;
+    // The rewritten journal holds the six byte header and one CLEAN record of five.
+    final long compact = 11;
+
+    // A CLEAN record for "b" cut off before its lengths.
+    appendToJournal((byte) 1, (byte) 1, (byte) 'b');
+    reopen();
+    assertValue("a", "a0", "a1");
+    assertNull(cache.get("b"));
+    assertEquals(4, cache.size());
+    assertEquals(compact, journalFile.length());
+
+    // A record cut off within its key; the read of "a" above is dropped by the rewrite too.
+    cache.close();
+    cache = null;
+    appendToJournal((byte) 3, (byte) 32, (byte) 'a', (byte) 'b');
+    reopen();
+    assertValue("a", "a0", "a1");
+    assertEquals(compact, journalFile.length());
+
+    // The rewritten journal is appended to as before.
+    set("c", "c", "c");
+    reopen();
+    assertValue("a", "a0", "a1");
+    assertValue("c", "c", "c");
+  }
+
+  @Test public void repeatedReadsAreBatched() throws Exception {
+    reopen();
+    set("a", "a", "a");
+    cache.flush();
+    long before = journalFile.length();
+    for (int i = 0; i < 1000; i++) {
+      read("a");
+    }
+    cache.flush();
+    // One READ record: type, key length and key.
+    assertEquals(before + 3, journalFile.length());
+
+    for (int i = 0; i < 1000; i++) {
+      read("a");
+    }
+    assertEquals(before + 3, journalFile.length());
+    reopen();
+    assertEquals(before + 6, journalFile.length());
+  }
+
+  private static String key(int i) {
+    String hex = Integer.toHexString(i);
+    return "00000000000000000000000000000000".substring(hex.length()) + hex;
+  }
+
+  @Test public void journalSizeAndOpenTime() throws Exception {
+    final int entries = 50000;
+    String[] records = new String[entries * 2];
+    for (int i = 0; i < entries; i++) {
+      records[i] = "CLEAN " + key(i) + " 832 21054";
+      records[entries + i] = "READ " + key((i * 7) % entries);
+    }
+    writeTextJournal(records);
+    long textBytes = journalFile.length();
+
+    long start = System.nanoTime();
+    reopen();
+    long migrateMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    long binaryBytes = journalFile.length();
+    assertEquals((long) entries * (832 + 21054), cache.size());
+
+    cache.close();
+    cache = null;
+    start = System.nanoTime();
+    reopen();
+    long openMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertEquals((long) entries * (832 + 21054), cache.size());
+    assertEquals(binaryBytes, journalFile.length());
+
+    System.out.println("DiskLruCache: " + entries + " entries, text journal " + textBytes
+        + " bytes migrated in " + migrateMs + "ms, binary journal " + binaryBytes
+        + " bytes opened in " + openMs + "ms");
+    assertTrue(binaryBytes * 2 < textBytes);
+  }
+}